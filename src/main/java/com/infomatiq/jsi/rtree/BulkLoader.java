@@ -0,0 +1,229 @@
+//   Copyright (C) 2019 "Sirma AI" JSC, trading as Ontotext
+
+package com.infomatiq.jsi.rtree;
+
+import java.util.Arrays;
+
+/**
+ * Collects the entries of an RTree in bulk-load mode and packs them bottom-up into full nodes, either
+ * using the Sort-Tile-Recursive (STR) algorithm of Leutenegger et al. or by cutting the entries sorted by
+ * the Hilbert value of their centres into consecutive runs (Kamel and Faloutsos).
+ * <p>
+ * Entries are sorted through an array of long keys, where the upper 32 bits hold an order-preserving
+ * encoding of the sort coordinate and the lower 32 bits hold the entry position, so no boxing or
+ * per-entry objects are needed even for tens of millions of entries. The keys are sorted in parallel on
+ * the common fork-join pool.
+ */
+class BulkLoader {
+	private static final int INITIAL_CAPACITY = 1024;
+
+	// bits per dimension of the Hilbert curve grid, chosen so that the curve index fits in 30 bits
+	private static final int HILBERT_ORDER = 15;
+	private static final int HILBERT_SIDE = 1 << HILBERT_ORDER;
+
+	private final RTree.Packing packing;
+
+	private float[] minX = new float[INITIAL_CAPACITY];
+	private float[] minY = new float[INITIAL_CAPACITY];
+	private float[] maxX = new float[INITIAL_CAPACITY];
+	private float[] maxY = new float[INITIAL_CAPACITY];
+	private long[] ids = new long[INITIAL_CAPACITY];
+	private int count = 0;
+	private int height = 0;
+
+	BulkLoader(RTree.Packing packing) {
+		this.packing = packing;
+	}
+
+	void add(float minX, float minY, float maxX, float maxY, long id) {
+		if (count == ids.length) {
+			int capacity = ids.length * 2;
+			this.minX = Arrays.copyOf(this.minX, capacity);
+			this.minY = Arrays.copyOf(this.minY, capacity);
+			this.maxX = Arrays.copyOf(this.maxX, capacity);
+			this.maxY = Arrays.copyOf(this.maxY, capacity);
+			this.ids = Arrays.copyOf(this.ids, capacity);
+		}
+		this.minX[count] = minX;
+		this.minY[count] = minY;
+		this.maxX[count] = maxX;
+		this.maxY[count] = maxY;
+		this.ids[count] = id;
+		count++;
+	}
+
+	int size() {
+		return count;
+	}
+
+	/**
+	 * Creates the nodes of a packed tree.
+	 */
+	interface NodeFactory {
+		/**
+		 * Returns an empty node at the given level, to be filled with entries.
+		 */
+		Node create(int level);
+
+		/**
+		 * Called once a node is filled.
+		 *
+		 * @return the id used to refer to the node from its parent
+		 */
+		long complete(Node n);
+	}
+
+	/**
+	 * Packs the collected entries level by level, until a single root node remains.
+	 *
+	 * @return the id of the root node
+	 */
+	long pack(NodeFactory factory, int maxNodeEntries, int minNodeEntries) {
+		int level = 1;
+		while (true) {
+			long root = packLevel(factory, level, maxNodeEntries, minNodeEntries);
+			if (count == 1) {
+				height = level;
+				return root;
+			}
+			level++;
+		}
+	}
+
+	/**
+	 * @return the number of levels of the tree built by the last call to pack()
+	 */
+	int getHeight() {
+		return height;
+	}
+
+	/**
+	 * Packs the current entries into nodes and replaces them with the entries of the next level, i.e.
+	 * the MBRs of the created nodes.
+	 *
+	 * @return the id of the last node created
+	 */
+	private long packLevel(NodeFactory factory, int level, int maxNodeEntries, int minNodeEntries) {
+		int nodeCount = (count + maxNodeEntries - 1) / maxNodeEntries;
+		long[] keys = packing == RTree.Packing.HILBERT ? hilbertOrder() : sortTileRecursiveOrder(nodeCount, maxNodeEntries);
+
+		float[] nodeMinX = new float[nodeCount];
+		float[] nodeMinY = new float[nodeCount];
+		float[] nodeMaxX = new float[nodeCount];
+		float[] nodeMaxY = new float[nodeCount];
+		long[] nodeIds = new long[nodeCount];
+		int from = 0;
+		for (int n = 0; n < nodeCount; n++) {
+			int to = Math.min(from + maxNodeEntries, count);
+			if (n == nodeCount - 2 && count - to < minNodeEntries) {
+				// leave enough entries for the last node to satisfy the minimum fill
+				to = count - minNodeEntries;
+			}
+			Node node = factory.create(level);
+			for (int i = from; i < to; i++) {
+				int entry = (int) keys[i];
+				node.addEntry(minX[entry], minY[entry], maxX[entry], maxY[entry], ids[entry]);
+			}
+			nodeMinX[n] = node.mbrMinX;
+			nodeMinY[n] = node.mbrMinY;
+			nodeMaxX[n] = node.mbrMaxX;
+			nodeMaxY[n] = node.mbrMaxY;
+			nodeIds[n] = factory.complete(node);
+			from = to;
+		}
+
+		minX = nodeMinX;
+		minY = nodeMinY;
+		maxX = nodeMaxX;
+		maxY = nodeMaxY;
+		ids = nodeIds;
+		count = nodeCount;
+		return nodeIds[nodeCount - 1];
+	}
+
+	/**
+	 * Sorts all entries by the x coordinate of their centre and then each vertical slice of
+	 * sqrt(nodeCount) nodes by the y coordinate.
+	 */
+	private long[] sortTileRecursiveOrder(int nodeCount, int maxNodeEntries) {
+		int sliceCount = (int) Math.ceil(Math.sqrt(nodeCount));
+		int sliceSize = sliceCount * maxNodeEntries;
+
+		long[] keys = new long[count];
+		for (int i = 0; i < count; i++) {
+			keys[i] = sortKey(minX[i], maxX[i], i);
+		}
+		Arrays.parallelSort(keys);
+		for (int from = 0; from < count; from += sliceSize) {
+			int to = Math.min(from + sliceSize, count);
+			for (int i = from; i < to; i++) {
+				int entry = (int) keys[i];
+				keys[i] = sortKey(minY[entry], maxY[entry], entry);
+			}
+			Arrays.parallelSort(keys, from, to);
+		}
+		return keys;
+	}
+
+	/**
+	 * Sorts all entries by the Hilbert value of their centre on a grid spanning the extent of the entries.
+	 */
+	private long[] hilbertOrder() {
+		float extentMinX = Float.MAX_VALUE, extentMinY = Float.MAX_VALUE;
+		float extentMaxX = -Float.MAX_VALUE, extentMaxY = -Float.MAX_VALUE;
+		for (int i = 0; i < count; i++) {
+			float x = (minX[i] + maxX[i]) / 2;
+			float y = (minY[i] + maxY[i]) / 2;
+			if (x < extentMinX) extentMinX = x;
+			if (y < extentMinY) extentMinY = y;
+			if (x > extentMaxX) extentMaxX = x;
+			if (y > extentMaxY) extentMaxY = y;
+		}
+		double scaleX = extentMaxX > extentMinX ? (HILBERT_SIDE - 1) / ((double) extentMaxX - extentMinX) : 0;
+		double scaleY = extentMaxY > extentMinY ? (HILBERT_SIDE - 1) / ((double) extentMaxY - extentMinY) : 0;
+
+		long[] keys = new long[count];
+		for (int i = 0; i < count; i++) {
+			int x = (int) ((((double) minX[i] + maxX[i]) / 2 - extentMinX) * scaleX);
+			int y = (int) ((((double) minY[i] + maxY[i]) / 2 - extentMinY) * scaleY);
+			keys[i] = (hilbertValue(x, y) << 32) | (i & 0xFFFFFFFFL);
+		}
+		Arrays.parallelSort(keys);
+		return keys;
+	}
+
+	/**
+	 * Computes the distance along the Hilbert curve of the cell (x, y) of a HILBERT_SIDE x HILBERT_SIDE grid.
+	 */
+	static long hilbertValue(int x, int y) {
+		long d = 0;
+		for (int s = HILBERT_SIDE / 2; s > 0; s /= 2) {
+			int rx = (x & s) > 0 ? 1 : 0;
+			int ry = (y & s) > 0 ? 1 : 0;
+			d += (long) s * s * ((3 * rx) ^ ry);
+			// rotate the quadrant so that the curve stays continuous
+			if (ry == 0) {
+				if (rx == 1) {
+					x = HILBERT_SIDE - 1 - x;
+					y = HILBERT_SIDE - 1 - y;
+				}
+				int t = x;
+				x = y;
+				y = t;
+			}
+		}
+		return d;
+	}
+
+	private static long sortKey(float min, float max, int entry) {
+		return ((long) sortableBits((min + max) / 2) << 32) | (entry & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Maps a float onto an int so that the signed int order matches the numeric float order.
+	 */
+	static int sortableBits(float value) {
+		int bits = Float.floatToIntBits(value);
+		return bits ^ ((bits >> 31) & 0x7FFFFFFF);
+	}
+}
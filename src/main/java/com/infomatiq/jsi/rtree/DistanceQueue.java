@@ -0,0 +1,104 @@
+//   Copyright (C) 2019 "Sirma AI" JSC, trading as Ontotext
+
+package com.infomatiq.jsi.rtree;
+
+import java.util.Arrays;
+
+/**
+ * A binary heap of ids ordered by their distances, with a small tag kept along with each id. Unlike
+ * {@link com.infomatiq.jsi.PriorityQueue} it orders by double distances, so the distances of points that
+ * are close to each other are not rounded to the same float.
+ */
+final class DistanceQueue {
+	private final boolean ascending;
+	private long[] ids = new long[16];
+	private double[] distances = new double[16];
+	private int[] tags = new int[16];
+	private int size;
+
+	/**
+	 * @param ascending
+	 *            true to have the nearest id at the head, false to have the farthest
+	 */
+	DistanceQueue(boolean ascending) {
+		this.ascending = ascending;
+	}
+
+	int size() {
+		return size;
+	}
+
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+	void clear() {
+		size = 0;
+	}
+
+	void add(long id, double distance, int tag) {
+		if (size == ids.length) {
+			ids = Arrays.copyOf(ids, size * 2);
+			distances = Arrays.copyOf(distances, size * 2);
+			tags = Arrays.copyOf(tags, size * 2);
+		}
+		int i = size++;
+		while (i > 0) {
+			int parent = (i - 1) >>> 1;
+			if (!before(distance, distances[parent])) {
+				break;
+			}
+			set(i, ids[parent], distances[parent], tags[parent]);
+			i = parent;
+		}
+		set(i, id, distance, tag);
+	}
+
+	long headId() {
+		return ids[0];
+	}
+
+	double headDistance() {
+		return distances[0];
+	}
+
+	int headTag() {
+		return tags[0];
+	}
+
+	void removeHead() {
+		size--;
+		if (size == 0) {
+			return;
+		}
+		long id = ids[size];
+		double distance = distances[size];
+		int tag = tags[size];
+		int i = 0;
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= size) {
+				break;
+			}
+			if (child + 1 < size && before(distances[child + 1], distances[child])) {
+				child++;
+			}
+			if (!before(distances[child], distance)) {
+				break;
+			}
+			set(i, ids[child], distances[child], tags[child]);
+			i = child;
+		}
+		set(i, id, distance, tag);
+	}
+
+	private boolean before(double a, double b) {
+		return ascending ? a < b : a > b;
+	}
+
+	private void set(int i, long id, double distance, int tag) {
+		ids[i] = id;
+		distances[i] = distance;
+		tags[i] = tag;
+	}
+}
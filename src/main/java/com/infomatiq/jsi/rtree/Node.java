@@ -38,6 +38,12 @@ public class Node {
   float[] entriesMaxX = null;
   float[] entriesMaxY = null;
   
+  // the unit vectors of the points of a point leaf, taking x as the latitude 
+  // and y as the longitude in degrees, if the tree keeps them, null otherwise
+  float[] entriesUnitX = null;
+  float[] entriesUnitY = null;
+  float[] entriesUnitZ = null;
+  
   long[] ids = null;
   int level;
   int entryCount;
@@ -52,12 +58,95 @@ public class Node {
     ids = new long[maxNodeEntries];
   }
    
+  /**
+   * Creates a leaf that holds only points. It shares the arrays of the 
+   * minimum and maximum coordinates, which are always equal for a point.
+   */
+  static Node pointLeaf(long nodeId, int maxNodeEntries) {
+    Node n = new Node(nodeId, 1);
+    n.entriesMinX = n.entriesMaxX = new float[maxNodeEntries];
+    n.entriesMinY = n.entriesMaxY = new float[maxNodeEntries];
+    n.ids = new long[maxNodeEntries];
+    return n;
+  }
+  
+  /**
+   * Creates a leaf that holds only points, together with their unit vectors.
+   */
+  static Node pointLeafWithUnitVectors(long nodeId, int maxNodeEntries) {
+    Node n = pointLeaf(nodeId, maxNodeEntries);
+    n.entriesUnitX = new float[maxNodeEntries];
+    n.entriesUnitY = new float[maxNodeEntries];
+    n.entriesUnitZ = new float[maxNodeEntries];
+    return n;
+  }
+  
+  boolean hasUnitVectors() {
+    return entriesUnitX != null;
+  }
+  
+  // compute the unit vector of entry i from its coordinates, if the node keeps unit vectors
+  void updateUnitVector(int i) {
+    if (entriesUnitX != null) {
+      double lat = Math.toRadians(entriesMinX[i]);
+      double lon = Math.toRadians(entriesMinY[i]);
+      double cosLat = Math.cos(lat);
+      entriesUnitX[i] = (float) (cosLat * Math.cos(lon));
+      entriesUnitY[i] = (float) (cosLat * Math.sin(lon));
+      entriesUnitZ[i] = (float) Math.sin(lat);
+    }
+  }
+  
+  // copy entry from into the place of entry to
+  private void moveEntry(int from, int to) {
+    entriesMinX[to] = entriesMinX[from];
+    entriesMinY[to] = entriesMinY[from];
+    entriesMaxX[to] = entriesMaxX[from];
+    entriesMaxY[to] = entriesMaxY[from];
+    if (entriesUnitX != null) {
+      entriesUnitX[to] = entriesUnitX[from];
+      entriesUnitY[to] = entriesUnitY[from];
+      entriesUnitZ[to] = entriesUnitZ[from];
+    }
+    ids[to] = ids[from];
+  }
+  
+  private Node(long nodeId, int level) {
+    this.nodeId = nodeId;
+    this.level = level;
+  }
+  
+  boolean holdsPoints() {
+    return entriesMaxX == entriesMinX;
+  }
+  
+  // turn a point leaf into a normal node, which can hold any rectangle
+  void separateCoordinates() {
+    if (holdsPoints()) {
+      entriesMaxX = entriesMinX.clone();
+      entriesMaxY = entriesMinY.clone();
+    }
+    entriesUnitX = entriesUnitY = entriesUnitZ = null;
+  }
+   
+  // empty the node for reuse at the given level
+  void reset(long nodeId, int level) {
+    this.nodeId = nodeId;
+    this.level = level;
+    entryCount = 0;
+    mbrMinX = Float.MAX_VALUE;
+    mbrMinY = Float.MAX_VALUE;
+    mbrMaxX = -Float.MAX_VALUE;
+    mbrMaxY = -Float.MAX_VALUE;
+  }
+   
   void addEntry(float minX, float minY, float maxX, float maxY, long id) {
     ids[entryCount] = id;
     entriesMinX[entryCount] = minX;
     entriesMinY[entryCount] = minY;
     entriesMaxX[entryCount] = maxX;
     entriesMaxY[entryCount] = maxY;
+    updateUnitVector(entryCount);
    
     if (minX < mbrMinX) mbrMinX = minX;
     if (minY < mbrMinY) mbrMinY = minY;
@@ -88,11 +177,7 @@ public class Node {
     float deletedMaxY = entriesMaxY[i];
     
     if (i != lastIndex) {
-      entriesMinX[i] = entriesMinX[lastIndex];
-      entriesMinY[i] = entriesMinY[lastIndex];
-      entriesMaxX[i] = entriesMaxX[lastIndex];
-      entriesMaxY[i] = entriesMaxY[lastIndex];
-    	ids[i] = ids[lastIndex];
+      moveEntry(lastIndex, i);
 	  }
     entryCount--;
     
@@ -136,11 +221,7 @@ public class Node {
          while (ids[countdownIndex] == -1 && countdownIndex > index) {
            countdownIndex--;
          }
-         entriesMinX[index] = entriesMinX[countdownIndex];
-         entriesMinY[index] = entriesMinY[countdownIndex];
-         entriesMaxX[index] = entriesMaxX[countdownIndex];
-         entriesMaxY[index] = entriesMaxY[countdownIndex];
-         ids[index] = ids[countdownIndex];    
+         moveEntry(countdownIndex, index);
          ids[countdownIndex] = -1;
       }
     }
@@ -0,0 +1,318 @@
+//   Copyright (C) 2019 "Sirma AI" JSC, trading as Ontotext
+
+package com.infomatiq.jsi.rtree;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Read-only tree nodes kept as fixed-size records in large byte buffer slabs, either regions of a memory
+ * mapped file or direct (off-heap) buffers. Nodes are read straight from the slabs, so no per-node objects
+ * exist.
+ * <p>
+ * Branch (non-leaf) nodes and leaves are kept in two separate regions. Each record stores the entries of
+ * the node as a structure of arrays:
+ * <pre>
+ *   int level, int entryCount, float mbrMinX, float mbrMinY, float mbrMaxX, float mbrMaxY,
+ *   long ids[maxNodeEntries],
+ *   float minX[maxNodeEntries], float minY[maxNodeEntries], float maxX[maxNodeEntries], float maxY[maxNodeEntries]
+ * </pre>
+ * except that the leaves of a tree holding only points omit maxX and maxY, and may instead be followed by
+ * the unit vectors of the points:
+ * <pre>
+ *   float unitX[maxNodeEntries], float unitY[maxNodeEntries], float unitZ[maxNodeEntries]
+ * </pre>
+ * The ids of the entries of branch
+ * nodes are the node ids of their children, which encode the region of the node in the lowest bit and the
+ * record number in that region in the rest. All values are little-endian.
+ */
+class NodeStore {
+	static final ByteOrder BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
+
+	private static final int RECORD_HEADER_SIZE = 24;
+
+	// size of the direct buffers allocated while building a store in memory
+	private static final int SLAB_SIZE = 64 << 20;
+
+	/**
+	 * The records of one kind of node.
+	 */
+	private static class Region {
+		ByteBuffer[] segments;
+		final int recordsPerSegment;
+		final int recordSize;
+		long count;
+
+		Region(ByteBuffer[] segments, int recordsPerSegment, int recordSize, long count) {
+			this.segments = segments;
+			this.recordsPerSegment = recordsPerSegment;
+			this.recordSize = recordSize;
+			this.count = count;
+		}
+
+		static Region allocate(int recordSize) {
+			return new Region(new ByteBuffer[0], SLAB_SIZE / recordSize, recordSize, 0);
+		}
+
+		static Region map(FileChannel channel, long position, int recordSize, long count) throws IOException {
+			// a single mapping can not exceed 2GB, so split the records over several segments
+			int recordsPerSegment = Integer.MAX_VALUE / recordSize;
+			int segmentCount = (int) ((count + recordsPerSegment - 1) / recordsPerSegment);
+			ByteBuffer[] segments = new ByteBuffer[segmentCount];
+			for (int s = 0; s < segmentCount; s++) {
+				long first = (long) s * recordsPerSegment;
+				long records = Math.min(recordsPerSegment, count - first);
+				segments[s] = channel.map(FileChannel.MapMode.READ_ONLY, position + first * recordSize,
+						records * recordSize).order(BYTE_ORDER);
+			}
+			return new Region(segments, recordsPerSegment, recordSize, count);
+		}
+
+		/**
+		 * @return a buffer positioned at the start of a new record
+		 */
+		ByteBuffer append() {
+			int segment = (int) (count / recordsPerSegment);
+			if (segment == segments.length) {
+				segments = Arrays.copyOf(segments, segment + 1);
+				segments[segment] = ByteBuffer.allocateDirect(recordsPerSegment * recordSize).order(BYTE_ORDER);
+			}
+			ByteBuffer out = segments[segment];
+			out.position((int) (count % recordsPerSegment) * recordSize);
+			return out;
+		}
+
+		void writeTo(FileChannel channel) throws IOException {
+			for (int s = 0; s < segments.length; s++) {
+				ByteBuffer segment = segments[s].duplicate();
+				long records = Math.min(recordsPerSegment, count - (long) s * recordsPerSegment);
+				segment.position(0).limit((int) records * recordSize);
+				while (segment.hasRemaining()) {
+					channel.write(segment);
+				}
+			}
+		}
+	}
+
+	private final Region branches;
+	private final Region leaves;
+	private final int maxNodeEntries;
+	private final boolean pointLeaves;
+	private final boolean unitVectors;
+
+	private NodeStore(Region branches, Region leaves, int maxNodeEntries, boolean pointLeaves,
+			boolean unitVectors) {
+		this.branches = branches;
+		this.leaves = leaves;
+		this.maxNodeEntries = maxNodeEntries;
+		this.pointLeaves = pointLeaves;
+		this.unitVectors = pointLeaves && unitVectors;
+	}
+
+	static int recordSize(int maxNodeEntries, boolean pointRecord, boolean unitVectors) {
+		if (!pointRecord) {
+			return RECORD_HEADER_SIZE + maxNodeEntries * 24;
+		}
+		return RECORD_HEADER_SIZE + maxNodeEntries * (unitVectors ? 28 : 16);
+	}
+
+	/**
+	 * @return the size of the largest record of any kind
+	 */
+	static int maxRecordSize(int maxNodeEntries) {
+		return recordSize(maxNodeEntries, true, true);
+	}
+
+	static long branchId(long record) {
+		return record << 1;
+	}
+
+	static long leafId(long record) {
+		return (record << 1) | 1;
+	}
+
+	static boolean isLeafId(long id) {
+		return (id & 1) != 0;
+	}
+
+	static long recordOf(long id) {
+		return id >>> 1;
+	}
+
+	/**
+	 * Creates an empty store in off-heap memory, growing by one slab at a time as nodes are appended.
+	 */
+	static NodeStore allocate(int maxNodeEntries, boolean pointLeaves, boolean unitVectors) {
+		return new NodeStore(Region.allocate(recordSize(maxNodeEntries, false, false)),
+				Region.allocate(recordSize(maxNodeEntries, pointLeaves, unitVectors)), maxNodeEntries, pointLeaves,
+				unitVectors);
+	}
+
+	/**
+	 * Maps the branch records starting at the given position of a file, followed by the leaf records. The
+	 * mapping stays valid after the channel is closed.
+	 */
+	static NodeStore map(FileChannel channel, long position, int maxNodeEntries, boolean pointLeaves,
+			boolean unitVectors, long branchCount, long leafCount) throws IOException {
+		int branchSize = recordSize(maxNodeEntries, false, false);
+		int leafSize = recordSize(maxNodeEntries, pointLeaves, unitVectors);
+		long leavesPosition = position + branchCount * branchSize;
+		if (channel.size() < leavesPosition + leafCount * leafSize) {
+			throw new IOException("Truncated geospatial index: expected " + (branchCount + leafCount) + " nodes");
+		}
+		return new NodeStore(Region.map(channel, position, branchSize, branchCount),
+				Region.map(channel, leavesPosition, leafSize, leafCount), maxNodeEntries, pointLeaves, unitVectors);
+	}
+
+	/**
+	 * Appends the record of the given node to the buffer, replacing the ids of the entries with the given
+	 * child ids unless the node is a leaf or childIds is null. The unit vectors of a point leaf are computed
+	 * unless the node keeps them.
+	 */
+	static void writeRecord(ByteBuffer out, Node n, long[] childIds, int maxNodeEntries, boolean pointLeaves,
+			boolean unitVectors) {
+		out.putInt(n.level);
+		out.putInt(n.entryCount);
+		out.putFloat(n.mbrMinX);
+		out.putFloat(n.mbrMinY);
+		out.putFloat(n.mbrMaxX);
+		out.putFloat(n.mbrMaxY);
+		long[] ids = n.isLeaf() || childIds == null ? n.ids : childIds;
+		for (int i = 0; i < maxNodeEntries; i++) {
+			out.putLong(i < n.entryCount ? ids[i] : -1);
+		}
+		putEntries(out, n.entriesMinX, n.entryCount, maxNodeEntries);
+		putEntries(out, n.entriesMinY, n.entryCount, maxNodeEntries);
+		if (!n.isLeaf() || !pointLeaves) {
+			putEntries(out, n.entriesMaxX, n.entryCount, maxNodeEntries);
+			putEntries(out, n.entriesMaxY, n.entryCount, maxNodeEntries);
+		} else if (unitVectors) {
+			Node vectors = n;
+			if (!n.hasUnitVectors()) {
+				vectors = Node.pointLeafWithUnitVectors(n.nodeId, maxNodeEntries);
+				for (int i = 0; i < n.entryCount; i++) {
+					vectors.addEntry(n.entriesMinX[i], n.entriesMinY[i], n.entriesMinX[i], n.entriesMinY[i], n.ids[i]);
+				}
+			}
+			putEntries(out, vectors.entriesUnitX, n.entryCount, maxNodeEntries);
+			putEntries(out, vectors.entriesUnitY, n.entryCount, maxNodeEntries);
+			putEntries(out, vectors.entriesUnitZ, n.entryCount, maxNodeEntries);
+		}
+	}
+
+	private static void putEntries(ByteBuffer out, float[] values, int entryCount, int maxNodeEntries) {
+		for (int i = 0; i < maxNodeEntries; i++) {
+			out.putFloat(i < entryCount ? values[i] : 0);
+		}
+	}
+
+	/**
+	 * Appends a node to an off-heap store. The ids of the entries of branch nodes must already be ids of
+	 * nodes in this store.
+	 *
+	 * @return the id of the node
+	 */
+	long append(Node n) {
+		Region region = n.isLeaf() ? leaves : branches;
+		writeRecord(region.append(), n, null, maxNodeEntries, pointLeaves, unitVectors);
+		long record = region.count++;
+		return n.isLeaf() ? leafId(record) : branchId(record);
+	}
+
+	/**
+	 * Writes the branch records followed by the leaf records to the current position of the channel.
+	 */
+	void writeTo(FileChannel channel) throws IOException {
+		branches.writeTo(channel);
+		leaves.writeTo(channel);
+	}
+
+	long getBranchCount() {
+		return branches.count;
+	}
+
+	long getLeafCount() {
+		return leaves.count;
+	}
+
+	long getNodeCount() {
+		return branches.count + leaves.count;
+	}
+
+	int getMaxNodeEntries() {
+		return maxNodeEntries;
+	}
+
+	boolean hasPointLeaves() {
+		return pointLeaves;
+	}
+
+	boolean hasUnitVectors() {
+		return unitVectors;
+	}
+
+	/**
+	 * @return whether there is a node with the given id
+	 */
+	boolean contains(long id) {
+		return id >= 0 && recordOf(id) < (isLeafId(id) ? leaves.count : branches.count);
+	}
+
+	/**
+	 * Copies the record of a node into the given node object, which must have room for maxNodeEntries
+	 * entries. Only a leaf can be read into a point leaf node. The unit vectors of the points are read if
+	 * both the store and the node object keep them.
+	 *
+	 * @return the passed node object
+	 */
+	Node read(long id, Node into) {
+		Region region = isLeafId(id) ? leaves : branches;
+		long record = recordOf(id);
+		ByteBuffer segment = region.segments[(int) (record / region.recordsPerSegment)];
+		int offset = (int) (record % region.recordsPerSegment) * region.recordSize;
+
+		into.nodeId = id;
+		into.level = segment.getInt(offset);
+		int entryCount = into.entryCount = segment.getInt(offset + 4);
+		into.mbrMinX = segment.getFloat(offset + 8);
+		into.mbrMinY = segment.getFloat(offset + 12);
+		into.mbrMaxX = segment.getFloat(offset + 16);
+		into.mbrMaxY = segment.getFloat(offset + 20);
+
+		int ids = offset + RECORD_HEADER_SIZE;
+		int minX = ids + maxNodeEntries * 8;
+		int minY = minX + maxNodeEntries * 4;
+		for (int i = 0; i < entryCount; i++) {
+			into.ids[i] = segment.getLong(ids + i * 8);
+			into.entriesMinX[i] = segment.getFloat(minX + i * 4);
+			into.entriesMinY[i] = segment.getFloat(minY + i * 4);
+		}
+		if (isLeafId(id) && pointLeaves) {
+			if (!into.holdsPoints()) {
+				System.arraycopy(into.entriesMinX, 0, into.entriesMaxX, 0, entryCount);
+				System.arraycopy(into.entriesMinY, 0, into.entriesMaxY, 0, entryCount);
+			}
+			if (unitVectors && into.hasUnitVectors()) {
+				int unitX = minY + maxNodeEntries * 4;
+				int unitY = unitX + maxNodeEntries * 4;
+				int unitZ = unitY + maxNodeEntries * 4;
+				for (int i = 0; i < entryCount; i++) {
+					into.entriesUnitX[i] = segment.getFloat(unitX + i * 4);
+					into.entriesUnitY[i] = segment.getFloat(unitY + i * 4);
+					into.entriesUnitZ[i] = segment.getFloat(unitZ + i * 4);
+				}
+			}
+		} else {
+			int maxX = minY + maxNodeEntries * 4;
+			int maxY = maxX + maxNodeEntries * 4;
+			for (int i = 0; i < entryCount; i++) {
+				into.entriesMaxX[i] = segment.getFloat(maxX + i * 4);
+				into.entriesMaxY[i] = segment.getFloat(maxY + i * 4);
+			}
+		}
+		return into;
+	}
+}
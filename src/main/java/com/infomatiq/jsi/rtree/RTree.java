@@ -25,6 +25,7 @@ import gnu.trove.TLongArrayList;
 import gnu.trove.TLongProcedure;
 import gnu.trove.TLongStack;
 
+import java.util.Arrays;
 import java.util.Properties;
 
 import org.apache.log4j.Logger;
@@ -59,6 +60,29 @@ public class RTree implements SpatialIndex {
   
   private static final String version = "1.0b6";
   
+  /**
+   * The ways of packing the entries collected in bulk-load mode into nodes.
+   */
+  public enum Packing {
+    /** Sort-Tile-Recursive: vertical slices sorted by x, each tiled by y */
+    SORT_TILE_RECURSIVE,
+    /** Consecutive runs of the entries sorted by the Hilbert value of their centres */
+    HILBERT
+  }
+  
+  /**
+   * The heuristics used when entries are inserted one at a time.
+   */
+  public enum Insertion {
+    /** Guttman's least-enlargement subtree choice and quadratic split */
+    GUTTMAN,
+    /** 
+     * The R*-tree of Beckmann et al.: least-overlap subtree choice above the 
+     * target level, margin-based split axis and forced reinsertion 
+     */
+    RSTAR
+  }
+  
   // parameters of the tree
   private final static int DEFAULT_MAX_NODE_ENTRIES = 10;
   int maxNodeEntries;
@@ -80,7 +104,9 @@ public class RTree implements SpatialIndex {
   
   // stacks used to store nodeId and entry index of each node 
   // from the root down to the leaf. Enables fast lookup
-  // of nodes when a split is propagated up the tree.
+  // of nodes when a split is propagated up the tree. Only
+  // used by modifications, which never run concurrently;
+  // searches keep theirs in a SearchContext.
   private TLongStack parents = new TLongStack();
   private TIntStack parentsEntry = new TIntStack();
   
@@ -97,18 +123,36 @@ public class RTree implements SpatialIndex {
   // which can be reused.
   private TLongStack deletedNodeIds = new TLongStack();
   
-  // List of nearest rectangles. Use a member variable to
-  // avoid recreating the object each time nearest() is called.
-  private TLongArrayList nearestIds = new TLongArrayList();
-  private TLongArrayList savedValues = new TLongArrayList();
-  private float savedPriority = 0;
-
-  // List of nearestN rectangles
-  private SortedList nearestNIds = new SortedList();
+  // Whether all entries are points, so leaves are created as point leaves
+  private boolean pointLeaves = true;
+  
+  // whether point leaves keep the unit vectors of their points
+  boolean unitVectors = false;
+  
+  // Collects the added entries while in bulk-load mode, null otherwise
+  private BulkLoader bulkLoader = null;
+  
+  private Insertion insertion = Insertion.GUTTMAN;
   
-  // List of nearestN rectanges, used in the alternative nearestN implementation.
-  private PriorityQueue distanceQueue = 
-    new PriorityQueue(PriorityQueue.SORT_ORDER_ASCENDING);
+  // the share of the entries of an overflowing node that are reinserted (R* only)
+  private final static float REINSERT_FRACTION = 0.3f;
+  
+  // the levels at which an overflow was already treated by reinsertion during
+  // the current insertion (R* only)
+  private int reinsertedLevels = 0;
+  
+  // the entries of an overflowing node together with the new one, and the
+  // sort keys used to order them (R* only)
+  private float[] overflowMinX = null;
+  private float[] overflowMinY = null;
+  private float[] overflowMaxX = null;
+  private float[] overflowMaxY = null;
+  private long[] overflowIds = null;
+  private long[] overflowKeys = null;
+  // minX, minY, maxX, maxY of the first k and of all but the first k sorted 
+  // overflow entries, at positions 4k..4k+3 (R* only)
+  private float[] headMBRs = null;
+  private float[] tailMBRs = null;
   
   /**
    * Constructor. Use init() method to initialize parameters of the RTree.
@@ -137,6 +181,8 @@ public class RTree implements SpatialIndex {
    * <li>MinNodeEntries</li> This specifies the minimum number of entries
    * in a node. The default value is half of the MaxNodeEntries value (rounded
    * down), which is used if the property is not specified or is less than 1.
+   * <li>Insertion</li> The heuristics used when inserting entries one at a 
+   * time: "Guttman" (the default) or "RStar", see {@link Insertion}.
    * </ul></p>
    * 
    * @see com.infomatiq.jsi.SpatialIndex#init(Properties)
@@ -159,6 +205,23 @@ public class RTree implements SpatialIndex {
       minNodeEntries = maxNodeEntries / 2;
     }
     
+    String insertionName = props.getProperty("Insertion", "Guttman").trim();
+    try {
+      insertion = Insertion.valueOf(insertionName.toUpperCase());
+    } catch (IllegalArgumentException e) {
+      log.warn("Invalid Insertion = " + insertionName + " Resetting to default value of " + Insertion.GUTTMAN);
+      insertion = Insertion.GUTTMAN;
+    }
+    
+    overflowMinX = new float[maxNodeEntries + 1];
+    overflowMinY = new float[maxNodeEntries + 1];
+    overflowMaxX = new float[maxNodeEntries + 1];
+    overflowMaxY = new float[maxNodeEntries + 1];
+    overflowIds = new long[maxNodeEntries + 1];
+    overflowKeys = new long[maxNodeEntries + 1];
+    headMBRs = new float[4 * (maxNodeEntries + 2)];
+    tailMBRs = new float[4 * (maxNodeEntries + 2)];
+    
     entryStatus = new byte[maxNodeEntries];  
     initialEntryStatus = new byte[maxNodeEntries];
     
@@ -166,10 +229,10 @@ public class RTree implements SpatialIndex {
       initialEntryStatus[i] = ENTRY_STATUS_UNASSIGNED;
     }
     
-    Node root = new Node(rootNodeId, 1, maxNodeEntries);
+    Node root = createNode(rootNodeId, 1);
     nodeMap.put(rootNodeId, root);
     
-    log.debug("init() " + " MaxNodeEntries = " + maxNodeEntries + ", MinNodeEntries = " + minNodeEntries);
+    log.debug("init() " + " MaxNodeEntries = " + maxNodeEntries + ", MinNodeEntries = " + minNodeEntries + ", Insertion = " + insertion);
   }
   
   /**
@@ -180,6 +243,16 @@ public class RTree implements SpatialIndex {
       log.debug("Adding rectangle " + r + ", id " + id);
     }
     
+    if (pointLeaves && (r.minX != r.maxX || r.minY != r.maxY)) {
+      separateCoordinates();
+    }
+    
+    if (bulkLoader != null) {
+      bulkLoader.add(r.minX, r.minY, r.maxX, r.maxY, id);
+      return;
+    }
+    
+    reinsertedLevels = 0;
     add(r.minX, r.minY, r.maxX, r.maxY, id, 1); 
     
     size++;
@@ -189,6 +262,159 @@ public class RTree implements SpatialIndex {
     }
   }
   
+  /**
+   * <p>Switches the (empty) tree into bulk-load mode. Subsequent calls to
+   * add() only collect the entries, which are then packed into the tree
+   * by finishBulkLoad(). The tree must not be queried or modified in any
+   * other way until the bulk load is finished.</p>
+   * 
+   * <p>Packing the whole data set at once is much faster than inserting the
+   * entries one by one, and produces nearly full nodes with little overlap.</p>
+   * 
+   * @param packing how the collected entries are grouped into nodes
+   */
+  public void startBulkLoad(Packing packing) {
+    if (size != 0 || bulkLoader != null) {
+      throw new IllegalStateException("Bulk load is only possible on an empty tree");
+    }
+    bulkLoader = new BulkLoader(packing);
+  }
+  
+  /**
+   * Starts a bulk load packed with the Sort-Tile-Recursive algorithm.
+   * 
+   * @see #startBulkLoad(Packing)
+   */
+  public void startBulkLoad() {
+    startBulkLoad(Packing.SORT_TILE_RECURSIVE);
+  }
+  
+  /**
+   * Packs all entries collected since startBulkLoad() bottom-up into
+   * full nodes.
+   */
+  public void finishBulkLoad() {
+    BulkLoader loader = takeBulkLoader();
+    
+    int count = loader.size();
+    if (count == 0) {
+      return;
+    }
+    
+    // discard the empty root created by init() and rebuild the tree from scratch
+    nodeMap.clear();
+    deletedNodeIds.reset();
+    highestUsedNodeId = -1;
+    
+    rootNodeId = loader.pack(new BulkLoader.NodeFactory() {
+      public Node create(int level) {
+        Node n = createNode(getNextNodeId(), level);
+        nodeMap.put(n.nodeId, n);
+        return n;
+      }
+      
+      public long complete(Node n) {
+        return n.nodeId;
+      }
+    }, maxNodeEntries, minNodeEntries);
+    treeHeight = loader.getHeight();
+    size = count;
+    
+    if (INTERNAL_CONSISTENCY_CHECKING) {
+      checkConsistency();
+    }
+  }
+  
+  /**
+   * Creates an empty node. While the tree holds only points, leaves keep
+   * just one coordinate pair per entry.
+   */
+  Node createNode(long nodeId, int level) {
+    if (level == 1 && pointLeaves) {
+      return unitVectors ? Node.pointLeafWithUnitVectors(nodeId, maxNodeEntries) 
+                         : Node.pointLeaf(nodeId, maxNodeEntries);
+    }
+    return new Node(nodeId, level, maxNodeEntries);
+  }
+  
+  /**
+   * Whether all entries of the tree are points.
+   */
+  boolean hasPointLeaves() {
+    return pointLeaves;
+  }
+  
+  /**
+   * Makes all leaves able to hold rectangles other than points, before
+   * the first such rectangle is added.
+   */
+  void separateCoordinates() {
+    pointLeaves = false;
+    for (Node n : nodeMap.values()) {
+      n.separateCoordinates();
+    }
+  }
+  
+  /**
+   * Returns the number of levels of the tree, leaves are always level 1.
+   */
+  int getTreeHeight() {
+    return treeHeight;
+  }
+  
+  /**
+   * Drops all nodes and leaves an empty tree, for subclasses that have
+   * moved the nodes into a different storage.
+   */
+  void discardNodes() {
+    nodeMap.clear();
+    deletedNodeIds.reset();
+    rootNodeId = 0;
+    highestUsedNodeId = 0;
+    treeHeight = 1;
+    size = 0;
+    nodeMap.put(rootNodeId, createNode(rootNodeId, 1));
+  }
+  
+  /**
+   * Adds a node read back from a different storage, after discardNodes().
+   * Once all nodes are added, restoreState() must be called.
+   */
+  void restoreNode(Node n) {
+    nodeMap.put(n.nodeId, n);
+  }
+  
+  /**
+   * Completes restoring the nodes of a tree. The restored node ids must be
+   * 0 to highestUsedNodeId without gaps, as there are no deleted nodes to
+   * be reused. Leaves must be point leaves if pointLeaves is set.
+   */
+  void restoreState(long rootNodeId, int treeHeight, int size, long highestUsedNodeId, boolean pointLeaves) {
+    this.pointLeaves = pointLeaves;
+    this.rootNodeId = rootNodeId;
+    this.treeHeight = treeHeight;
+    this.size = size;
+    this.highestUsedNodeId = highestUsedNodeId;
+    deletedNodeIds.reset();
+    
+    if (INTERNAL_CONSISTENCY_CHECKING) {
+      checkConsistency();
+    }
+  }
+  
+  /**
+   * Ends bulk-load mode and hands over the collected entries, for 
+   * subclasses that pack them into a different node storage.
+   */
+  BulkLoader takeBulkLoader() {
+    if (bulkLoader == null) {
+      throw new IllegalStateException("Bulk load was not started");
+    }
+    BulkLoader loader = bulkLoader;
+    bulkLoader = null;
+    return loader;
+  }
+  
   /**
    * Adds a new entry at a specified level in the tree
    */
@@ -203,6 +429,12 @@ public class RTree implements SpatialIndex {
     // E and all the old entries of L
     if (n.entryCount < maxNodeEntries) {
       n.addEntry(minX, minY, maxX, maxY, id);
+    } else if (insertion == Insertion.RSTAR && n.level != treeHeight && (reinsertedLevels & (1 << n.level)) == 0) {
+      // R* [Overflow treatment] The first time a level overflows during an 
+      // insertion, reinsert some of the entries instead of splitting
+      reinsertedLevels |= 1 << n.level;
+      reinsert(n, minX, minY, maxX, maxY, id);
+      return;
     } else {
       newLeaf = splitNode(n, minX, minY, maxX, maxY, id);  
     }
@@ -219,7 +451,7 @@ public class RTree implements SpatialIndex {
       
       rootNodeId = getNextNodeId();
       treeHeight++;
-      Node root = new Node(rootNodeId, treeHeight, maxNodeEntries);
+      Node root = createNode(rootNodeId, treeHeight);
       root.addEntry(newNode.mbrMinX, newNode.mbrMinY, newNode.mbrMaxX, newNode.mbrMaxY, newNode.nodeId);
       root.addEntry(oldRoot.mbrMinX, oldRoot.mbrMinY, oldRoot.mbrMaxX, oldRoot.mbrMaxY, oldRoot.nodeId);
       nodeMap.put(rootNodeId, root);
@@ -317,16 +549,24 @@ public class RTree implements SpatialIndex {
    * @see com.infomatiq.jsi.SpatialIndex#nearest(Point, TLongProcedure, float)
    */
   public void nearest(Point p, TLongProcedure v, float furthestDistance) {
-    Node rootNode = getNode(rootNodeId);
-   
-    float furthestDistanceSq = furthestDistance * furthestDistance;
-    nearest(p, rootNode, furthestDistanceSq);
-   
-    nearestIds.forEach(v);
-    nearestIds.reset();
+    SearchContext context = SearchContext.acquire();
+    try {
+      float furthestDistanceSq = furthestDistance * furthestDistance;
+      nearest(p, furthestDistanceSq, context);
+     
+      context.nearestIds.forEach(v);
+    } finally {
+      context.nearestIds.reset();
+      context.release();
+    }
   }
    
-  private void createNearestNDistanceQueue(Point p, int count, float furthestDistance) {
+  private void createNearestNDistanceQueue(Point p, int count, float furthestDistance, SearchContext context) {
+    TLongStack parents = context.parents;
+    TIntStack parentsEntry = context.parentsEntry;
+    PriorityQueue distanceQueue = context.distanceQueue;
+    TLongArrayList savedValues = context.savedValues;
+    savedValues.clear();
     distanceQueue.reset();
     distanceQueue.setSortOrder(PriorityQueue.SORT_ORDER_DESCENDING);
     
@@ -391,7 +631,7 @@ public class RTree implements SpatialIndex {
               // rare case - multiple items of the same priority (distance)
               if (distanceSq == distanceQueue.getPriority()) {
                 savedValues.add(value);
-                savedPriority = distanceSq;
+                context.savedPriority = distanceSq;
               } else {
                 savedValues.clear();
               }
@@ -399,9 +639,9 @@ public class RTree implements SpatialIndex {
             
             // if the saved values have the same distance as the
             // next one in the tree, add them back in.
-            if (savedValues.size() > 0 && savedPriority == distanceQueue.getPriority()) {
+            if (savedValues.size() > 0 && context.savedPriority == distanceQueue.getPriority()) {
               for (int svi = 0; svi < savedValues.size(); svi++) {
-                distanceQueue.insert(savedValues.get(svi), savedPriority);
+                distanceQueue.insert(savedValues.get(svi), context.savedPriority);
               }
               savedValues.clear();
             }
@@ -433,11 +673,18 @@ public class RTree implements SpatialIndex {
     // return exactly the same items as the the original version (nearestN_orig), in particular,
     // more than N items will be returned if items N and N+x have the
     // same priority. 
-    createNearestNDistanceQueue(p, count, furthestDistance);
-   
-    while (distanceQueue.size() > 0) {
-      v.execute(distanceQueue.getValue());
-      distanceQueue.pop();
+    SearchContext context = SearchContext.acquire();
+    try {
+      createNearestNDistanceQueue(p, count, furthestDistance, context);
+     
+      PriorityQueue distanceQueue = context.distanceQueue;
+      while (distanceQueue.size() > 0) {
+        v.execute(distanceQueue.getValue());
+        distanceQueue.pop();
+      }
+    } finally {
+      context.distanceQueue.reset();
+      context.release();
     }
   }
   
@@ -445,14 +692,21 @@ public class RTree implements SpatialIndex {
    * @see com.infomatiq.jsi.SpatialIndex#nearestN(Point, TLongProcedure, int, float)
    */
   public void nearestN(Point p, TLongProcedure v, int count, float furthestDistance) {
-    createNearestNDistanceQueue(p, count, furthestDistance);
-    
-    distanceQueue.setSortOrder(PriorityQueue.SORT_ORDER_ASCENDING);
-    
-    while (distanceQueue.size() > 0) {
-      v.execute(distanceQueue.getValue());
-      distanceQueue.pop();
-    }  
+    SearchContext context = SearchContext.acquire();
+    try {
+      createNearestNDistanceQueue(p, count, furthestDistance, context);
+      
+      PriorityQueue distanceQueue = context.distanceQueue;
+      distanceQueue.setSortOrder(PriorityQueue.SORT_ORDER_ASCENDING);
+      
+      while (distanceQueue.size() > 0) {
+        v.execute(distanceQueue.getValue());
+        distanceQueue.pop();
+      }  
+    } finally {
+      context.distanceQueue.reset();
+      context.release();
+    }
   }
     
   /**
@@ -467,6 +721,19 @@ public class RTree implements SpatialIndex {
       return;
     }
     
+    SearchContext context = SearchContext.acquire();
+    try {
+      nearestN_orig(p, v, count, furthestDistance, context);
+    } finally {
+      context.release();
+    }
+  }
+  
+  private void nearestN_orig(Point p, TLongProcedure v, int count, float furthestDistance, SearchContext context) {
+    TLongStack parents = context.parents;
+    TIntStack parentsEntry = context.parentsEntry;
+    SortedList nearestNIds = context.nearestNIds;
+    
     parents.reset();
     parents.push(rootNodeId);
     
@@ -535,14 +802,27 @@ public class RTree implements SpatialIndex {
    * @see com.infomatiq.jsi.SpatialIndex#intersects(Rectangle, TLongProcedure)
    */
   public void intersects(Rectangle r, TLongProcedure v) {
-    Node rootNode = getNode(rootNodeId);
-    intersects(r, v, rootNode);
+    SearchContext context = SearchContext.acquire();
+    try {
+      intersects(r, v, context);
+    } finally {
+      context.release();
+    }
   }
 
   /**
    * @see com.infomatiq.jsi.SpatialIndex#contains(Rectangle, TLongProcedure)
    */
   public void contains(Rectangle r, TLongProcedure v) {
+    SearchContext context = SearchContext.acquire();
+    try {
+      contains(r, v, context.parents, context.parentsEntry);
+    } finally {
+      context.release();
+    }
+  }
+  
+  private void contains(Rectangle r, TLongProcedure v, TLongStack parents, TIntStack parentsEntry) {
     // find all rectangles in the tree that are contained by the passed rectangle
     // written to be non-recursive (should model other searches on this?)
         
@@ -671,6 +951,10 @@ public class RTree implements SpatialIndex {
    * @return new node object.
    */
   private Node splitNode(Node n, float newRectMinX, float newRectMinY, float newRectMaxX, float newRectMaxY, long newId) {
+    if (insertion == Insertion.RSTAR) {
+      return splitNodeRStar(n, newRectMinX, newRectMinY, newRectMaxX, newRectMaxY, newId);
+    }
+    
     // [Pick first entry for each group] Apply algorithm pickSeeds to 
     // choose two entries to be the first elements of the groups. Assign
     // each to a group.
@@ -689,7 +973,7 @@ public class RTree implements SpatialIndex {
     System.arraycopy(initialEntryStatus, 0, entryStatus, 0, maxNodeEntries);
     
     Node newNode = null;
-    newNode = new Node(getNextNodeId(), n.level, maxNodeEntries);
+    newNode = createNode(getNextNodeId(), n.level);
     nodeMap.put(newNode.nodeId, newNode);
     
     pickSeeds(n, newRectMinX, newRectMinY, newRectMaxX, newRectMaxY, newId, newNode); // this also sets the entryCount to 1
@@ -910,6 +1194,7 @@ public class RTree implements SpatialIndex {
       n.entriesMinY[highestLowIndex] = newRectMinY;
       n.entriesMaxX[highestLowIndex] = newRectMaxX;
       n.entriesMaxY[highestLowIndex] = newRectMaxY;
+      n.updateUnitVector(highestLowIndex);
       
       n.ids[highestLowIndex] = newId;
     }
@@ -1002,61 +1287,345 @@ public class RTree implements SpatialIndex {
   }
 
   /**
-   * Recursively searches the tree for the nearest entry. Other queries
+   * Copies the entries of a full node and a new entry into the overflow arrays.
+   * 
+   * @return the number of entries copied
+   */
+  private int collectOverflow(Node n, float newRectMinX, float newRectMinY, float newRectMaxX, float newRectMaxY, long newId) {
+    int count = n.entryCount;
+    System.arraycopy(n.entriesMinX, 0, overflowMinX, 0, count);
+    System.arraycopy(n.entriesMinY, 0, overflowMinY, 0, count);
+    System.arraycopy(n.entriesMaxX, 0, overflowMaxX, 0, count);
+    System.arraycopy(n.entriesMaxY, 0, overflowMaxY, 0, count);
+    System.arraycopy(n.ids, 0, overflowIds, 0, count);
+    overflowMinX[count] = newRectMinX;
+    overflowMinY[count] = newRectMinY;
+    overflowMaxX[count] = newRectMaxX;
+    overflowMaxY[count] = newRectMaxY;
+    overflowIds[count] = newId;
+    return count + 1;
+  }
+  
+  /**
+   * R* forced reinsertion. Keeps the entries of an overflowing node closest to 
+   * its centre and inserts the others again at the same level, so that they may
+   * find a better place in the tree. Relies on the parents stacks filled by the 
+   * chooseNode() call that found the node.
+   */
+  private void reinsert(Node n, float newRectMinX, float newRectMinY, float newRectMaxX, float newRectMaxY, long newId) {
+    int count = collectOverflow(n, newRectMinX, newRectMinY, newRectMaxX, newRectMaxY, newId);
+    float centreX = (Math.min(n.mbrMinX, newRectMinX) + Math.max(n.mbrMaxX, newRectMaxX)) / 2;
+    float centreY = (Math.min(n.mbrMinY, newRectMinY) + Math.max(n.mbrMaxY, newRectMaxY)) / 2;
+    
+    // RI1-RI2 sort the entries by the distance of their centres from the centre of the node
+    for (int i = 0; i < count; i++) {
+      float dx = (overflowMinX[i] + overflowMaxX[i]) / 2 - centreX;
+      float dy = (overflowMinY[i] + overflowMaxY[i]) / 2 - centreY;
+      overflowKeys[i] = ((long) BulkLoader.sortableBits(dx * dx + dy * dy) << 32) | i;
+    }
+    Arrays.sort(overflowKeys, 0, count);
+    
+    // RI3 keep the closest entries in the node
+    int reinsertCount = Math.max(1, (int) (maxNodeEntries * REINSERT_FRACTION));
+    int keep = count - reinsertCount;
+    n.reset(n.nodeId, n.level);
+    for (int k = 0; k < keep; k++) {
+      int i = (int) overflowKeys[k];
+      n.addEntry(overflowMinX[i], overflowMinY[i], overflowMaxX[i], overflowMaxY[i], overflowIds[i]);
+    }
+    for (int k = keep; k < maxNodeEntries; k++) {
+      n.ids[k] = -1;
+    }
+    
+    // the overflow arrays are reused by the insertions below
+    float[] minX = new float[reinsertCount];
+    float[] minY = new float[reinsertCount];
+    float[] maxX = new float[reinsertCount];
+    float[] maxY = new float[reinsertCount];
+    long[] ids = new long[reinsertCount];
+    for (int k = 0; k < reinsertCount; k++) {
+      int i = (int) overflowKeys[keep + k];
+      minX[k] = overflowMinX[i];
+      minY[k] = overflowMinY[i];
+      maxX[k] = overflowMaxX[i];
+      maxY[k] = overflowMaxY[i];
+      ids[k] = overflowIds[i];
+    }
+    
+    // the node may have shrunk
+    adjustTree(n, null);
+    
+    // RI4 reinsert the removed entries, closest first
+    for (int k = 0; k < reinsertCount; k++) {
+      add(minX[k], minY[k], maxX[k], maxY[k], ids[k], n.level);
+    }
+  }
+  
+  /**
+   * R* split. Chooses the axis along which the possible distributions of the 
+   * sorted entries have the smallest total margin, then the distribution along
+   * that axis with the least overlap between the two groups, resolving ties by
+   * least total area.
+   * 
+   * @return new node object.
+   */
+  private Node splitNodeRStar(Node n, float newRectMinX, float newRectMinY, float newRectMaxX, float newRectMaxY, long newId) {
+    int count = collectOverflow(n, newRectMinX, newRectMinY, newRectMaxX, newRectMaxY, newId);
+    
+    // S1 [ChooseSplitAxis] 
+    float marginX = sortForSplit(count, overflowMinX, overflowMaxX, false) + sortForSplit(count, overflowMinX, overflowMaxX, true);
+    float marginY = sortForSplit(count, overflowMinY, overflowMaxY, false) + sortForSplit(count, overflowMinY, overflowMaxY, true);
+    boolean alongX = marginX <= marginY;
+    float[] axisMin = alongX ? overflowMinX : overflowMinY;
+    float[] axisMax = alongX ? overflowMaxX : overflowMaxY;
+    
+    // S2 [ChooseSplitIndex] try both sort orders along the chosen axis
+    float bestOverlap = Float.POSITIVE_INFINITY;
+    float bestArea = Float.POSITIVE_INFINITY;
+    boolean bestByMax = false;
+    int bestSplit = minNodeEntries;
+    for (int byMax = 0; byMax < 2; byMax++) {
+      sortForSplit(count, axisMin, axisMax, byMax == 1);
+      for (int split = minNodeEntries; split <= count - minNodeEntries; split++) {
+        int at = 4 * split;
+        float overlap = intersectionArea(headMBRs[at], headMBRs[at + 1], headMBRs[at + 2], headMBRs[at + 3], 
+                                         tailMBRs[at], tailMBRs[at + 1], tailMBRs[at + 2], tailMBRs[at + 3]);
+        float area = Rectangle.area(headMBRs[at], headMBRs[at + 1], headMBRs[at + 2], headMBRs[at + 3]) 
+                   + Rectangle.area(tailMBRs[at], tailMBRs[at + 1], tailMBRs[at + 2], tailMBRs[at + 3]);
+        if (overlap < bestOverlap || (overlap == bestOverlap && area < bestArea)) {
+          bestOverlap = overlap;
+          bestArea = area;
+          bestByMax = byMax == 1;
+          bestSplit = split;
+        }
+      }
+    }
+    
+    // S3 distribute the entries into the two groups
+    sortForSplit(count, axisMin, axisMax, bestByMax);
+    Node newNode = createNode(getNextNodeId(), n.level);
+    nodeMap.put(newNode.nodeId, newNode);
+    n.reset(n.nodeId, n.level);
+    for (int k = 0; k < count; k++) {
+      int i = (int) overflowKeys[k];
+      Node group = k < bestSplit ? n : newNode;
+      group.addEntry(overflowMinX[i], overflowMinY[i], overflowMaxX[i], overflowMaxY[i], overflowIds[i]);
+    }
+    for (int k = bestSplit; k < maxNodeEntries; k++) {
+      n.ids[k] = -1;
+    }
+    
+    if (log.isDebugEnabled()) {
+      log.debug("Node " + n.nodeId + " split along " + (alongX ? "x" : "y") + " into " + n.entryCount + " and " + newNode.entryCount + " entries");
+    }
+    return newNode;
+  }
+  
+  /**
+   * Orders the overflow entries by their lower or upper coordinate along one 
+   * axis, leaving the order in overflowKeys and the rectangles of the groups 
+   * in headMBRs and tailMBRs.
+   * 
+   * @return the sum of the margins of all allowed distributions in that order
+   */
+  private float sortForSplit(int count, float[] axisMin, float[] axisMax, boolean byMax) {
+    for (int i = 0; i < count; i++) {
+      overflowKeys[i] = ((long) BulkLoader.sortableBits(byMax ? axisMax[i] : axisMin[i]) << 32) | i;
+    }
+    Arrays.sort(overflowKeys, 0, count);
+    
+    groupMBRs(count);
+    
+    float margin = 0;
+    for (int split = minNodeEntries; split <= count - minNodeEntries; split++) {
+      int at = 4 * split;
+      margin += (headMBRs[at + 2] - headMBRs[at]) + (headMBRs[at + 3] - headMBRs[at + 1]) 
+              + (tailMBRs[at + 2] - tailMBRs[at]) + (tailMBRs[at + 3] - tailMBRs[at + 1]);
+    }
+    return margin;
+  }
+  
+  /**
+   * Fills headMBRs and tailMBRs for the order in overflowKeys, growing each 
+   * rectangle by one entry from the previous one, so that all distributions 
+   * of the entries cost one pass in each direction.
+   */
+  private void groupMBRs(int count) {
+    headMBRs[0] = headMBRs[1] = tailMBRs[4 * count] = tailMBRs[4 * count + 1] = Float.MAX_VALUE;
+    headMBRs[2] = headMBRs[3] = tailMBRs[4 * count + 2] = tailMBRs[4 * count + 3] = -Float.MAX_VALUE;
+    for (int k = 0; k < count; k++) {
+      int i = (int) overflowKeys[k];
+      int at = 4 * (k + 1);
+      headMBRs[at] = Math.min(headMBRs[at - 4], overflowMinX[i]);
+      headMBRs[at + 1] = Math.min(headMBRs[at - 3], overflowMinY[i]);
+      headMBRs[at + 2] = Math.max(headMBRs[at - 2], overflowMaxX[i]);
+      headMBRs[at + 3] = Math.max(headMBRs[at - 1], overflowMaxY[i]);
+    }
+    for (int k = count - 1; k >= 0; k--) {
+      int i = (int) overflowKeys[k];
+      int at = 4 * k;
+      tailMBRs[at] = Math.min(tailMBRs[at + 4], overflowMinX[i]);
+      tailMBRs[at + 1] = Math.min(tailMBRs[at + 5], overflowMinY[i]);
+      tailMBRs[at + 2] = Math.max(tailMBRs[at + 6], overflowMaxX[i]);
+      tailMBRs[at + 3] = Math.max(tailMBRs[at + 7], overflowMaxY[i]);
+    }
+  }
+  
+  /**
+   * Chooses the entry of a node whose rectangle, enlarged to include the new 
+   * one, overlaps the least more with the other entries. Resolves ties by 
+   * least area enlargement, then by smaller area.
+   */
+  private int leastOverlapEnlargement(Node n, float minX, float minY, float maxX, float maxY) {
+    int index = 0;
+    float leastOverlap = Float.POSITIVE_INFINITY;
+    float leastEnlargement = Float.POSITIVE_INFINITY;
+    float leastArea = Float.POSITIVE_INFINITY;
+    for (int i = 0; i < n.entryCount; i++) {
+      float enlargedMinX = Math.min(n.entriesMinX[i], minX);
+      float enlargedMinY = Math.min(n.entriesMinY[i], minY);
+      float enlargedMaxX = Math.max(n.entriesMaxX[i], maxX);
+      float enlargedMaxY = Math.max(n.entriesMaxY[i], maxY);
+      float overlap = 0;
+      for (int j = 0; j < n.entryCount; j++) {
+        if (j != i) {
+          overlap += intersectionArea(enlargedMinX, enlargedMinY, enlargedMaxX, enlargedMaxY, 
+                                      n.entriesMinX[j], n.entriesMinY[j], n.entriesMaxX[j], n.entriesMaxY[j])
+                   - intersectionArea(n.entriesMinX[i], n.entriesMinY[i], n.entriesMaxX[i], n.entriesMaxY[i], 
+                                      n.entriesMinX[j], n.entriesMinY[j], n.entriesMaxX[j], n.entriesMaxY[j]);
+        }
+      }
+      float area = Rectangle.area(n.entriesMinX[i], n.entriesMinY[i], n.entriesMaxX[i], n.entriesMaxY[i]);
+      float enlargement = Rectangle.area(enlargedMinX, enlargedMinY, enlargedMaxX, enlargedMaxY) - area;
+      if (overlap < leastOverlap ||
+          (overlap == leastOverlap && (enlargement < leastEnlargement ||
+                                       (enlargement == leastEnlargement && area < leastArea)))) {
+        index = i;
+        leastOverlap = overlap;
+        leastEnlargement = enlargement;
+        leastArea = area;
+      }
+    }
+    return index;
+  }
+  
+  private static float intersectionArea(float r1MinX, float r1MinY, float r1MaxX, float r1MaxY,
+                                        float r2MinX, float r2MinY, float r2MaxX, float r2MaxY) {
+    float width = Math.min(r1MaxX, r2MaxX) - Math.max(r1MinX, r2MinX);
+    float height = Math.min(r1MaxY, r2MaxY) - Math.max(r1MinY, r2MinY);
+    return width > 0 && height > 0 ? width * height : 0;
+  }
+
+  /**
+   * Searches the tree for the nearest entry. Other queries
    * call execute() on an IntProcedure when a matching entry is found; 
    * however nearest() must store the entry Ids as it searches the tree,
    * in case a nearer entry is found.
-   * Uses the member variable nearestIds to store the nearest
-   * entry IDs.
-   * 
-   * TODO rewrite this to be non-recursive?
+   * Stores the nearest entry IDs in the passed list. Visits the nodes
+   * in the same order as a recursive search would, keeping the path
+   * from the root on the stacks of the context.
    */
-  private float nearest(Point p, Node n, float furthestDistanceSq) {
-    for (int i = 0; i < n.entryCount; i++) {
-      float tempDistanceSq = Rectangle.distanceSq(n.entriesMinX[i], n.entriesMinY[i], n.entriesMaxX[i], n.entriesMaxY[i], p.x, p.y);
-      if (n.isLeaf()) { // for leaves, the distance is an actual nearest distance 
-        if (tempDistanceSq < furthestDistanceSq) {
-          furthestDistanceSq = tempDistanceSq;
-          nearestIds.clear();
+  private void nearest(Point p, float furthestDistanceSq, SearchContext context) {
+    TLongStack parents = context.parents;
+    TIntStack parentsEntry = context.parentsEntry;
+    TLongArrayList nearestIds = context.nearestIds;
+    
+    parents.reset();
+    parents.push(rootNodeId);
+    
+    parentsEntry.reset();
+    parentsEntry.push(-1);
+    
+    while (parents.size() > 0) {
+      Node n = getNode(parents.peek());
+      int startIndex = parentsEntry.peek() + 1;
+      
+      if (!n.isLeaf()) {
+        // only go into index nodes that potentially could have
+        // a rectangle nearer than actualNearest
+        boolean near = false;
+        for (int i = startIndex; i < n.entryCount; i++) {
+          if (Rectangle.distanceSq(n.entriesMinX[i], n.entriesMinY[i], 
+                                   n.entriesMaxX[i], n.entriesMaxY[i], 
+                                   p.x, p.y) <= furthestDistanceSq) {
+            parents.push(n.ids[i]);
+            parentsEntry.pop();
+            parentsEntry.push(i); // this becomes the start index when the child has been searched
+            parentsEntry.push(-1);
+            near = true;
+            break; // ie go to next iteration of while()
+          }
+        }
+        if (near) {
+          continue;
+        }
+      } else {
+        // for leaves, the distance is an actual nearest distance 
+        for (int i = 0; i < n.entryCount; i++) {
+          float tempDistanceSq = Rectangle.distanceSq(n.entriesMinX[i], n.entriesMinY[i], n.entriesMaxX[i], n.entriesMaxY[i], p.x, p.y);
+          if (tempDistanceSq < furthestDistanceSq) {
+            furthestDistanceSq = tempDistanceSq;
+            nearestIds.clear();
+          }
+          if (tempDistanceSq <= furthestDistanceSq) {
+            nearestIds.add(n.ids[i]);
+          }     
         }
-        if (tempDistanceSq <= furthestDistanceSq) {
-          nearestIds.add(n.ids[i]);
-        }     
-      } else { // for index nodes, only go into them if they potentially could have
-               // a rectangle nearer than actualNearest
-         if (tempDistanceSq <= furthestDistanceSq) {
-           // search the child node
-           furthestDistanceSq = nearest(p, getNode(n.ids[i]), furthestDistanceSq);
-         }
       }
+      parents.pop();
+      parentsEntry.pop();
     }
-    return furthestDistanceSq;
   }
   
   /** 
-   * Recursively searches the tree for all intersecting entries.
+   * Searches the tree for all intersecting entries, keeping the
+   * path from the root on the stacks of the context.
    * Immediately calls execute() on the passed IntProcedure when 
    * a matching entry is found.
-   * 
-   * TODO rewrite this to be non-recursive? Make sure it
-   * doesn't slow it down.
    */
-  private boolean intersects(Rectangle r, TLongProcedure v, Node n) {
-    for (int i = 0; i < n.entryCount; i++) {
-      if (Rectangle.intersects(r.minX, r.minY, r.maxX, r.maxY, n.entriesMinX[i], n.entriesMinY[i], n.entriesMaxX[i], n.entriesMaxY[i])) {
-        if (n.isLeaf()) {
-          if (!v.execute(n.ids[i])) {
-            return false;
-          }
-        } else {
-          Node childNode = getNode(n.ids[i]);
-          if (!intersects(r, v, childNode)) {
-            return false;
+  private void intersects(Rectangle r, TLongProcedure v, SearchContext context) {
+    TLongStack parents = context.parents;
+    TIntStack parentsEntry = context.parentsEntry;
+    
+    parents.reset();
+    parents.push(rootNodeId);
+    
+    parentsEntry.reset();
+    parentsEntry.push(-1);
+    
+    while (parents.size() > 0) {
+      Node n = getNode(parents.peek());
+      int startIndex = parentsEntry.peek() + 1;
+      
+      if (!n.isLeaf()) {
+        boolean intersects = false;
+        for (int i = startIndex; i < n.entryCount; i++) {
+          if (Rectangle.intersects(r.minX, r.minY, r.maxX, r.maxY, 
+                                   n.entriesMinX[i], n.entriesMinY[i], n.entriesMaxX[i], n.entriesMaxY[i])) {
+            parents.push(n.ids[i]);
+            parentsEntry.pop();
+            parentsEntry.push(i); // this becomes the start index when the child has been searched
+            parentsEntry.push(-1);
+            intersects = true;
+            break; // ie go to next iteration of while()
           }
         }
+        if (intersects) {
+          continue;
+        }
+      } else {
+        for (int i = 0; i < n.entryCount; i++) {
+          if (Rectangle.intersects(r.minX, r.minY, r.maxX, r.maxY, 
+                                   n.entriesMinX[i], n.entriesMinY[i], n.entriesMaxX[i], n.entriesMaxY[i])) {
+            if (!v.execute(n.ids[i])) {
+              return;
+            }
+          } 
+        }                       
       }
+      parents.pop();
+      parentsEntry.pop();  
     }
-    return true;
   }
 
   /**
@@ -1116,6 +1685,7 @@ public class RTree implements SpatialIndex {
     while (eliminatedNodeIds.size() > 0) {
       Node e = getNode(eliminatedNodeIds.pop());
       for (int j = 0; j < e.entryCount; j++) {
+        reinsertedLevels = 0;
         add(e.entriesMinX[j], e.entriesMinY[j], e.entriesMaxX[j], e.entriesMaxY[j], e.ids[j], e.level); 
         e.ids[j] = -1;
       }
@@ -1143,6 +1713,16 @@ public class RTree implements SpatialIndex {
         return n;
       }
       
+      if (insertion == Insertion.RSTAR && n.level == level + 1) {
+        // R* [Choose subtree] If the children of N are at the desired level, 
+        // choose the entry whose rectangle needs least overlap enlargement
+        int index = leastOverlapEnlargement(n, minX, minY, maxX, maxY);
+        parents.push(n.nodeId);
+        parentsEntry.push(index);
+        n = getNode(n.ids[index]);
+        continue;
+      }
+      
       // CL3 [Choose subtree] If N is not at the desired level, let F be the entry in N 
       // whose rectangle FI needs least enlargement to include EI. Resolve
       // ties by choosing the entry with the rectangle of smaller area.
@@ -1243,7 +1823,7 @@ public class RTree implements SpatialIndex {
    * @return false if an inconsistency is detected, true otherwise.
    */
   public boolean checkConsistency() {
-    return checkConsistency(rootNodeId, treeHeight, null);
+    return checkConsistency(getRootNodeId(), getTreeHeight(), null);
   }
   
   private boolean checkConsistency(long nodeId, int expectedLevel, Rectangle expectedMBR) {
@@ -1258,7 +1838,7 @@ public class RTree implements SpatialIndex {
     
     // if tree is empty, then there should be exactly one node, at level 1
     // TODO: also check the MBR is as for a new node
-    if (nodeId == rootNodeId && size() == 0) {
+    if (nodeId == getRootNodeId() && size() == 0) {
       if (n.level != 1) {
         log.error("Error: tree is empty but root node is not at level 1");
         return false;
@@ -7,198 +7,708 @@ import com.ontotext.trree.plugin.geo.Utils;
 import gnu.trove.TLongObjectProcedure;
 import gnu.trove.TLongProcedure;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.io.EOFException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Properties;
+import java.util.function.LongPredicate;
 
-import org.eclipse.collections.impl.map.mutable.primitive.LongObjectHashMap;
+import org.eclipse.collections.impl.list.mutable.primitive.LongArrayList;
 
 /**
  * An extension to RTree implementation from jsi that invokes the matching node with the rectangle instead of
  * only the id
+ * <p>
+ * Besides the properties of {@link RTree#init(Properties)} it supports
+ * <ul>
+ * <li>NodeStorage</li> Heap (the default) keeps the nodes as objects on the heap. OffHeap keeps them as
+ * records in direct buffers: bulk loads are packed straight into them and an incrementally built tree is
+ * moved there by {@link #moveOffHeap()}.
+ * <li>UnitVectors</li> If true, leaves holding only points also keep the 3D unit vector of each point,
+ * taking x as the latitude and y as the longitude in degrees, so that great-circle distances can be
+ * compared without trigonometry at query time. False by default.
+ * </ul>
+ * Off-heap nodes and the nodes of a tree mapped from a file are read-only, the first modification of such a
+ * tree moves all its nodes onto the heap.
  *
  * @author Damyan
  */
 public class RTreeWithCoords extends RTree {
 	final static int fileMarker = 0xBAD0BAD0;
+	// version of the file layout, bump when it changes
+	final static int FILE_VERSION = 5;
+	// the oldest version that can still be read, version 4 files just can not hold unit vectors
+	private final static int OLDEST_FILE_VERSION = 4;
+	final static int HEADER_SIZE = 64;
+	// set in the header of a file whose leaves hold only points
+	private final static int FLAG_POINT_LEAVES = 1;
+	// set in the header of a file whose point leaves hold the unit vectors of the points
+	private final static int FLAG_UNIT_VECTORS = 2;
+	private final static int WRITE_BUFFER_SIZE = 1 << 20;
+
 	private boolean isInViewMode = false;
 
 	private int size = 0;
+	private int treeHeight = 0;
 	private long rootNodeId = 0;
 
-	private LongObjectHashMap<Node> nodeMap = new LongObjectHashMap<>();
+	private boolean offHeap = false;
+
+	// the nodes of a tree loaded from a file or moved off the heap
+	private NodeStore store = null;
+
+	@Override
+	public void init(Properties props) {
+		// before the root leaf is created
+		unitVectors = Boolean.parseBoolean(props.getProperty("UnitVectors", "false").trim());
+		super.init(props);
+		offHeap = "OffHeap".equalsIgnoreCase(props.getProperty("NodeStorage", "Heap"));
+	}
+
+	/**
+	 * Packs the entries collected since startBulkLoad(), directly into off-heap storage if so configured.
+	 */
+	@Override
+	public void finishBulkLoad() {
+		if (!offHeap) {
+			super.finishBulkLoad();
+			return;
+		}
+		BulkLoader loader = takeBulkLoader();
+		int count = loader.size();
+		if (count == 0) {
+			moveOffHeap();
+			return;
+		}
+		final NodeStore packed = NodeStore.allocate(maxNodeEntries, hasPointLeaves(), hasUnitVectors());
+		final Node scratch = new Node(0, 1, maxNodeEntries);
+		rootNodeId = loader.pack(new BulkLoader.NodeFactory() {
+			@Override
+			public Node create(int level) {
+				scratch.reset(packed.getNodeCount(), level);
+				return scratch;
+			}
+
+			@Override
+			public long complete(Node n) {
+				return packed.append(n);
+			}
+		}, maxNodeEntries, minNodeEntries);
+		treeHeight = loader.getHeight();
+		size = count;
+		useStore(packed);
+	}
+
+	/**
+	 * Moves all nodes of the tree into off-heap storage, until it is modified again.
+	 */
+	public void moveOffHeap() {
+		if (isInViewMode()) {
+			return;
+		}
+		NodeStore moved = NodeStore.allocate(maxNodeEntries, hasPointLeaves(), hasUnitVectors());
+		// children are stored before their parents, so that the parent can refer to their record numbers
+		rootNodeId = moveOffHeap(super.getNode(super.getRootNodeId()), moved);
+		treeHeight = super.getNode(super.getRootNodeId()).level;
+		size = super.size();
+		useStore(moved);
+	}
+
+	private long moveOffHeap(Node n, NodeStore moved) {
+		if (n.isLeaf()) {
+			return moved.append(n);
+		}
+		Node copy = new Node(n.nodeId, n.level, maxNodeEntries);
+		for (int i = 0; i < n.entryCount; i++) {
+			long child = moveOffHeap(super.getNode(n.ids[i]), moved);
+			copy.addEntry(n.entriesMinX[i], n.entriesMinY[i], n.entriesMaxX[i], n.entriesMaxY[i], child);
+		}
+		return moved.append(copy);
+	}
+
+	private void useStore(NodeStore nodes) {
+		store = nodes;
+		isInViewMode = true;
+		discardNodes();
+	}
+
+	/**
+	 * Receives the entries found by {@link #intersects(Rectangle, PointVisitor)} with their coordinates.
+	 */
+	public interface PointVisitor {
+		/**
+		 * @param x
+		 *            the x of the point, or the lowest x of an entry that is not a point
+		 * @param y
+		 *            the y of the point, or the lowest y of an entry that is not a point
+		 * @return false to stop the search
+		 */
+		boolean visit(long id, float x, float y);
+	}
+
+	/**
+	 * Like {@link #intersects(Rectangle, TLongObjectProcedure)}, but hands over the coordinates of the
+	 * entries as they are instead of a new rectangle for each one.
+	 */
+	public void intersects(Rectangle r, PointVisitor v) {
+		Cursor cursor = new Cursor(r, null);
+		while (cursor.next()) {
+			if (!v.visit(cursor.getId(), cursor.getMinX(), cursor.getMinY())) {
+				return;
+			}
+		}
+	}
 
 	/**
 	 * @see com.infomatiq.jsi.SpatialIndex#intersects(Rectangle, TLongProcedure)
 	 */
 	public void intersects(Rectangle r, TLongObjectProcedure<Rectangle> v) {
-		Node rootNode = getNode(getRootNodeId());
-		intersects(r, v, rootNode);
+		Cursor cursor = new Cursor(r, null);
+		while (cursor.next()) {
+			if (!v.execute(cursor.getId(),
+					new Rectangle(cursor.getMinX(), cursor.getMinY(), cursor.getMaxX(), cursor.getMaxY()))) {
+				return;
+			}
+		}
 	}
 
 	/**
-	 * Recursively searches the tree for all intersecting entries. Immediately calls execute() on the passed
-	 * IntProcedure when a matching entry is found.
-	 * <p>
-	 * TODO rewrite this to be non-recursive? Make sure it doesn't slow it down.
+	 * Walks the tree with a {@link Cursor}, which keeps the path to the current node on an explicit stack
+	 * and skips the tests inside subtrees lying wholly in the rectangle.
+	 *
+	 * @see com.infomatiq.jsi.SpatialIndex#intersects(Rectangle, TLongProcedure)
 	 */
-	private boolean intersects(Rectangle r, TLongObjectProcedure<Rectangle> v, Node n) {
-		for (int i = 0; i < n.entryCount; i++) {
-			if (Utils.intersects(r.minX, r.minY, r.maxX, r.maxY, n.entriesMinX[i], n.entriesMinY[i],
-					n.entriesMaxX[i], n.entriesMaxY[i])) {
-				if (n.isLeaf()) {
-					if (!v.execute(n.ids[i], new Rectangle(n.entriesMinX[i], n.entriesMinY[i],
-							n.entriesMaxX[i], n.entriesMaxY[i]))) {
-						return false;
+	@Override
+	public void intersects(Rectangle r, TLongProcedure v) {
+		Cursor cursor = new Cursor(r, null);
+		while (cursor.next()) {
+			if (!v.execute(cursor.getId())) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * The exact shape searched by a {@link Cursor}, when the rectangle it is given only bounds it.
+	 */
+	public interface Region {
+		/**
+		 * May return false for rectangles that are inside after all, but never true for one that is not.
+		 *
+		 * @return true if every point of the rectangle is in the region
+		 */
+		boolean contains(float minX, float minY, float maxX, float maxY);
+	}
+
+	/**
+	 * Creates a cursor over the leaf entries intersecting the given rectangle. The tree must not be modified
+	 * while the cursor is in use.
+	 */
+	public Cursor cursor(Rectangle r) {
+		return new Cursor(r, null);
+	}
+
+	/**
+	 * Creates a cursor over the leaf entries intersecting the given rectangle, which knows when the entries
+	 * it finds are in a region inside the rectangle, because they belong to a subtree that lies wholly in it.
+	 * The tree must not be modified while the cursor is in use.
+	 */
+	public Cursor cursor(Rectangle r, Region region) {
+		return new Cursor(r, region);
+	}
+
+	/**
+	 * Walks the tree depth-first with an explicit stack, finding one matching entry per call to
+	 * {@link #next()}, so results are available as soon as they are found and no matter how many entries
+	 * match, only one path from the root is held in memory.
+	 */
+	public class Cursor {
+		private static final int NOT_CONTAINED = Integer.MAX_VALUE;
+
+		private float minX, minY, maxX, maxY;
+		private Region region;
+		private final boolean pointLeaves;
+		// the nodes from the root down to the current one and the next entry to visit in each
+		private final Node[] path;
+		private final int[] next;
+		private final Node[] scratch;
+		private int depth;
+		private int match;
+		// the depth of the topmost node on the path lying wholly inside the rectangle or the region
+		private int containedDepth = NOT_CONTAINED;
+
+		private Cursor(Rectangle r, Region region) {
+			pointLeaves = hasPointLeaves();
+			int height = getTreeHeight();
+			path = new Node[height];
+			next = new int[height];
+			scratch = newScratch();
+			reset(r, region);
+		}
+
+		/**
+		 * Starts over with another rectangle and region, reusing the memory of the cursor, so that searching
+		 * a few rectangles one after the other allocates nothing after the first one.
+		 */
+		public void reset(Rectangle r, Region region) {
+			minX = r.minX;
+			minY = r.minY;
+			maxX = r.maxX;
+			maxY = r.maxY;
+			this.region = region;
+			path[0] = getNode(getRootNodeId(), scratch, 0);
+			next[0] = 0;
+			depth = 0;
+			containedDepth = NOT_CONTAINED;
+		}
+
+		/**
+		 * Moves to the next entry intersecting the rectangle.
+		 *
+		 * @return false once all entries were visited
+		 */
+		public boolean next() {
+			while (depth >= 0) {
+				Node n = path[depth];
+				int i = next[depth]++;
+				if (i >= n.entryCount) {
+					if (depth == containedDepth) {
+						containedDepth = NOT_CONTAINED;
+					}
+					depth--;
+				} else if (depth >= containedDepth) {
+					// inside a contained subtree every entry matches
+					if (n.isLeaf()) {
+						match = i;
+						return true;
 					}
-				} else {
-					Node childNode = getNode(n.ids[i]);
-					if (!intersects(r, v, childNode)) {
-						return false;
+					descend(n, i);
+				} else if (n.isLeaf()) {
+					if (pointLeaves ? Utils.contains(minX, minY, maxX, maxY, n.entriesMinX[i], n.entriesMinY[i])
+							: Utils.intersects(minX, minY, maxX, maxY, n.entriesMinX[i], n.entriesMinY[i],
+									n.entriesMaxX[i], n.entriesMaxY[i])) {
+						match = i;
+						return true;
+					}
+				} else if (Utils.intersects(minX, minY, maxX, maxY, n.entriesMinX[i], n.entriesMinY[i],
+						n.entriesMaxX[i], n.entriesMaxY[i])) {
+					descend(n, i);
+					if (Utils.containsRectangle(minX, minY, maxX, maxY, n.entriesMinX[i], n.entriesMinY[i],
+							n.entriesMaxX[i], n.entriesMaxY[i])
+							&& (region == null || region.contains(n.entriesMinX[i], n.entriesMinY[i],
+									n.entriesMaxX[i], n.entriesMaxY[i]))) {
+						containedDepth = depth;
 					}
 				}
 			}
+			return false;
+		}
+
+		private void descend(Node n, int i) {
+			depth++;
+			path[depth] = getNode(n.ids[i], scratch, depth);
+			next[depth] = 0;
+		}
+
+		/**
+		 * @return true if the current entry is known to be inside the region, or the rectangle when there is
+		 *         no region, without testing it
+		 */
+		public boolean isContained() {
+			return depth >= containedDepth;
+		}
+
+		public long getId() {
+			return path[depth].ids[match];
+		}
+
+		public float getMinX() {
+			return path[depth].entriesMinX[match];
+		}
+
+		public float getMinY() {
+			return path[depth].entriesMinY[match];
+		}
+
+		public float getMaxX() {
+			return path[depth].entriesMaxX[match];
+		}
+
+		public float getMaxY() {
+			return path[depth].entriesMaxY[match];
+		}
+
+		/**
+		 * @return whether the unit vector of the current entry is known
+		 */
+		public boolean hasUnitVector() {
+			return path[depth].hasUnitVectors();
+		}
+
+		public float getUnitX() {
+			return path[depth].entriesUnitX[match];
+		}
+
+		public float getUnitY() {
+			return path[depth].entriesUnitY[match];
+		}
+
+		public float getUnitZ() {
+			return path[depth].entriesUnitZ[match];
 		}
-		return true;
 	}
 
 	/**
-	 * @see com.infomatiq.jsi.SpatialIndex#intersects(Rectangle, TLongProcedure)
+	 * The distance by which {@link #nearest(Metric, int, double, LongPredicate, long[], double[])} orders the
+	 * entries.
 	 */
-	@Override
-	public void intersects(Rectangle r, TLongProcedure v) {
-		Node rootNode = getNode(getRootNodeId());
-		intersects(r, v, rootNode);
+	public interface Metric {
+		/**
+		 * @return the distance of the point
+		 */
+		double distance(float x, float y);
+
+		/**
+		 * May return less than the distance of the nearest point of the rectangle, but never more.
+		 *
+		 * @return the distance of the nearest point of the rectangle
+		 */
+		double minDistance(float minX, float minY, float maxX, float maxY);
 	}
 
 	/**
-	 * Recursively searches the tree for all intersecting entries. Immediately calls execute() on the passed
-	 * IntProcedure when a matching entry is found.
-	 * <p>
-	 * TODO rewrite this to be non-recursive? Make sure it doesn't slow it down.
+	 * Finds the entries nearest by the given metric, best first: the nodes are read in the order of their least
+	 * distance, and the search stops once no node left can hold an entry nearer than the farthest of the
+	 * nearest ones found so far, so only the nodes around the nearest entries are read.
+	 *
+	 * @param count
+	 *            the number of entries to find
+	 * @param furthestDistance
+	 *            entries farther away are not wanted
+	 * @param exclude
+	 *            the entries not to find, may be null
+	 * @param ids
+	 *            receives the ids of the entries found, the nearest first
+	 * @param distances
+	 *            receives the distances of the entries found
+	 * @return the number of entries found, no more than count
 	 */
-	private boolean intersects(Rectangle r, TLongProcedure v, Node n) {
-		for (int i = 0; i < n.entryCount; i++) {
-			if (Utils.intersects(r.minX, r.minY, r.maxX, r.maxY, n.entriesMinX[i], n.entriesMinY[i],
-					n.entriesMaxX[i], n.entriesMaxY[i])) {
-				if (n.isLeaf()) {
-					if (!v.execute(n.ids[i])) {
-						return false;
+	public int nearest(Metric metric, int count, double furthestDistance, LongPredicate exclude, long[] ids,
+			double[] distances) {
+		if (count <= 0 || size() == 0) {
+			return 0;
+		}
+		SearchContext context = SearchContext.acquire();
+		try {
+			return nearest(metric, count, furthestDistance, exclude, ids, distances, context.nearestNodes,
+					context.nearestFound);
+		} finally {
+			context.nearestNodes.clear();
+			context.nearestFound.clear();
+			context.release();
+		}
+	}
+
+	/**
+	 * @param nodes
+	 *            the nodes to read by least distance, tagged with their depth
+	 * @param found
+	 *            the nearest entries found, the farthest one on top
+	 */
+	private int nearest(Metric metric, int count, double furthestDistance, LongPredicate exclude, long[] ids,
+			double[] distances, DistanceQueue nodes, DistanceQueue found) {
+		boolean pointLeaves = hasPointLeaves();
+		Node[] scratch = newScratch();
+		double bound = furthestDistance;
+		nodes.add(getRootNodeId(), 0, 0);
+		while (!nodes.isEmpty() && nodes.headDistance() <= bound) {
+			int depth = nodes.headTag();
+			Node n = getNode(nodes.headId(), scratch, depth);
+			nodes.removeHead();
+			for (int i = 0; i < n.entryCount; i++) {
+				double distance = n.isLeaf() && pointLeaves ? metric.distance(n.entriesMinX[i], n.entriesMinY[i])
+						: metric.minDistance(n.entriesMinX[i], n.entriesMinY[i], n.entriesMaxX[i], n.entriesMaxY[i]);
+				if (distance > bound) {
+					continue;
+				}
+				if (!n.isLeaf()) {
+					nodes.add(n.ids[i], distance, depth + 1);
+				} else if (exclude == null || !exclude.test(n.ids[i])) {
+					found.add(n.ids[i], distance, 0);
+					if (found.size() > count) {
+						found.removeHead();
 					}
-				} else {
-					Node childNode = getNode(n.ids[i]);
-					if (!intersects(r, v, childNode)) {
-						return false;
+					if (found.size() == count) {
+						bound = found.headDistance();
 					}
 				}
 			}
 		}
-		return true;
+		int result = found.size();
+		for (int i = result - 1; i >= 0; i--) {
+			ids[i] = found.headId();
+			distances[i] = found.headDistance();
+			found.removeHead();
+		}
+		return result;
 	}
 
-	private boolean isInViewMode() {
-		return isInViewMode;
+	/**
+	 * Creates a cursor over the leaf entries in increasing distance by the given metric, which finds the next
+	 * entry only when asked to. The tree must not be modified while the cursor is in use.
+	 */
+	public NearestCursor nearestCursor(Metric metric) {
+		return new NearestCursor(metric);
 	}
 
-	public void save(DataOutputStream out) throws IOException {
-		//store file marker
-		out.writeInt(fileMarker);
-		//store 12 more zeros
-		out.writeInt(0);
-		out.writeInt(0);
-		out.writeInt(0);
-
-		// persist tree properties
-		out.writeInt(size());
-		out.writeLong(getRootNodeId());
-		// persist tree nodes
-		for (long id = 0; id <= getHighestUsedNodeId(); id++) {
-			Node currentNode = getNode(id);
-			if (currentNode != null) {
-				// persist node ID
-				out.writeLong(id);
-				// persist the node properties
-				out.writeInt(currentNode.ids.length);
-				out.writeInt(currentNode.entryCount);
-				out.writeInt(currentNode.level);
-				// persist the node surrounding rectangle
-				out.writeFloat(currentNode.mbrMinX);
-				out.writeFloat(currentNode.mbrMinY);
-				out.writeFloat(currentNode.mbrMaxX);
-				out.writeFloat(currentNode.mbrMaxY);
-
-				// persist the node data
-				for (int entry = 0; entry < currentNode.entryCount; entry++) {
-					out.writeLong(currentNode.ids[entry]);
-					out.writeFloat(currentNode.entriesMinX[entry]);
-					out.writeFloat(currentNode.entriesMinY[entry]);
-					out.writeFloat(currentNode.entriesMaxX[entry]);
-					out.writeFloat(currentNode.entriesMaxY[entry]);
+	/**
+	 * Browses the entries by distance, as in Hjaltason and Samet, "Distance browsing in spatial databases": a
+	 * single queue holds both the nodes found so far, by the least distance of their rectangles, and the leaf
+	 * entries, by their distances. An entry reaches the head of the queue only once no node left in it can
+	 * hold a nearer one, so each call to {@link #next()} reads just the nodes needed to be sure of the next
+	 * entry, and neither the number of entries nor their distance has to be known up front.
+	 */
+	public class NearestCursor {
+		// the tag of the leaf entries in the queue, the nodes are tagged with their depth
+		private static final int ENTRY = -1;
+
+		private final Metric metric;
+		private final boolean pointLeaves;
+		private final Node[] scratch;
+		private final DistanceQueue queue = new DistanceQueue(true);
+		private long id;
+		private double distance;
+
+		private NearestCursor(Metric metric) {
+			this.metric = metric;
+			pointLeaves = hasPointLeaves();
+			scratch = newScratch();
+			if (size() > 0) {
+				queue.add(getRootNodeId(), 0, 0);
+			}
+		}
+
+		/**
+		 * Moves to the next nearest entry.
+		 *
+		 * @return false once all entries were visited
+		 */
+		public boolean next() {
+			while (!queue.isEmpty()) {
+				int depth = queue.headTag();
+				if (depth == ENTRY) {
+					id = queue.headId();
+					distance = queue.headDistance();
+					queue.removeHead();
+					return true;
+				}
+				Node n = getNode(queue.headId(), scratch, depth);
+				queue.removeHead();
+				for (int i = 0; i < n.entryCount; i++) {
+					if (n.isLeaf() && pointLeaves) {
+						queue.add(n.ids[i], metric.distance(n.entriesMinX[i], n.entriesMinY[i]), ENTRY);
+					} else {
+						queue.add(n.ids[i], metric.minDistance(n.entriesMinX[i], n.entriesMinY[i], n.entriesMaxX[i],
+								n.entriesMaxY[i]), n.isLeaf() ? ENTRY : depth + 1);
+					}
 				}
 			}
+			return false;
+		}
+
+		public long getId() {
+			return id;
+		}
+
+		/**
+		 * @return the distance of the current entry, the least distance of its rectangle unless it is a point
+		 */
+		public double getDistance() {
+			return distance;
 		}
 	}
 
-	public void load(DataInputStream in) throws IOException {
-		isInViewMode = true;
+	private boolean isInViewMode() {
+		return isInViewMode;
+	}
 
-		// read the filemarker
-		int marker = in.readInt();
-		if (marker != fileMarker) {
-			throw new IOException("bad index or old version detected. please reindex!");
+	/**
+	 * Writes the tree to a file in a fixed layout that can be mapped back into memory with
+	 * {@link #load(FileChannel)}. The branch nodes are stored breadth-first, so a branch root is always the
+	 * first record, followed by the leaves in the order they are referenced.
+	 */
+	public void save(FileChannel channel) throws IOException {
+		if (isInViewMode()) {
+			// the records can be written as they are
+			channel.position(HEADER_SIZE);
+			store.writeTo(channel);
+			writeHeader(channel, getRootNodeId(), store.getBranchCount(), store.getLeafCount());
+			return;
 		}
-		// read 12bytes more (enough for future extentions)
-		in.readInt();
-		in.readInt();
-		in.readInt();
-		// load tree properties
-		size = in.readInt();
-		rootNodeId = in.readLong();
-
-		// load tree nodes
-		while (true) {
-			long id;
-			int maxNodeEntries, entryCount, level;
-
-			// attempt to read another node
-			try {
-				id = in.readLong();
-			} catch (EOFException eof) {
-				break;
+
+		// list the nodes breadth-first, the record number of a node is its position in the list
+		LongArrayList branches = new LongArrayList();
+		LongArrayList leaves = new LongArrayList();
+		(getTreeHeight() == 1 ? leaves : branches).add(getRootNodeId());
+		for (int record = 0; record < branches.size(); record++) {
+			Node n = getNode(branches.get(record));
+			LongArrayList children = n.level == 2 ? leaves : branches;
+			for (int i = 0; i < n.entryCount; i++) {
+				children.add(n.ids[i]);
 			}
+		}
 
-			maxNodeEntries = in.readInt();
-			entryCount = in.readInt();
-			level = in.readInt();
-
-			Node currentNode = new Node(id, level, maxNodeEntries);
-			currentNode.entryCount = entryCount;
-
-			// restore the node surrounding rectangle
-			currentNode.mbrMinX = in.readFloat();
-			currentNode.mbrMinY = in.readFloat();
-			currentNode.mbrMaxX = in.readFloat();
-			currentNode.mbrMaxY = in.readFloat();
-
-			// restore the node data
-			for (int entry = 0; entry < currentNode.entryCount; entry++) {
-				currentNode.ids[entry] = in.readLong();
-				currentNode.entriesMinX[entry] = in.readFloat();
-				currentNode.entriesMinY[entry] = in.readFloat();
-				currentNode.entriesMaxX[entry] = in.readFloat();
-				currentNode.entriesMaxY[entry] = in.readFloat();
+		ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE).order(NodeStore.BYTE_ORDER);
+		long[] childIds = new long[maxNodeEntries];
+		boolean pointLeaves = hasPointLeaves();
+		boolean unitVectors = hasUnitVectors();
+		long nextBranch = 1;
+		long nextLeaf = 0;
+
+		channel.position(HEADER_SIZE);
+		for (int record = 0; record < branches.size(); record++) {
+			Node n = getNode(branches.get(record));
+			for (int i = 0; i < n.entryCount; i++) {
+				childIds[i] = n.level == 2 ? NodeStore.leafId(nextLeaf++) : NodeStore.branchId(nextBranch++);
+			}
+			if (buffer.remaining() < NodeStore.maxRecordSize(maxNodeEntries)) {
+				writeFully(channel, buffer);
+			}
+			NodeStore.writeRecord(buffer, n, childIds, maxNodeEntries, pointLeaves, unitVectors);
+		}
+		for (int record = 0; record < leaves.size(); record++) {
+			if (buffer.remaining() < NodeStore.maxRecordSize(maxNodeEntries)) {
+				writeFully(channel, buffer);
 			}
+			NodeStore.writeRecord(buffer, getNode(leaves.get(record)), null, maxNodeEntries, pointLeaves,
+					unitVectors);
+		}
+		writeFully(channel, buffer);
+
+		long root = getTreeHeight() == 1 ? NodeStore.leafId(0) : NodeStore.branchId(0);
+		writeHeader(channel, root, branches.size(), leaves.size());
+	}
+
+	/**
+	 * The header is written last, so that an interrupted save leaves no valid file behind.
+	 */
+	private void writeHeader(FileChannel channel, long root, long branchCount, long leafCount) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE).order(NodeStore.BYTE_ORDER);
+		buffer.putInt(fileMarker);
+		buffer.putInt(FILE_VERSION);
+		buffer.putInt(maxNodeEntries);
+		buffer.putInt(getTreeHeight());
+		buffer.putInt(size());
+		buffer.putInt((hasPointLeaves() ? FLAG_POINT_LEAVES : 0) | (hasUnitVectors() ? FLAG_UNIT_VECTORS : 0));
+		buffer.putLong(root);
+		buffer.putLong(branchCount);
+		buffer.putLong(leafCount);
+		buffer.position(HEADER_SIZE);
+		channel.position(0);
+		writeFully(channel, buffer);
+		channel.force(false);
+	}
+
+	@Override
+	int getTreeHeight() {
+		return isInViewMode() ? treeHeight : super.getTreeHeight();
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
 
-			nodeMap.put(id, currentNode);
+	/**
+	 * Maps a tree written by {@link #save(FileChannel)} into memory. Only the header is read, the nodes
+	 * are read from the mapped file on demand, until the tree is first modified.
+	 */
+	public void load(FileChannel channel) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(NodeStore.BYTE_ORDER);
+		while (header.hasRemaining()) {
+			if (channel.read(header, header.position()) < 0) {
+				throw new IOException("bad index or old version detected. please reindex!");
+			}
+		}
+		header.flip();
+		if (header.getInt() != fileMarker) {
+			throw new IOException("bad index or old version detected. please reindex!");
+		}
+		int version = header.getInt();
+		if (version < OLDEST_FILE_VERSION || version > FILE_VERSION) {
+			throw new IOException("bad index or old version detected. please reindex!");
 		}
+		int maxNodeEntries = header.getInt();
+		if (maxNodeEntries != this.maxNodeEntries) {
+			throw new IOException("Index built with MaxNodeEntries " + maxNodeEntries + ", expected "
+					+ this.maxNodeEntries + ". please reindex!");
+		}
+		treeHeight = header.getInt();
+		size = header.getInt();
+		int flags = header.getInt();
+		boolean pointLeaves = (flags & FLAG_POINT_LEAVES) != 0;
+		boolean unitVectors = (flags & FLAG_UNIT_VECTORS) != 0;
+		rootNodeId = header.getLong();
+		long branchCount = header.getLong();
+		long leafCount = header.getLong();
+
+		store = NodeStore.map(channel, HEADER_SIZE, maxNodeEntries, pointLeaves, unitVectors, branchCount,
+				leafCount);
+		isInViewMode = true;
 	}
 
 	private void checkModification() {
 		if (isInViewMode()) {
-			throw new IllegalStateException(
-					"Modification not allowed once the index was persisted and restored");
+			moveOnHeap();
+		}
+	}
+
+	/**
+	 * Reads all nodes from the store into node objects, so that the tree can be modified. The leaves take
+	 * the ids from 0 on in the order of their records, followed by the branch nodes.
+	 */
+	private void moveOnHeap() {
+		NodeStore nodes = store;
+		long leafCount = nodes.getLeafCount();
+		long nodeCount = nodes.getNodeCount();
+		discardNodes();
+		for (long record = 0; record < leafCount; record++) {
+			Node n = nodes.read(NodeStore.leafId(record), newNode(NodeStore.leafId(record)));
+			n.nodeId = record;
+			restoreNode(n);
+		}
+		for (long record = 0; record < nodes.getBranchCount(); record++) {
+			Node n = nodes.read(NodeStore.branchId(record), newNode(NodeStore.branchId(record)));
+			n.nodeId = leafCount + record;
+			for (int i = 0; i < n.entryCount; i++) {
+				n.ids[i] = heapId(n.ids[i], leafCount);
+			}
+			restoreNode(n);
+		}
+		restoreState(heapId(rootNodeId, leafCount), treeHeight, size, nodeCount - 1, nodes.hasPointLeaves());
+		// keep all leaves alike, new ones only have unit vectors if the read ones do
+		unitVectors = nodes.hasUnitVectors();
+		store = null;
+		isInViewMode = false;
+	}
+
+	private static long heapId(long storeId, long leafCount) {
+		long record = NodeStore.recordOf(storeId);
+		return NodeStore.isLeafId(storeId) ? record : leafCount + record;
+	}
+
+	/**
+	 * Creates a node object to read the node with the given id from the store into.
+	 */
+	private Node newNode(long storeId) {
+		if (NodeStore.isLeafId(storeId) && store.hasPointLeaves()) {
+			return store.hasUnitVectors() ? Node.pointLeafWithUnitVectors(storeId, store.getMaxNodeEntries())
+					: Node.pointLeaf(storeId, store.getMaxNodeEntries());
 		}
+		return new Node(storeId, 1, store.getMaxNodeEntries());
 	}
 
 	@Override
@@ -213,9 +723,49 @@ public class RTreeWithCoords extends RTree {
 		return super.delete(r, id);
 	}
 
+	/**
+	 * Get a node object, given the ID of the node. Once the tree is loaded from a file, a new object is
+	 * created on each call; traversals use {@link #getNode(long, Node[], int)} instead.
+	 */
 	@Override
 	public Node getNode(long id) {
-		return isInViewMode() ? nodeMap.get(id) : super.getNode(id);
+		if (isInViewMode()) {
+			return store.contains(id) ? store.read(id, newNode(id)) : null;
+		}
+		return super.getNode(id);
+	}
+
+	/**
+	 * Get a node at the given depth of a traversal. For a loaded tree the node is read into the
+	 * per-depth scratch object, which is created on first use.
+	 */
+	private Node getNode(long id, Node[] scratch, int depth) {
+		if (!isInViewMode()) {
+			return super.getNode(id);
+		}
+		Node into = scratch[depth];
+		if (into == null) {
+			// the nodes at one depth are either all leaves or all branch nodes
+			into = scratch[depth] = newNode(id);
+		}
+		return store.read(id, into);
+	}
+
+	private Node[] newScratch() {
+		return isInViewMode() ? new Node[treeHeight] : null;
+	}
+
+	@Override
+	boolean hasPointLeaves() {
+		return isInViewMode() ? store.hasPointLeaves() : super.hasPointLeaves();
+	}
+
+	/**
+	 * Whether the point leaves of the tree keep the unit vectors of their points. A tree read from a file
+	 * follows the file rather than its configuration, also once it is moved onto the heap.
+	 */
+	boolean hasUnitVectors() {
+		return isInViewMode() ? store.hasUnitVectors() : unitVectors && hasPointLeaves();
 	}
 
 	@Override
@@ -0,0 +1,60 @@
+//   Copyright (C) 2019 "Sirma AI" JSC, trading as Ontotext
+
+package com.infomatiq.jsi.rtree;
+
+import com.infomatiq.jsi.PriorityQueue;
+import gnu.trove.TIntStack;
+import gnu.trove.TLongArrayList;
+import gnu.trove.TLongStack;
+
+/**
+ * The scratch state of a search of an {@link RTree}: the stacks of the nodes from the root down to the
+ * current one and the collections the nearest entries are gathered in. A search holds a context only while
+ * it runs, so concurrent searches never share one. Each thread keeps a context that its searches reuse, and
+ * a search started from the callback of another one on the same thread gets a context of its own.
+ */
+final class SearchContext {
+	private static final ThreadLocal<SearchContext> CONTEXTS = ThreadLocal.withInitial(SearchContext::new);
+
+	// stacks used to store nodeId and entry index of each node from the root down to the current one
+	final TLongStack parents = new TLongStack();
+	final TIntStack parentsEntry = new TIntStack();
+
+	// the nearest entries found by RTree.nearest
+	final TLongArrayList nearestIds = new TLongArrayList();
+
+	// the entries dropped from distanceQueue at the same distance as the farthest one kept
+	final TLongArrayList savedValues = new TLongArrayList();
+	float savedPriority = 0;
+
+	// the nearest entries found by RTree.nearestN_orig
+	final SortedList nearestNIds = new SortedList();
+
+	// the nearest entries found by RTree.nearestN and RTree.nearestNUnsorted
+	final PriorityQueue distanceQueue = new PriorityQueue(PriorityQueue.SORT_ORDER_ASCENDING);
+
+	// the nodes to read and the entries found by RTreeWithCoords.nearest
+	final DistanceQueue nearestNodes = new DistanceQueue(true);
+	final DistanceQueue nearestFound = new DistanceQueue(false);
+
+	private boolean inUse = false;
+
+	private SearchContext() {
+	}
+
+	/**
+	 * @return a context no other search is using, to be released once the search is over
+	 */
+	static SearchContext acquire() {
+		SearchContext context = CONTEXTS.get();
+		if (context.inUse) {
+			return new SearchContext();
+		}
+		context.inUse = true;
+		return context;
+	}
+
+	void release() {
+		inUse = false;
+	}
+}
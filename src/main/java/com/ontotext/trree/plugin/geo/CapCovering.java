@@ -0,0 +1,153 @@
+package com.ontotext.trree.plugin.geo;
+
+import com.infomatiq.jsi.Rectangle;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Covers a spherical cap, the area within a distance of a point, with rectangles in latitude and longitude
+ * to search the index with. The cap is cut into latitude bands, each with the longitude span the cap has
+ * within it, so that caps far from the equator, whose width changes a lot with latitude, are not searched
+ * over a single box that is mostly outside them. Bands reaching a pole inside the cap span all longitudes.
+ * <p>
+ * The rectangles do not overlap, so no point is found twice: the bands meet at adjacent float latitudes,
+ * and a span crossing the +/-180 meridian is split at it.
+ */
+final class CapCovering {
+	// the most bands a cap is cut into
+	private static final int MAX_BANDS = 8;
+	// fewer bands are used as long as they cover no more than this much more area than MAX_BANDS do
+	private static final double AREA_TOLERANCE = 1.2;
+	// widens the spans against rounding errors (radians)
+	private static final double MARGIN = 1e-7;
+
+	private final double centreLat;
+	private final double centreLon;
+	private final double radDist;
+	private final double minLat;
+	private final double maxLat;
+	// the latitude at which the cap is widest, NaN if it holds a pole
+	private final double widestLat;
+
+	private CapCovering(float degLat, float degLon, double radDist) {
+		centreLat = Math.toRadians(degLat);
+		centreLon = Math.toRadians(degLon);
+		// no point is farther away than half a revolution
+		this.radDist = Math.min(radDist, Math.PI);
+		minLat = Math.max(centreLat - this.radDist, Utils.MIN_LAT_RADIANS);
+		maxLat = Math.min(centreLat + this.radDist, Utils.MAX_LAT_RADIANS);
+		double sinWidest = Math.sin(centreLat) / Math.cos(this.radDist);
+		widestLat = this.radDist < Math.PI / 2 && Math.abs(sinWidest) < 1 ? Math.asin(sinWidest) : Double.NaN;
+	}
+
+	/**
+	 * @return the rectangles covering the points within the distance of the given point
+	 */
+	static Rectangle[] cover(float degLat, float degLon, float distancekm) {
+		if (distancekm < 0f) {
+			throw new IllegalArgumentException("distancekm can not be negative");
+		}
+		CapCovering cap = new CapCovering(degLat, degLon, Utils.distanceKmToAngular(distancekm));
+
+		double[] finest = cap.halfWidths(MAX_BANDS);
+		double finestArea = cap.area(finest);
+		int bands = 1;
+		double[] halfWidths = cap.halfWidths(bands);
+		while (bands < MAX_BANDS && cap.area(halfWidths) > finestArea * AREA_TOLERANCE) {
+			bands *= 2;
+			halfWidths = bands == MAX_BANDS ? finest : cap.halfWidths(bands);
+		}
+		return cap.rectangles(halfWidths);
+	}
+
+	/**
+	 * @return the half widths in longitude of the cap within each of the given number of equal bands
+	 */
+	private double[] halfWidths(int bands) {
+		double[] halfWidths = new double[bands];
+		double height = (maxLat - minLat) / bands;
+		for (int b = 0; b < bands; b++) {
+			double south = minLat + b * height;
+			double north = b == bands - 1 ? maxLat : south + height;
+			// the width grows towards the widest latitude or the pole within the cap, so it is largest at one of
+			// the ends of the band or at the widest latitude
+			double halfWidth = Math.max(halfWidth(south), halfWidth(north));
+			if (south < widestLat && widestLat < north) {
+				halfWidth = Math.max(halfWidth, halfWidth(widestLat));
+			}
+			halfWidths[b] = Math.min(halfWidth + MARGIN, Math.PI);
+		}
+		return halfWidths;
+	}
+
+	/**
+	 * @return the half width in longitude of the cap at the given latitude, PI if the whole parallel is in it
+	 */
+	private double halfWidth(double lat) {
+		double cosLats = Math.cos(lat) * Math.cos(centreLat);
+		if (cosLats <= 0) {
+			// at a pole, or the cap is centred at one
+			return Math.PI;
+		}
+		double cosHalfWidth = (Math.cos(radDist) - Math.sin(lat) * Math.sin(centreLat)) / cosLats;
+		if (cosHalfWidth <= -1) {
+			return Math.PI;
+		}
+		return cosHalfWidth >= 1 ? 0 : Math.acos(cosHalfWidth);
+	}
+
+	/**
+	 * @return the area of the bands in square radians of latitude and longitude, which is what the number of
+	 *         nodes searched grows with
+	 */
+	private double area(double[] halfWidths) {
+		double area = 0;
+		for (double halfWidth : halfWidths) {
+			area += 2 * halfWidth;
+		}
+		return area * (maxLat - minLat) / halfWidths.length;
+	}
+
+	private Rectangle[] rectangles(double[] halfWidths) {
+		List<Rectangle> rectangles = new ArrayList<>(halfWidths.length * 2);
+		int bands = halfWidths.length;
+		double height = (maxLat - minLat) / bands;
+		float south = Math.nextDown((float) Math.toDegrees(minLat - MARGIN));
+		for (int b = 0; b < bands; b++) {
+			float north = b == bands - 1 ? Math.nextUp((float) Math.toDegrees(maxLat + MARGIN))
+					: (float) Math.toDegrees(minLat + (b + 1) * height);
+			addSpan(rectangles, south, north, halfWidths[b]);
+			// the next band starts right above this one
+			south = Math.nextUp(north);
+		}
+		return rectangles.toArray(new Rectangle[rectangles.size()]);
+	}
+
+	private void addSpan(List<Rectangle> rectangles, float south, float north, double halfWidth) {
+		if (halfWidth >= Math.PI) {
+			rectangles.add(new Rectangle(south, -180, north, 180));
+			return;
+		}
+		double west = centreLon - halfWidth;
+		double east = centreLon + halfWidth;
+		if (west < Utils.MIN_LON_RADIANS) {
+			// split at the +/-180 meridian
+			rectangles.add(new Rectangle(south, degrees(west + Utils.ONE_REVOLUTION_RADIANS, false), north, 180));
+			rectangles.add(new Rectangle(south, -180, north, degrees(east, true)));
+		} else if (east > Utils.MAX_LON_RADIANS) {
+			rectangles.add(new Rectangle(south, degrees(west, false), north, 180));
+			rectangles.add(new Rectangle(south, -180, north, degrees(east - Utils.ONE_REVOLUTION_RADIANS, true)));
+		} else {
+			rectangles.add(new Rectangle(south, degrees(west, false), north, degrees(east, true)));
+		}
+	}
+
+	/**
+	 * @return the radians in degrees, rounded outwards
+	 */
+	private static float degrees(double radians, boolean up) {
+		float degrees = (float) Math.toDegrees(radians);
+		return up ? Math.nextUp(degrees) : Math.nextDown(degrees);
+	}
+}
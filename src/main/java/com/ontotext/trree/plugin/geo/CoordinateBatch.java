@@ -0,0 +1,114 @@
+package com.ontotext.trree.plugin.geo;
+
+import com.infomatiq.jsi.Rectangle;
+import com.infomatiq.jsi.rtree.RTreeWithCoords;
+import com.ontotext.trree.sdk.Entities;
+import org.eclipse.rdf4j.model.Literal;
+import org.eclipse.rdf4j.model.Value;
+
+import java.util.stream.IntStream;
+
+/**
+ * The coordinates of a batch of entities on their way into a new index. The literal ids found by the
+ * merge join are resolved to their labels on the building thread, since that is where the connection
+ * lives, then the labels are parsed in parallel and the valid points are added to the tree, again on the
+ * building thread.
+ */
+final class CoordinateBatch {
+	private final long[] subjects;
+	private final long[] latIds;
+	private final long[] longIds;
+	private final String[] latLabels;
+	private final String[] longLabels;
+	private final float[] lats;
+	private final float[] longs;
+	private int size = 0;
+
+	CoordinateBatch(int capacity) {
+		subjects = new long[capacity];
+		latIds = new long[capacity];
+		longIds = new long[capacity];
+		latLabels = new String[capacity];
+		longLabels = new String[capacity];
+		lats = new float[capacity];
+		longs = new float[capacity];
+	}
+
+	int size() {
+		return size;
+	}
+
+	boolean isFull() {
+		return size == subjects.length;
+	}
+
+	void add(long subject, long latId, long longId) {
+		subjects[size] = subject;
+		latIds[size] = latId;
+		longIds[size] = longId;
+		size++;
+	}
+
+	void clear() {
+		size = 0;
+	}
+
+	/**
+	 * Looks up the labels of the coordinate literals.
+	 */
+	void resolve(Entities entities) {
+		for (int k = 0; k < size; k++) {
+			latLabels[k] = labelOf(entities, latIds[k]);
+			longLabels[k] = labelOf(entities, longIds[k]);
+		}
+	}
+
+	private static String labelOf(Entities entities, long id) {
+		Value value = entities.get(id);
+		return value instanceof Literal ? ((Literal) value).getLabel() : null;
+	}
+
+	/**
+	 * Parses the resolved labels in the common fork-join pool. Touches no shared state, so it may run
+	 * while another batch is being resolved.
+	 */
+	void parse() {
+		IntStream.range(0, size).parallel().forEach(k -> {
+			lats[k] = parse(latLabels[k]);
+			longs[k] = parse(longLabels[k]);
+		});
+	}
+
+	private static float parse(String label) {
+		if (label == null) {
+			return Float.NaN;
+		}
+		try {
+			return Float.parseFloat(label);
+		} catch (NumberFormatException nfe) {
+			return Float.NaN;
+		}
+	}
+
+	/**
+	 * Adds the entities with valid coordinates to the tree and the point table.
+	 *
+	 * @return the number of entities added
+	 */
+	int addTo(RTreeWithCoords tree, PointTable points) {
+		int added = 0;
+		Rectangle r = new Rectangle();
+		for (int k = 0; k < size; k++) {
+			if (Float.isNaN(lats[k]) || Float.isNaN(longs[k])) {
+				// not numeric literals, skipping this entry
+				continue;
+			}
+			r.minX = r.maxX = lats[k];
+			r.minY = r.maxY = longs[k];
+			tree.add(r, subjects[k]);
+			points.put(subjects[k], PointTable.pack(lats[k], longs[k]));
+			added++;
+		}
+		return added;
+	}
+}
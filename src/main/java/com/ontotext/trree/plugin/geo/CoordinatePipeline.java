@@ -0,0 +1,59 @@
+package com.ontotext.trree.plugin.geo;
+
+import com.infomatiq.jsi.rtree.RTreeWithCoords;
+import com.ontotext.trree.sdk.Entities;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Takes the coordinates found by the merge join into a new index through two batches: while the literals
+ * of one batch are resolved on the building thread, those of the other are parsed in the fork-join pool.
+ * The entities reach the tree and the point table in the order they were added.
+ */
+final class CoordinatePipeline {
+	private final RTreeWithCoords tree;
+	private final PointTable points;
+	private final Entities entities;
+	private CoordinateBatch filling;
+	private CoordinateBatch parsing;
+	private CompletableFuture<Void> parsed = CompletableFuture.completedFuture(null);
+	private int count = 0;
+
+	CoordinatePipeline(RTreeWithCoords tree, PointTable points, Entities entities, int batchSize) {
+		this.tree = tree;
+		this.points = points;
+		this.entities = entities;
+		filling = new CoordinateBatch(batchSize);
+		parsing = new CoordinateBatch(batchSize);
+	}
+
+	void add(long subject, long latId, long longId) {
+		filling.add(subject, latId, longId);
+		if (filling.isFull()) {
+			filling.resolve(entities);
+			parsed.join();
+			count += parsing.addTo(tree, points);
+			CoordinateBatch next = parsing;
+			parsing = filling;
+			parsed = CompletableFuture.runAsync(parsing::parse);
+			filling = next;
+			filling.clear();
+		}
+	}
+
+	/**
+	 * Adds the entities still in the batches to the tree and the point table.
+	 *
+	 * @return the number of entities added since the pipeline was created
+	 */
+	int finish() {
+		filling.resolve(entities);
+		filling.parse();
+		parsed.join();
+		count += parsing.addTo(tree, points);
+		count += filling.addTo(tree, points);
+		parsing.clear();
+		filling.clear();
+		return count;
+	}
+}
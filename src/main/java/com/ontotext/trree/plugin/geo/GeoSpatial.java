@@ -9,6 +9,7 @@ public class GeoSpatial {
 
 	public static final IRI NEARBY;
 	public static final IRI WITHIN;
+	public static final IRI NEAREST;
 	public static final IRI DISTANCE;
 	public static final IRI CREATE_INDEX;
 
@@ -22,6 +23,7 @@ public class GeoSpatial {
 
 		NEARBY = factory.createIRI(NAMESPACE, "nearby");
 		WITHIN = factory.createIRI(NAMESPACE, "within");
+		NEAREST = factory.createIRI(NAMESPACE, "nearest");
 		DISTANCE = factory.createIRI(NAMESPACE, "distance");
 		CREATE_INDEX = factory.createIRI(NAMESPACE, "createIndex");
 
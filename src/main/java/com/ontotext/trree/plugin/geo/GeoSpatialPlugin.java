@@ -1,14 +1,14 @@
 package com.ontotext.trree.plugin.geo;
 
 import com.infomatiq.jsi.Rectangle;
+import com.infomatiq.jsi.rtree.RTree;
 import com.infomatiq.jsi.rtree.RTreeWithCoords;
 import com.ontotext.trree.sdk.*;
 import com.ontotext.trree.sdk.Entities.Scope;
-import gnu.trove.TLongHashSet;
-import gnu.trove.TLongObjectProcedure;
-import gnu.trove.TLongProcedure;
 
-import org.eclipse.collections.impl.list.mutable.primitive.LongArrayList;
+import org.eclipse.collections.api.iterator.LongIterator;
+import org.eclipse.collections.impl.map.mutable.primitive.LongLongHashMap;
+import org.eclipse.collections.impl.set.mutable.primitive.LongHashSet;
 import org.eclipse.rdf4j.model.Literal;
 import org.eclipse.rdf4j.model.Value;
 import org.eclipse.rdf4j.query.algebra.evaluation.function.Function;
@@ -17,141 +17,371 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.Properties;
 import java.util.ServiceLoader;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * @author Damyan
  *
  */
-public class GeoSpatialPlugin extends PluginBase implements PatternInterpreter, ListPatternInterpreter, UpdateInterpreter {
+public class GeoSpatialPlugin extends PluginBase implements PatternInterpreter, ListPatternInterpreter, UpdateInterpreter,
+		StatementListener, PluginTransactionListener {
     static {
         FunctionLoader.loadFunctionsInPackage("com.ontotext.trree.plugin.geo");
     }
 
 	private static final String STORAGE_FILE = "storage";
 	private static final String TEMP_SUFFIX = ".temp";
+	// present while the index on disk misses changes applied to the one in memory
+	private static final String STALE_SUFFIX = ".stale";
+	// the coordinates of the indexed entities, stored next to the index
+	private static final String POINTS_SUFFIX = ".points";
+
+	// the least number of changed entities kept aside from the tree of the index before they are folded into a
+	// new one, and the share of the indexed entities they may grow to before that (1 / FOLD_RATIO)
+	private static final int MIN_FOLD_THRESHOLD = 10000;
+	private static final int FOLD_RATIO = 100;
+
+	// the largest count of omgeo:nearest searched for in one go; larger counts browse the index by distance
+	private static final int MAX_NEAREST_SEARCH = 1024;
+
+	// the number of entities whose coordinates are decoded together while building the index
+	private static final int BUILD_BATCH_SIZE = 16384;
+
+	/**
+	 * System property selecting where the nodes of a freshly built index are kept: "heap" (the default) or
+	 * "offheap" for direct buffers outside the Java heap. A restored index is always mapped from its file.
+	 */
+	static final String NODE_STORAGE_PROPERTY = "graphdb.geospatial.nodeStorage";
+
+	/**
+	 * System property keeping the unit vectors of the points in the leaves of a freshly built index, so that
+	 * nearby tests them without trigonometry: "true" or "false" (the default). It grows each leaf entry from
+	 * 16 bytes (the coordinates and the id) to 28, so the index takes up to 75% more memory and disk space.
+	 * A restored index keeps the setting it was built with.
+	 */
+	static final String UNIT_VECTORS_PROPERTY = "graphdb.geospatial.unitVectors";
 
 	private static final Logger Logger = LoggerFactory.getLogger(GeoSpatialPlugin.class);
 
-	private final ReadWriteLock indexGuard = new ReentrantReadWriteLock();
-	private RTreeWithCoords index = null;
+	/**
+	 * The ways of building the index, selected by the object of the createIndex statement, e.g.
+	 * <code>[] omgeo:createIndex "hilbert"</code>. Any other object selects {@link #STR}.
+	 */
+	private enum BuildMode {
+		/** insert the points one by one */
+		INCREMENTAL(null),
+		/** pack the points with the Sort-Tile-Recursive algorithm */
+		STR(RTree.Packing.SORT_TILE_RECURSIVE),
+		/** pack the points in Hilbert curve order */
+		HILBERT(RTree.Packing.HILBERT);
+
+		final RTree.Packing packing;
+
+		BuildMode(RTree.Packing packing) {
+			this.packing = packing;
+		}
+
+		static BuildMode fromObject(Entities entities, long object) {
+			Value value = object == 0 ? null : entities.get(object);
+			if (value instanceof Literal) {
+				String label = ((Literal) value).getLabel().trim();
+				for (BuildMode mode : values()) {
+					if (mode.name().equalsIgnoreCase(label)) {
+						return mode;
+					}
+				}
+				Logger.warn("Unknown geospatial index build mode '" + label + "', using " + STR);
+			}
+			return STR;
+		}
+	}
+
+	private static final long NO_TRANSACTION = Long.MIN_VALUE;
+
+	// the current version of the index, null if there is none; queries read it without locking
+	private volatile IndexSnapshot snapshot = null;
+	// serializes the publishing of new snapshots
+	private final Lock updateLock = new ReentrantLock();
+	private boolean indexChanged = false;
+
+	// serializes index builds and folds, which run without holding updateLock
+	private final Lock rebuildLock = new ReentrantLock();
+	// the changes committed while an index is being built, to be applied on it
+	private volatile LongLongHashMap rebuildLog = null;
+	// folds the changes of the index into a new tree in the background
+	private final ExecutorService foldExecutor = Executors.newSingleThreadExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "geospatial-index-fold");
+		thread.setDaemon(true);
+		return thread;
+	});
+	private final AtomicBoolean foldScheduled = new AtomicBoolean();
+
+	// the transaction currently changing statements, whose own queries see its changes to the index
+	private volatile long writingTransaction = NO_TRANSACTION;
+	// subjects whose coordinates were touched by the current transaction
+	private final LongHashSet changedSubjects = new LongHashSet();
+	// their new coordinates, read when the transaction commits and applied once it has completed
+	private final LongLongHashMap pendingPoints = new LongLongHashMap();
+	// the index as seen by the current transaction, derived from transactionBase on demand
+	private IndexSnapshot transactionSnapshot = null;
+	private IndexSnapshot transactionBase = null;
 
 	private long idLat;
 	private long idLong;
 	private long idCreateIndex;
 	private long idNearby;
 	private long idWithin;
+	private long idNearest;
 
 
-	// Strange class, isn't List<Integer> enough?
-	private static class GeoStatBase {
-		final LongArrayList subjects = new LongArrayList(16);
+	/**
+	 * Decides which of the points found in the searched rectangles are results, and which parts of the index
+	 * hold only results.
+	 */
+	private static class GeoStatBase implements RTreeWithCoords.Region {
+		public boolean accept(float lat, float lon) {
+			return true;
+		}
 
-		public int size() {
-			return subjects.size();
+		/**
+		 * The same as {@link #accept(float, float)} for a point whose unit vector is known as well.
+		 */
+		public boolean accept(float lat, float lon, float unitX, float unitY, float unitZ) {
+			return accept(lat, lon);
 		}
 
-		public long fromIndex(int index) {
-			return subjects.get(index);
+		@Override
+		public boolean contains(float minLat, float minLon, float maxLat, float maxLon) {
+			return false;
 		}
 	}
 
-	private static class GeoStatWithin extends GeoStatBase implements TLongProcedure {
+	private static class GeoStatWithin extends GeoStatBase {
+		private Rectangle rectangle;
+
+		public GeoStatWithin(Rectangle rect) {
+			rectangle = rect;
+		}
+
 		@Override
-		public boolean execute(long id) {
-			subjects.add(id);
-			return true;
+		public boolean accept(float lat, float lon) {
+			return Utils.contains(rectangle.minX, rectangle.minY, rectangle.maxX, rectangle.maxY, lat, lon);
+		}
+
+		@Override
+		public boolean contains(float minLat, float minLon, float maxLat, float maxLon) {
+			return Utils.containsRectangle(rectangle.minX, rectangle.minY, rectangle.maxX, rectangle.maxY, minLat,
+					minLon, maxLat, maxLon);
 		}
 	}
 
-	private static class GeoStatNearBy extends GeoStatBase implements TLongObjectProcedure<Rectangle> {
+	private static class GeoStatNearBy extends GeoStatBase {
 		private float aroundLat = 0f;
 		private float aroundLon = 0f;
 		private float distance = 0;
+		// the unit vector of the centre and the squared length of the chord spanning the distance
+		private final double centreX, centreY, centreZ;
+		private final double chordSq;
 
 		public GeoStatNearBy(float lat, float lon, float dist) {
 			aroundLat = lat;
 			aroundLon = lon;
 			distance = dist;
+			double radLat = Math.toRadians(lat);
+			double radLon = Math.toRadians(lon);
+			centreX = Math.cos(radLat) * Math.cos(radLon);
+			centreY = Math.cos(radLat) * Math.sin(radLon);
+			centreZ = Math.sin(radLat);
+			double chord = 2 * Math.sin(Math.min(dist, Math.PI) / 2);
+			chordSq = chord * chord;
+		}
+
+		@Override
+		public boolean accept(float lat, float lon) {
+			return Utils.angularDistance(aroundLat, aroundLon, lat, lon) < distance;
+		}
+
+		/**
+		 * The chord between two points grows with the angle between them, so comparing it with the chord of
+		 * the distance needs no trigonometry. Unlike the dot product of the vectors, it stays accurate for small
+		 * distances.
+		 */
+		@Override
+		public boolean accept(float lat, float lon, float unitX, float unitY, float unitZ) {
+			double dx = unitX - centreX;
+			double dy = unitY - centreY;
+			double dz = unitZ - centreZ;
+			return dx * dx + dy * dy + dz * dz < chordSq;
 		}
 
+		/**
+		 * Along a parallel the distance grows with the difference in longitude, and a circle smaller than a
+		 * hemisphere holds the meridian arcs between any two of its points. So once the rectangle lies within a
+		 * quarter turn of the centre in longitude, it is in the circle if its corners are.
+		 */
 		@Override
-		public boolean execute(long id, Rectangle match) {
-			if (Utils.angularDistance(aroundLat, aroundLon, match.maxX, match.maxY) < distance) {
-				subjects.add(id);
+		public boolean contains(float minLat, float minLon, float maxLat, float maxLon) {
+			if (distance >= Math.PI / 2 || Math.abs(minLon - aroundLon) > 90 || Math.abs(maxLon - aroundLon) > 90) {
+				return false;
 			}
-			return true;
+			return accept(minLat, minLon) && accept(minLat, maxLon) && accept(maxLat, minLon)
+					&& accept(maxLat, maxLon);
 		}
 	}
 
-	private static class GeoStatWithinPoly extends GeoStatBase implements TLongObjectProcedure<Rectangle> {
-		private Polygon polygon;
+	private static class GeoStatWithinPoly extends GeoStatBase {
+		private PreparedPolygon polygon;
 
-		public GeoStatWithinPoly(Polygon poly) {
+		public GeoStatWithinPoly(PreparedPolygon poly) {
 			polygon = poly;
 		}
 
 		@Override
-		public boolean execute(long id, Rectangle match) {
-			if (polygon.contains(match.maxX, match.maxY)) {
-				subjects.add(id);
-			}
-			return true;
+		public boolean accept(float lat, float lon) {
+			return polygon.contains(lat, lon);
+		}
+
+		@Override
+		public boolean contains(float minLat, float minLon, float maxLat, float maxLon) {
+			return polygon.contains(minLat, minLon, maxLat, maxLon);
 		}
 	}
 
-	private static void boundingCoordinates(Rectangle[] res, float degLat, float degLon, float distancekm) {
-		float radLat = (float) Math.toRadians(degLat);
-		float radLon = (float) Math.toRadians(degLon);
-		if (distancekm < 0f) {
-			throw new IllegalArgumentException("distancekm can not be negative");
+	/**
+	 * Returns the accepted points in the searched rectangles one at a time, as they are found in a snapshot of
+	 * the index. All points in the rectangles known to be wholly inside the searched region are accepted
+	 * without testing them.
+	 */
+	private static class MatchIterator extends StatementIterator {
+		private final IndexSnapshot snapshot;
+		private final Rectangle[] regions;
+		private final boolean[] inside;
+		private final GeoStatBase stat;
+		private final Entities entities;
+		private int region = -1;
+		private IndexSnapshot.Cursor cursor = null;
+
+		MatchIterator(IndexSnapshot snapshot, Rectangle[] regions, boolean[] inside, GeoStatBase stat,
+				long predicate, long object, long context, Entities entities) {
+			super(0, predicate, object, context);
+			this.snapshot = snapshot;
+			this.regions = regions;
+			this.inside = inside;
+			this.stat = stat;
+			this.entities = entities;
+		}
+
+		@Override
+		public boolean next() {
+			while (true) {
+				if (cursor != null && cursor.next()) {
+					if (inside[region] || cursor.isContained() || (cursor.hasUnitVector()
+							? stat.accept(cursor.getLatitude(), cursor.getLongitude(), cursor.getUnitX(),
+									cursor.getUnitY(), cursor.getUnitZ())
+							: stat.accept(cursor.getLatitude(), cursor.getLongitude()))) {
+						this.subject = entities.getClass(cursor.getId());
+						return true;
+					}
+				} else if (++region < regions.length) {
+					if (regions[region] == null) {
+						continue;
+					}
+					// one cursor searches all regions
+					RTreeWithCoords.Region within = inside[region] ? null : stat;
+					if (cursor == null) {
+						cursor = snapshot.cursor(regions[region], within);
+					} else {
+						cursor.reset(regions[region], within);
+					}
+				} else {
+					return false;
+				}
+			}
 		}
 
-		// angular distance in radians on a great circle
-		float radDist = (float) Utils.distanceKmToAngular(distancekm);
+		@Override
+		public void close() {
+			region = regions.length;
+			cursor = null;
+		}
+	}
 
-		float minLat = radLat - radDist;
-		float maxLat = radLat + radDist;
+	/**
+	 * Returns the entities found by a nearest neighbour search, the nearest first.
+	 */
+	private static class NearestIterator extends StatementIterator {
+		private final long[] found;
+		private final int count;
+		private final Entities entities;
+		private int next = 0;
+
+		NearestIterator(long[] found, int count, long predicate, long object, long context, Entities entities) {
+			super(0, predicate, object, context);
+			this.found = found;
+			this.count = count;
+			this.entities = entities;
+		}
 
-		double minLon, maxLon;
-		if (minLat > Utils.MIN_LAT_RADIANS && maxLat < Utils.MAX_LAT_RADIANS) {
-			double deltaLon = Math.asin(Math.sin(radDist) / Math.cos(radLat));
-			boolean lonOver180 = false;
-			boolean lonUnderMinus180 = false;
-			minLon = radLon - deltaLon;
-			if (minLon < Utils.MIN_LON_RADIANS) {
-				minLon += Utils.ONE_REVOLUTION_RADIANS;
-				lonUnderMinus180 = true;
-			}
-			maxLon = radLon + deltaLon;
-			if (maxLon > Utils.MAX_LON_RADIANS) {
-				maxLon -= Utils.ONE_REVOLUTION_RADIANS;
-				lonOver180 = true;
+		@Override
+		public boolean next() {
+			if (next >= count) {
+				return false;
 			}
-			if (lonOver180 || lonUnderMinus180) {
-				res[0] = new Rectangle((float) Math.toDegrees(minLat), 180, (float) Math.toDegrees(maxLat),
-						(float) Math.toDegrees(minLon));
-				res[1] = new Rectangle((float) Math.toDegrees(minLat), (float) Math.toDegrees(maxLon),
-						(float) Math.toDegrees(maxLat), -180);
-			} else {
-				res[0] = new Rectangle((float) Math.toDegrees(minLat), (float) Math.toDegrees(minLon),
-						(float) Math.toDegrees(maxLat), (float) Math.toDegrees(maxLon));
-				res[1] = null;
+			this.subject = entities.getClass(found[next++]);
+			return true;
+		}
+
+		@Override
+		public void close() {
+			next = count;
+		}
+	}
+
+	/**
+	 * Returns the indexed entities up to a count and a distance, the nearest first, each found only once it is
+	 * asked for.
+	 */
+	private static class BrowsingIterator extends StatementIterator {
+		private final IndexSnapshot.NearestCursor cursor;
+		private final long limit;
+		private final double furthestDistance;
+		private final Entities entities;
+		private long returned = 0;
+		private boolean closed = false;
+
+		BrowsingIterator(IndexSnapshot.NearestCursor cursor, long limit, double furthestDistance, long predicate,
+				long object, long context, Entities entities) {
+			super(0, predicate, object, context);
+			this.cursor = cursor;
+			this.limit = limit;
+			this.furthestDistance = furthestDistance;
+			this.entities = entities;
+		}
+
+		@Override
+		public boolean next() {
+			if (closed || returned >= limit || !cursor.next() || cursor.getDistance() > furthestDistance) {
+				return false;
 			}
-		} else {
-			// a pole is within the distance
-			minLat = (float) Math.max(minLat, Utils.MIN_LAT_RADIANS);
-			maxLat = (float) Math.min(maxLat, Utils.MAX_LAT_RADIANS);
-			minLon = Utils.MIN_LON_RADIANS;
-			maxLon = Utils.MAX_LON_RADIANS;
-			res[0] = new Rectangle((float) Math.toDegrees(minLat), (float) Math.toDegrees(minLon),
-					(float) Math.toDegrees(maxLat), (float) Math.toDegrees(maxLon));
-			res[1] = null;
+			returned++;
+			this.subject = entities.getClass(cursor.getId());
+			return true;
 		}
 
+		@Override
+		public void close() {
+			closed = true;
+		}
 	}
 
 	@Override
@@ -161,23 +391,28 @@ public class GeoSpatialPlugin extends PluginBase implements PatternInterpreter,
 
 	@Override
 	public void initialize(InitReason initReason, PluginConnection pluginConnection) {
-		// load index from disk (if present)
-		if (getStorageFile().exists()) {
-			try {
-				restoreIndex();
-			} catch (IOException e) {
-				Logger.error("Failed to restore geospatial index", e);
-			}
-		}
-
 		idLat = pluginConnection.getEntities().resolve(GeoSpatial.LAT);
 		idLong = pluginConnection.getEntities().resolve(GeoSpatial.LONG);
 		idCreateIndex = pluginConnection.getEntities().put(GeoSpatial.CREATE_INDEX, Scope.SYSTEM);
 		idNearby = pluginConnection.getEntities().put(GeoSpatial.NEARBY, Scope.SYSTEM);
 		idWithin = pluginConnection.getEntities().put(GeoSpatial.WITHIN, Scope.SYSTEM);
+		idNearest = pluginConnection.getEntities().put(GeoSpatial.NEAREST, Scope.SYSTEM);
 
 		loadPredicates(pluginConnection);
 
+		if (getStaleMarkerFile().exists()) {
+			// the repository was not shut down properly after the index was last changed
+			Logger.warn("Geospatial index on disk is out of date, rebuilding it");
+			createIndex(pluginConnection.getStatements(), pluginConnection.getEntities(), BuildMode.STR, false);
+		} else if (getStorageFile().exists()) {
+			// load index from disk (if present)
+			try {
+				restoreIndex();
+			} catch (IOException e) {
+				Logger.error("Failed to restore geospatial index", e);
+			}
+		}
+
         final FunctionRegistry functionRegistry = FunctionRegistry.getInstance();
         final ServiceLoader<Function> sl = ServiceLoader.load(Function.class, FunctionLoader.class.getClassLoader());
         sl.reload();
@@ -201,6 +436,19 @@ public class GeoSpatialPlugin extends PluginBase implements PatternInterpreter,
 
 	@Override
 	public void shutdown(ShutdownReason shutdownReason) {
+		foldExecutor.shutdownNow();
+		rebuildLock.lock();
+		updateLock.lock();
+		try {
+			if (snapshot != null && indexChanged) {
+				persistIndex();
+			}
+		} catch (IOException e) {
+			Logger.error("Failed persisting the geospatial index to disk", e);
+		} finally {
+			updateLock.unlock();
+			rebuildLock.unlock();
+		}
 	}
 
 	public File getStorageFile() {
@@ -211,11 +459,24 @@ public class GeoSpatialPlugin extends PluginBase implements PatternInterpreter,
 		return new File(getStorageFile() + TEMP_SUFFIX);
 	}
 
+	public File getPointsFile() {
+		return new File(getStorageFile() + POINTS_SUFFIX);
+	}
+
+	public File getTempPointsFile() {
+		return new File(getPointsFile() + TEMP_SUFFIX);
+	}
+
+	public File getStaleMarkerFile() {
+		return new File(getStorageFile() + STALE_SUFFIX);
+	}
+
 	@Override
 	public StatementIterator interpret(long subject, long predicate, long object, long context,
                                        PluginConnection pluginConnection, RequestContext requestContext) {
 		if (com.ontotext.trree.sdk.Utils.match(predicate, idCreateIndex)) {
-			Boolean result = createIndex(pluginConnection.getStatements(), pluginConnection.getEntities());
+			Boolean result = createIndex(pluginConnection.getStatements(), pluginConnection.getEntities(),
+					BuildMode.fromObject(pluginConnection.getEntities(), object), true);
 			return result ? StatementIterator.TRUE() : StatementIterator.FALSE();
 		}
 		return null;
@@ -226,144 +487,325 @@ public class GeoSpatialPlugin extends PluginBase implements PatternInterpreter,
                                        PluginConnection pluginConnection, RequestContext requestContext) {
 		// see if this is a predicate we support
 		if (com.ontotext.trree.sdk.Utils.match(predicate, idNearby)) {
-			return handleNearBy(subject, predicate, objects, context, pluginConnection.getStatements(), pluginConnection.getEntities());
+			return handleNearBy(subject, predicate, objects, context, snapshotFor(pluginConnection),
+					pluginConnection.getStatements(), pluginConnection.getEntities());
 		}
 		if (com.ontotext.trree.sdk.Utils.match(predicate, idWithin)) {
-			return handleWithin(subject, predicate, objects, context, pluginConnection.getStatements(), pluginConnection.getEntities());
+			return handleWithin(subject, predicate, objects, context, snapshotFor(pluginConnection),
+					pluginConnection.getStatements(), pluginConnection.getEntities());
+		}
+		if (com.ontotext.trree.sdk.Utils.match(predicate, idNearest)) {
+			return handleNearest(subject, predicate, objects, context, snapshotFor(pluginConnection), pluginConnection.getEntities());
 		}
 
 		return null;
 	}
 
-	private boolean createIndex(Statements statements, Entities entities) {
-		indexGuard.writeLock().lock();
+	/**
+	 * Builds a new index from the current statements, writes it to disk and publishes it in place of the old
+	 * one. No lock is held meanwhile, so the old index keeps answering queries and taking changes; the changes
+	 * committed during the build are applied on top of the new index when it is published.
+	 * <p>
+	 * A query sees the statements as they were when it started, which may miss changes committed before the
+	 * build began to log them. So an index built for a query is compared with the old one, which has all
+	 * committed changes, and takes the points that differ from it.
+	 *
+	 * @param fromQuery
+	 *            whether the statements are those of a query rather than of the transaction changing them
+	 */
+	private boolean createIndex(Statements statements, Entities entities, BuildMode mode, boolean fromQuery) {
+		if (getLongtitudeId() == 0 || getLatitudeId() == 0) {
+			return false;
+		}
+		rebuildLock.lock();
 		try {
-
-			if (getLongtitudeId() != 0 && getLatitudeId() != 0) {
-				TLongHashSet indexed = new TLongHashSet();
-				setFingerprint(0);
-				index = new RTreeWithCoords();
-				Properties prop = new Properties();
-				prop.put("MaxNodeEntries", "10");
-				prop.put("MinNodeEntries", "5");
-				index.init(prop);
-				// initialize
-				int count = 0;
-				Rectangle r = new Rectangle();
-				StatementIterator iter = statements.get(0, getLatitudeId(), 0, 0);
-				try {
-					while (iter.next()) {
-						long entry = iter.subject;
-						long latCoord = iter.object;
-						long longCoord = -1;
-						StatementIterator iterLong = statements.get(entry, getLongtitudeId(), 0, 0);
-						try {
-							if (iterLong.next()) {
-								longCoord = iterLong.object;
-							}
-							if (iterLong.next()) {
-								Logger.warn("multiple latitudes found for node " + entry);
-							}
-						} finally {
-							iterLong.close();
-						}
-						if (longCoord != -1) {
-							// have valid coordinates for an entry
-							try {
-								Literal latLiteral = (Literal) entities.get(latCoord);
-								Literal longLiteral = (Literal) entities.get(longCoord);
-								float latDouble = Float.parseFloat(latLiteral.getLabel());
-								float longDouble = Float.parseFloat(longLiteral.getLabel());
-								r.minX = r.maxX = latDouble;
-								r.minY = r.maxY = longDouble;
-
-								if (!indexed.add(entry)) {
-									Logger.warn("node " + entry + " already indexed");
-								} else {
-									index.add(r, entry);
-									// update fingerprint
-									long fp = getFingerprint();
-									fp ^= Double.doubleToLongBits(latDouble);
-									fp ^= Double.doubleToLongBits(longDouble);
-									fp ^= entry;
-									setFingerprint(fp);
-									count++;
-									if (count % 10000 == 0) {
-										Logger.debug(count + " entries indexed so far (" + latDouble + ","
-												+ longDouble + ", entry=" + entities.get(entry) + ")");
-									}
-								}
-							} catch (NumberFormatException nfe) {
-								// bad double value, skipping this entry
-							} catch (ClassCastException cce) {
-								// objects not literals, skipping this entry
-							}
-						} // if
-					} // while
-				} finally {
-					iter.close();
-				}
-				Logger.debug(count + " entries indexed in total");
+			startRebuildLog();
+			Logger.debug("Building geospatial index, mode " + mode);
+			long start = System.nanoTime();
+			// merge-join both predicates on their subjects, instead of looking up the longitude of every subject
+			// with a latitude, streaming their statements while they come in subject order
+			PointTable points = new PointTable();
+			RTreeWithCoords tree = newIndex(mode);
+			CoordinatePipeline pipeline = new CoordinatePipeline(tree, points, entities, BUILD_BATCH_SIZE);
+			if (!joinCoordinates(PredicateColumn.stream(statements, getLatitudeId()),
+					PredicateColumn.stream(statements, getLongtitudeId()), pipeline)) {
+				Logger.debug("Coordinates are not in subject order, sorting them in memory");
+				points = new PointTable();
+				tree = newIndex(mode);
+				pipeline = new CoordinatePipeline(tree, points, entities, BUILD_BATCH_SIZE);
+				joinCoordinates(PredicateColumn.load(statements, getLatitudeId()),
+						PredicateColumn.load(statements, getLongtitudeId()), pipeline);
+			}
+			int count = pipeline.finish();
+			if (mode.packing != null) {
+				Logger.debug(count + " entries collected, packing index...");
+				tree.finishBulkLoad();
+			} else if (isOffHeap()) {
+				tree.moveOffHeap();
+			}
+			double seconds = (System.nanoTime() - start) / 1e9;
+			Logger.info(String.format("Geospatial index built from %d points in %.1f s (%.0f points/s)", count,
+					seconds, count / Math.max(seconds, 1e-3)));
+			if (false == tree.checkConsistency()) {
+				Logger.debug("RTree index inconsistent");
+			}
+			// read after the log has started, so the log has every change the old index may lack
+			IndexSnapshot current = snapshot;
+			LongLongHashMap missed = fromQuery && current != null ? current.changesFrom(points) : new LongLongHashMap();
+			if (!missed.isEmpty()) {
+				Logger.debug(missed.size() + " geospatial index changes committed since the query started");
+			}
+			boolean persisted = false;
+			try {
 				Logger.debug("Persisting index...");
-				if (false == index.checkConsistency()) {
-					Logger.debug("RTree index inconsistent");
-				}
-				persistIndex();
+				writeIndex(tree, points);
 				Logger.debug("Index persisted");
-				return true;
+				persisted = true;
+			} catch (IOException e) {
+				Logger.error("Failed persisting the geospatial index to disk", e);
 			}
-		} catch (IOException e) {
-			Logger.error("Failed persisting the geospatial index to disk", e);
+			publishIndex(tree, points, missed, persisted);
+			return persisted;
 		} finally {
-			indexGuard.writeLock().unlock();
+			stopRebuildLog();
+			rebuildLock.unlock();
 		}
-		return false;
 	}
 
+	/**
+	 * Merge-joins the latitudes and longitudes of the subjects into the pipeline.
+	 *
+	 * @return false if the statements are not in subject order, in which case only part of them were joined
+	 */
+	private static boolean joinCoordinates(PredicateColumn lats, PredicateColumn longs,
+			CoordinatePipeline pipeline) {
+		try {
+			return PredicateColumn.join(lats, longs, (subject, lat, lon, several) -> {
+				if (several) {
+					Logger.warn("multiple coordinates found for node " + subject + ", using the first ones");
+				}
+				pipeline.add(subject, lat, lon);
+			});
+		} finally {
+			lats.close();
+			longs.close();
+		}
+	}
+
+	private void startRebuildLog() {
+		updateLock.lock();
+		try {
+			rebuildLog = new LongLongHashMap();
+		} finally {
+			updateLock.unlock();
+		}
+	}
+
+	private void stopRebuildLog() {
+		updateLock.lock();
+		try {
+			rebuildLog = null;
+		} finally {
+			updateLock.unlock();
+		}
+	}
+
+	/**
+	 * Replaces the index with a freshly built one, with the changes it missed and those committed during the
+	 * build on top.
+	 */
+	private void publishIndex(RTreeWithCoords tree, PointTable points, LongLongHashMap missed, boolean persisted) {
+		updateLock.lock();
+		try {
+			LongLongHashMap changes = missed;
+			changes.putAll(rebuildLog);
+			rebuildLog = null;
+			publish(new IndexSnapshot(tree, points).withChanges(changes));
+
+			indexChanged = false;
+			if (persisted && changes.isEmpty()) {
+				getStaleMarkerFile().delete();
+			} else {
+				markIndexChanged();
+			}
+		} finally {
+			updateLock.unlock();
+		}
+	}
+
+	/**
+	 * Makes a new version of the index visible to queries. Must be called holding updateLock.
+	 */
+	private void publish(IndexSnapshot next) {
+		snapshot = next;
+		setFingerprint(next.getFingerprint());
+		if (needsFold(next) && foldScheduled.compareAndSet(false, true)) {
+			foldExecutor.execute(this::foldChanges);
+		}
+	}
+
+	/**
+	 * A fold copies all points and packs them into a new tree, so the changes may grow with the index
+	 * before it pays off; queries find the changed points in their band of latitudes meanwhile.
+	 */
+	private static boolean needsFold(IndexSnapshot snapshot) {
+		return snapshot.getChangeCount() >= Math.max(MIN_FOLD_THRESHOLD, snapshot.getPoints().size() / FOLD_RATIO);
+	}
+
+	/**
+	 * Builds a new tree holding the changes made to the index since its tree was built, so that queries do
+	 * not have to scan too many changes kept aside. Runs in the background; the changes committed meanwhile
+	 * are moved on top of the new tree.
+	 */
+	private void foldChanges() {
+		foldScheduled.set(false);
+		if (!rebuildLock.tryLock()) {
+			// a build or another fold is running and will publish a new tree anyway
+			return;
+		}
+		try {
+			IndexSnapshot from = snapshot;
+			if (from == null || !needsFold(from)) {
+				return;
+			}
+			IndexSnapshot folded = from.fold(newIndex(), RTree.Packing.SORT_TILE_RECURSIVE);
+			updateLock.lock();
+			try {
+				// publishing schedules another fold if enough changes were committed meanwhile
+				publish(snapshot.rebase(folded, from));
+				Logger.debug(from.getChangeCount() + " geospatial index changes folded into a new tree");
+			} finally {
+				updateLock.unlock();
+			}
+		} catch (RuntimeException e) {
+			Logger.error("Failed folding the changes of the geospatial index", e);
+		} finally {
+			rebuildLock.unlock();
+		}
+	}
+
+	private static boolean isOffHeap() {
+		return "offheap".equalsIgnoreCase(System.getProperty(NODE_STORAGE_PROPERTY, "heap").trim());
+	}
+
+	private static boolean hasUnitVectors() {
+		return Boolean.parseBoolean(System.getProperty(UNIT_VECTORS_PROPERTY, "false").trim());
+	}
+
+	/**
+	 * @return an empty tree to build the index in the given way into
+	 */
+	private static RTreeWithCoords newIndex(BuildMode mode) {
+		RTreeWithCoords tree = newIndex();
+		if (mode.packing != null) {
+			// collect all points first and pack them into the tree at the end
+			tree.startBulkLoad(mode.packing);
+		}
+		return tree;
+	}
+
+	private static RTreeWithCoords newIndex() {
+		RTreeWithCoords tree = new RTreeWithCoords();
+		Properties prop = new Properties();
+		prop.put("MaxNodeEntries", "10");
+		prop.put("MinNodeEntries", "5");
+		prop.put("NodeStorage", isOffHeap() ? "OffHeap" : "Heap");
+		prop.put("UnitVectors", Boolean.toString(hasUnitVectors()));
+		tree.init(prop);
+		return tree;
+	}
+
+	/**
+	 * Writes the current version of the index to disk, folding its changes first. Must be called holding
+	 * updateLock.
+	 */
 	public void persistIndex() throws IOException {
+		IndexSnapshot current = snapshot;
+		if (current.getChangeCount() > 0) {
+			current = current.fold(newIndex(), RTree.Packing.SORT_TILE_RECURSIVE);
+			snapshot = current;
+		}
+		writeIndex(current.getTree(), current.getPoints());
+		getStaleMarkerFile().delete();
+		indexChanged = false;
+	}
+
+	private void writeIndex(RTreeWithCoords tree, PointTable points) throws IOException {
 		getDataDir().mkdirs();
 
-		// store index into a temporary file
+		// store index and points into temporary files
 		File storageFile = getStorageFile();
 		File tempStorageFile = getTempStorageFile();
-		tempStorageFile.delete();
-
-		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(
-				tempStorageFile)));
-		index.save(out);
-		out.close();
+		File pointsFile = getPointsFile();
+		File tempPointsFile = getTempPointsFile();
+		Files.deleteIfExists(tempStorageFile.toPath());
+		Files.deleteIfExists(tempPointsFile.toPath());
+
+		try (FileChannel channel = FileChannel.open(tempStorageFile.toPath(), StandardOpenOption.CREATE_NEW,
+				StandardOpenOption.WRITE)) {
+			tree.save(channel);
+		}
+		try (FileChannel channel = FileChannel.open(tempPointsFile.toPath(), StandardOpenOption.CREATE_NEW,
+				StandardOpenOption.WRITE)) {
+			points.save(channel);
+		}
 
-		// move temporary storage file onto the real one
-		storageFile.delete();
-		tempStorageFile.renameTo(storageFile);
+		// move temporary files onto the real ones; this fails where a file mapped by the current index cannot
+		// be replaced, leaving the old files and the stale marker in place
+		Files.move(tempStorageFile.toPath(), storageFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		Files.move(tempPointsFile.toPath(), pointsFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
 	}
 
 	public void restoreIndex() throws IOException {
 		Logger.debug("Restoring geospatial index from disk");
 
-		index = new RTreeWithCoords();
-		Properties prop = new Properties();
-		prop.put("MaxNodeEntries", "10");
-		prop.put("MinNodeEntries", "5");
-		index.init(prop);
+		RTreeWithCoords tree = newIndex();
 
-		DataInputStream in = null;
-		try {
-			in = new DataInputStream(new BufferedInputStream(new FileInputStream(getStorageFile())));
-			index.load(in);
+		// the index is mapped into memory, the mapping outlives the channel
+		try (FileChannel channel = FileChannel.open(getStorageFile().toPath(), StandardOpenOption.READ)) {
+			tree.load(channel);
 		} catch (IOException e) {
-			index = null;
 			Logger.error("Failed restoring geospatial index", e);
 			throw e;
+		}
+		updateLock.lock();
+		try {
+			publish(new IndexSnapshot(tree, restorePoints(tree)));
 		} finally {
-			if (in != null) {
-				in.close();
-			}
+			updateLock.unlock();
 		}
 
 		Logger.debug("Geospatial index restored from disk");
 	}
 
+	/**
+	 * Loads the coordinates of the indexed entities stored with the index, or collects them from the index
+	 * if they are missing or do not match it.
+	 */
+	private PointTable restorePoints(RTreeWithCoords tree) {
+		File pointsFile = getPointsFile();
+		if (pointsFile.exists()) {
+			try (FileChannel channel = FileChannel.open(pointsFile.toPath(), StandardOpenOption.READ)) {
+				PointTable points = PointTable.load(channel);
+				if (points.size() == tree.size()) {
+					return points;
+				}
+				Logger.warn("Geospatial point table does not match the index, collecting the points from the index");
+			} catch (IOException e) {
+				Logger.warn("Failed loading the geospatial point table, collecting the points from the index", e);
+			}
+		}
+		final PointTable points = new PointTable(tree.size());
+		Rectangle everything = new Rectangle(-Float.MAX_VALUE, -Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE);
+		tree.intersects(everything, (entry, lat, lon) -> {
+			points.put(entry, PointTable.pack(lat, lon));
+			return true;
+		});
+		return points;
+	}
+
 	/**
 	 * handle the SPARQL List syntax patterns like: 1) ?subject owlimgeo:nearby(?lat ?lon ?limit) // * 2)
 	 * ?subject owlimgeo:nearby(?location ?limit) where ?location should be connected with
@@ -382,8 +824,8 @@ public class GeoSpatialPlugin extends PluginBase implements PatternInterpreter,
 	 * @return
 	 */
 	private StatementIterator handleNearBy(long subject, long predicate, long[] objects, long context,
-                                           Statements statements, Entities entities) {
-		return createIterator(subject, predicate, objects, context, statements, entities, false);
+                                           IndexSnapshot snapshot, Statements statements, Entities entities) {
+		return createIterator(subject, predicate, objects, context, snapshot, statements, entities, false);
 	}
 
 	/**
@@ -402,155 +844,186 @@ public class GeoSpatialPlugin extends PluginBase implements PatternInterpreter,
 	 * @return
 	 */
 	private StatementIterator handleWithin(long subject, long predicate, long[] objects, long context,
-                                           Statements statements, Entities entities) {
-		return createIterator(subject, predicate, objects, context, statements, entities, true);
+                                           IndexSnapshot snapshot, Statements statements, Entities entities) {
+		return createIterator(subject, predicate, objects, context, snapshot, statements, entities, true);
 	}
 
-	@SuppressWarnings("unchecked")
-	private StatementIterator createIterator(final long subject, final long predicate, final long[] objects,
-                                             final long context, final Statements statements, final Entities entities,
-                                             final boolean isWithinFlag) {
+	/**
+	 * handle the SPARQL List syntax patterns 1) ?subject omgeo:nearest(?lat ?lon ?k ?maxDistance), which finds
+	 * the k entities nearest to the point by great-circle distance, the nearest first. The count must be an
+	 * integer, and large counts are browsed like form 2 rather than searched for at once. The maximum distance
+	 * is optional and takes the same units as the distance of omgeo:nearby. 2) ?subject omgeo:nearest(?lat
+	 * ?lon), which returns all indexed entities, the nearest first, finding each one only when it is asked
+	 * for, so that a query with a LIMIT reads only as much of the index as it needs.
+	 */
+	private StatementIterator handleNearest(long subject, long predicate, long[] objects, long context,
+											IndexSnapshot snapshot, Entities entities) {
+		if (snapshot == null) {
+			return StatementIterator.EMPTY;
+		}
+		if (objects.length < 2 || objects.length > 4) {
+			Logger.error("omgeo:nearest expects a latitude, a longitude and optionally a count and a maximum distance");
+			return StatementIterator.EMPTY;
+		}
+		float lat = getVarAsDouble(entities, objects[0]);
+		float lon = getVarAsDouble(entities, objects[1]);
+		if (Float.isNaN(lat) || Float.isInfinite(lat) || Float.isNaN(lon) || Float.isInfinite(lon)) {
+			return StatementIterator.EMPTY;
+		}
+		if (objects.length == 2) {
+			if (subject != 0) {
+				return snapshot.pointOf(subject) != IndexSnapshot.NO_POINT
+						? StatementIterator.create(subject, -1, -1, -1) : StatementIterator.EMPTY;
+			}
+			return new BrowsingIterator(snapshot.nearestCursor(new GeodesicMetric(lat, lon)), Long.MAX_VALUE,
+					Double.POSITIVE_INFINITY, predicate, objects[0], context, entities);
+		}
+		long k = getVarAsCount(entities, objects[2]);
+		if (k < 1) {
+			return StatementIterator.EMPTY;
+		}
+		double furthest = Double.POSITIVE_INFINITY;
+		if (objects.length == 4) {
+			float distancekm = getVarAsDouble(entities, objects[3]);
+			if (Float.isNaN(distancekm) || distancekm < 0) {
+				return StatementIterator.EMPTY;
+			}
+			furthest = Utils.distanceKmToAngular(distancekm);
+		}
 
-		indexGuard.readLock().lock();
+		GeodesicMetric metric = new GeodesicMetric(lat, lon);
+		if (subject != 0) {
+			long point = snapshot.pointOf(subject);
+			if (point == IndexSnapshot.NO_POINT
+					|| metric.distance(PointTable.latitudeOf(point), PointTable.longitudeOf(point)) > furthest) {
+				return StatementIterator.EMPTY;
+			}
+			// the subject is among the k nearest if it comes up before k others have
+			IndexSnapshot.NearestCursor cursor = snapshot.nearestCursor(metric);
+			for (long passed = 0; passed < k && cursor.next(); passed++) {
+				if (cursor.getId() == subject) {
+					return StatementIterator.create(subject, -1, -1, -1);
+				}
+			}
+			return StatementIterator.EMPTY;
+		}
+		if (k > MAX_NEAREST_SEARCH) {
+			// too many to keep at once, so they are found one by one
+			return new BrowsingIterator(snapshot.nearestCursor(metric), k, furthest, predicate, objects[0], context,
+					entities);
+		}
+		long[] found = new long[(int) k];
+		double[] distances = new double[(int) k];
+		int count = snapshot.nearest(metric, (int) k, furthest, found, distances);
+		return new NearestIterator(found, count, predicate, objects[0], context, entities);
+	}
+
+	/**
+	 * @return the integer value of the literal, or -1 if it is not a non-negative integer
+	 */
+	private long getVarAsCount(Entities entities, long id) {
+		String value = com.ontotext.trree.sdk.Utils.getString(entities, id);
+		if (value == null) {
+			return -1;
+		}
+		try {
+			return Math.max(-1, Long.parseLong(value.trim()));
+		} catch (NumberFormatException nfe) {
+			return -1;
+		}
+	}
+
+	private StatementIterator createIterator(final long subject, final long predicate, final long[] objects,
+                                             final long context, final IndexSnapshot snapshot, final Statements statements,
+                                             final Entities entities, final boolean isWithinFlag) {
 
-		boolean haveValidStat = false;
 		final GeoStatBase stat;
 
 		Polygon poly = null;
 		boolean badPoly = false;
 
-		try {
-			if (index == null) {
+		if (snapshot == null) {
+			return StatementIterator.EMPTY;
+		}
+		Rectangle result[];
+		boolean[] inside = null;
+		if (!isWithinFlag) {
+			float latV = getVarAsDouble(entities, objects[0]);
+			float longV = getVarAsDouble(entities, objects[1]);
+			if (Double.isInfinite(latV) || Double.isNaN(latV) || Double.isInfinite(longV) || Double.isNaN(longV)) {
 				return StatementIterator.EMPTY;
 			}
-			Rectangle result[] = new Rectangle[2];
-			if (!isWithinFlag) {
-				float latV = getVarAsDouble(entities, objects[0]);
-				float longV = getVarAsDouble(entities, objects[1]);
-				if (Double.isInfinite(latV) || Double.isNaN(latV) || Double.isInfinite(longV) || Double.isNaN(longV)) {
-					return StatementIterator.EMPTY;
-				}
-				float radians = (float) Utils.distanceKmToAngular(getVarAsDouble(entities, objects[2]));
-				float distancekm = getVarAsDouble(entities, objects[2]);
+			float radians = (float) Utils.distanceKmToAngular(getVarAsDouble(entities, objects[2]));
+			float distancekm = getVarAsDouble(entities, objects[2]);
 
-				boundingCoordinates(result, latV, longV, distancekm);
-				stat = new GeoStatNearBy(latV, longV, radians);
-				haveValidStat = true;
+			result = CapCovering.cover(latV, longV, distancekm);
+			stat = new GeoStatNearBy(latV, longV, radians);
+		} else {
+			if (objects.length == 4) {
+				// within rect
+				float latMin = getVarAsDouble(entities, objects[0]);
+				float longMin = getVarAsDouble(entities, objects[1]);
+				float latMax = getVarAsDouble(entities, objects[2]);
+				float longMax = getVarAsDouble(entities, objects[3]);
+
+				// @todo: allow searches for bounding box passing 180th meridian
+				result = new Rectangle[] { new Rectangle(latMin, longMin, latMax, longMax) };
+				stat = new GeoStatWithin(result[0]);
 			} else {
-				if (objects.length == 4) {
-					// within rect
-					float latMin = getVarAsDouble(entities, objects[0]);
-					float longMin = getVarAsDouble(entities, objects[1]);
-					float latMax = getVarAsDouble(entities, objects[2]);
-					float longMax = getVarAsDouble(entities, objects[3]);
-
-					// @todo: allow searches for bounding box passing 180th meridian
-					result[0] = new Rectangle(latMin, longMin, latMax, longMax);
-					result[1] = null;
-					stat = new GeoStatWithin();
-					haveValidStat = true;
-				} else {
-					if (objects.length % 2 != 0) {
-						Logger.error("odd number of coordinate arguments passed to geo:within");
-						return StatementIterator.EMPTY;
-					}
-					if (poly == null) {
-						poly = new Polygon(objects.length / 2);
-						for (int pt = 0; pt < objects.length; pt += 2) {
-							float lat = getVarAsDouble(entities, objects[pt]);
-							float lon = getVarAsDouble(entities, objects[pt + 1]);
-							if (Float.isNaN(lat) || Float.isNaN(lon)) {
-								badPoly = true;
-								break;
-							}
-							poly.add(lat, lon);
-						}
-					}
-					if (poly == null || badPoly || poly.isReady() == false) {
-						return StatementIterator.EMPTY;
-					}
-
-					// handle the case when a simple polygon lookup is required
-					if (subject != 0) {
-						long entry = subject;
-						StatementIterator iter = statements.get(entry, getLatitudeId(), 0, context);
-						try {
-							if (iter.next()) {
-								float latLoc = getIdAsFloat(entities, iter.object);
-								if (Float.isNaN(latLoc)) {
-									return StatementIterator.EMPTY;
-								}
-								StatementIterator iterLong = statements.get(entry, getLongtitudeId(), 0, context);
-								try {
-									if (iterLong.next()) {
-										float lonLoc = getIdAsFloat(entities, iterLong.object);
-										if (Float.isNaN(latLoc)) {
-											return StatementIterator.EMPTY;
-										}
-										if (poly.contains(latLoc, lonLoc)) {
-											return StatementIterator.create(subject, -1, -1, -1);
-										}
-									}
-								} finally {
-									iterLong.close();
-								}
-							}
-						} finally {
-							iter.close();
+				if (objects.length % 2 != 0) {
+					Logger.error("odd number of coordinate arguments passed to geo:within");
+					return StatementIterator.EMPTY;
+				}
+				if (poly == null) {
+					poly = new Polygon(objects.length / 2);
+					for (int pt = 0; pt < objects.length; pt += 2) {
+						float lat = getVarAsDouble(entities, objects[pt]);
+						float lon = getVarAsDouble(entities, objects[pt + 1]);
+						if (Float.isNaN(lat) || Float.isNaN(lon)) {
+							badPoly = true;
+							break;
 						}
-						return StatementIterator.EMPTY;
+						poly.add(lat, lon);
 					}
-
-					// @todo: allow searches for bounding box passing 180th meridian
-					result[0] = new Rectangle(poly.getMinLat(), poly.getMinLong(), poly.getMaxLat(),
-							poly.getMaxLong());
-					result[1] = null;
-					stat = new GeoStatWithinPoly(poly);
-					haveValidStat = true;
-				}
-			}
-			for (Rectangle element : result) {
-				if (element == null) {
-					continue;
 				}
-				if (stat instanceof TLongProcedure) {
-					index.intersects(element, (TLongProcedure) stat);
-				} else {
-					index.intersects(element, (TLongObjectProcedure<Rectangle>) stat);
+				if (poly == null || badPoly || poly.isReady() == false) {
+					return StatementIterator.EMPTY;
 				}
-			}
-		} finally {
-			indexGuard.readLock().unlock();
-		}
 
-		if (!haveValidStat) {
-			return StatementIterator.EMPTY;
-		}
-
-		if (subject != 0) {
-			if (!stat.subjects.contains(subject)) {
-				return StatementIterator.EMPTY;
+				// @todo: allow searches for bounding box passing 180th meridian
+				PreparedPolygon prepared = new PreparedPolygon(poly);
+				PreparedPolygon.Covering covering = prepared.cover();
+				result = covering.rectangles;
+				inside = covering.inside;
+				stat = new GeoStatWithinPoly(prepared);
 			}
-			return StatementIterator.create(subject, -1, -1, -1);
 		}
-
-		return new StatementIterator(subject, predicate, objects[0], context) {
-
-			int current = -1;
-
-			@Override
-			public boolean next() {
-				if (++current >= stat.size()) {
-					return false;
+		if (subject != 0) {
+			// the indexed point of a bound subject is known, so test it alone instead of searching the region
+			float lat = Float.NaN;
+			float lon = Float.NaN;
+			if (poly != null && context != 0) {
+				// a polygon takes the coordinates of a bound subject from the context of the pattern, which
+				// the index does not keep
+				lat = getCoordinate(statements, entities, subject, getLatitudeId(), context);
+				lon = getCoordinate(statements, entities, subject, getLongtitudeId(), context);
+			} else {
+				long point = snapshot.pointOf(subject);
+				if (point != IndexSnapshot.NO_POINT) {
+					lat = PointTable.latitudeOf(point);
+					lon = PointTable.longitudeOf(point);
 				}
-				this.subject = entities.getClass(stat.fromIndex(current));
-				return true;
 			}
-			@Override
-			public void close() {
-				current = stat.size();
+			if (!Float.isNaN(lat) && !Float.isNaN(lon) && stat.accept(lat, lon)) {
+				return StatementIterator.create(subject, -1, -1, -1);
 			}
-		};
+			return StatementIterator.EMPTY;
+		}
+
+		if (inside == null) {
+			inside = new boolean[result.length];
+		}
+		return new MatchIterator(snapshot, result, inside, stat, predicate, objects[0], context, entities);
 	}
 
 	private float getIdAsFloat(Entities entities, long id) {
@@ -618,7 +1091,150 @@ public class GeoSpatialPlugin extends PluginBase implements PatternInterpreter,
 	@Override
 	public boolean interpretUpdate(long subject, long predicate, long object, long context, boolean isAddition,
 			boolean isExplicit, PluginConnection pluginConnection) {
-		createIndex(pluginConnection.getStatements(), pluginConnection.getEntities());
+		createIndex(pluginConnection.getStatements(), pluginConnection.getEntities(),
+				BuildMode.fromObject(pluginConnection.getEntities(), object), false);
 		return true;
 	}
+
+	@Override
+	public boolean statementAdded(long subject, long predicate, long object, long context, boolean isExplicit,
+			PluginConnection pluginConnection) {
+		coordinateChanged(subject, predicate);
+		return false;
+	}
+
+	@Override
+	public boolean statementRemoved(long subject, long predicate, long object, long context, boolean isExplicit,
+			PluginConnection pluginConnection) {
+		coordinateChanged(subject, predicate);
+		return false;
+	}
+
+	private void coordinateChanged(long subject, long predicate) {
+		if (predicate == getLatitudeId() || predicate == getLongtitudeId()) {
+			changedSubjects.add(subject);
+			// the view of the transaction has to be derived again
+			transactionSnapshot = null;
+		}
+	}
+
+	/**
+	 * Returns the version of the index a query should use: the one with the changes of its transaction on
+	 * top for the queries of the transaction that is changing statements and the latest published one for
+	 * all other queries.
+	 */
+	private IndexSnapshot snapshotFor(PluginConnection pluginConnection) {
+		IndexSnapshot committed = snapshot;
+		if (committed == null || pluginConnection.getTransactionId() != writingTransaction
+				|| changedSubjects.isEmpty()) {
+			return committed;
+		}
+		if (transactionSnapshot == null || transactionBase != committed) {
+			LongLongHashMap changes = new LongLongHashMap();
+			readPoints(pluginConnection, changes);
+			transactionSnapshot = committed.withChanges(changes);
+			transactionBase = committed;
+		}
+		return transactionSnapshot;
+	}
+
+	@Override
+	public void transactionStarted(PluginConnection pluginConnection) {
+		clearTransaction();
+		writingTransaction = pluginConnection.getTransactionId();
+	}
+
+	/**
+	 * Reads the coordinates of the subjects changed by the transaction, as the transaction sees them. A
+	 * subject may have gained, lost or changed any of its coordinates, or have been removed and added back.
+	 */
+	@Override
+	public void transactionCommit(PluginConnection pluginConnection) {
+		if (changedSubjects.isEmpty() || (snapshot == null && rebuildLog == null)) {
+			return;
+		}
+		readPoints(pluginConnection, pendingPoints);
+		changedSubjects.clear();
+	}
+
+	/**
+	 * Puts the current point of every changed subject, or NO_POINT if it has none, in the given map.
+	 */
+	private void readPoints(PluginConnection pluginConnection, LongLongHashMap points) {
+		Statements statements = pluginConnection.getStatements();
+		Entities entities = pluginConnection.getEntities();
+		LongIterator subjects = changedSubjects.longIterator();
+		while (subjects.hasNext()) {
+			long subject = subjects.next();
+			float lat = getCoordinate(statements, entities, subject, getLatitudeId(), 0);
+			float lon = getCoordinate(statements, entities, subject, getLongtitudeId(), 0);
+			points.put(subject, Float.isNaN(lat) || Float.isNaN(lon) ? IndexSnapshot.NO_POINT
+					: PointTable.pack(lat, lon));
+		}
+	}
+
+	private float getCoordinate(Statements statements, Entities entities, long subject, long predicate,
+			long context) {
+		StatementIterator iter = statements.get(subject, predicate, 0, context);
+		try {
+			return iter.next() ? getIdAsFloat(entities, iter.object) : Float.NaN;
+		} finally {
+			iter.close();
+		}
+	}
+
+	/**
+	 * Publishes a new version of the index with the changes of a successfully committed transaction.
+	 */
+	@Override
+	public void transactionCompleted(PluginConnection pluginConnection) {
+		if (pendingPoints.isEmpty()) {
+			clearTransaction();
+			return;
+		}
+		updateLock.lock();
+		try {
+			if (rebuildLog != null) {
+				rebuildLog.putAll(pendingPoints);
+			}
+			if (snapshot != null) {
+				markIndexChanged();
+				publish(snapshot.withChanges(pendingPoints));
+				Logger.debug(pendingPoints.size() + " geospatial index entries updated");
+			}
+		} finally {
+			clearTransaction();
+			updateLock.unlock();
+		}
+	}
+
+	@Override
+	public void transactionAborted(PluginConnection pluginConnection) {
+		clearTransaction();
+	}
+
+	private void clearTransaction() {
+		writingTransaction = NO_TRANSACTION;
+		changedSubjects.clear();
+		pendingPoints.clear();
+		transactionSnapshot = null;
+		transactionBase = null;
+	}
+
+	/**
+	 * Leaves a marker that the index on disk is out of date until it is persisted again, so that the index
+	 * is rebuilt if the repository is not shut down properly.
+	 */
+	private void markIndexChanged() {
+		if (indexChanged) {
+			return;
+		}
+		indexChanged = true;
+		try {
+			getDataDir().mkdirs();
+			getStaleMarkerFile().createNewFile();
+		} catch (IOException e) {
+			Logger.error("Failed marking the geospatial index on disk as out of date", e);
+		}
+	}
 }
@@ -0,0 +1,73 @@
+package com.ontotext.trree.plugin.geo;
+
+import com.infomatiq.jsi.rtree.RTreeWithCoords;
+
+/**
+ * The great-circle distance in radians from a point, for searching the nearest entries of the index, whose
+ * x is the latitude and y the longitude in degrees. Unlike {@link Utils#angularDistance(float, float, float,
+ * float)} it subtracts the coordinates in double precision, as close to the antipode of the point rounding
+ * the differences to float changes the distance far more than it does the coordinates.
+ */
+final class GeodesicMetric implements RTreeWithCoords.Metric {
+	// keeps the least distances of rectangles below the distances of their points despite rounding errors,
+	// which grow near the antipode of the point (radians)
+	private static final double MARGIN = 1e-7;
+
+	private final float lat;
+	private final float lon;
+	private final double radLat;
+	private final double sinLat;
+	private final double cosLat;
+
+	GeodesicMetric(float lat, float lon) {
+		this.lat = lat;
+		this.lon = lon;
+		radLat = Math.toRadians(lat);
+		sinLat = Math.sin(radLat);
+		cosLat = Math.cos(radLat);
+	}
+
+	@Override
+	public double distance(float x, float y) {
+		return distance(Math.toRadians(x), Math.toRadians(y - (double) lon));
+	}
+
+	/**
+	 * Along a parallel the distance grows with the difference in longitude, so the nearest point of a
+	 * rectangle is on the meridian of the point if the rectangle spans it, and on one of its sides otherwise.
+	 */
+	@Override
+	public double minDistance(float minX, float minY, float maxX, float maxY) {
+		double distance;
+		if (minY <= lon && lon <= maxY) {
+			distance = Math.toRadians(Math.max(0, Math.max(minX - (double) lat, lat - (double) maxX)));
+		} else {
+			distance = Math.min(sideDistance(minY, minX, maxX), sideDistance(maxY, minX, maxX));
+		}
+		return Math.max(0, distance - MARGIN);
+	}
+
+	/**
+	 * The cosine of the distance to the points of a meridian is a sinusoid in their latitude, so the nearest
+	 * point of a piece of it is either where the sinusoid peaks or one of its ends.
+	 */
+	private double sideDistance(float sideLon, float fromLat, float toLat) {
+		double dLon = Math.toRadians(sideLon - (double) lon);
+		double cosDLon = Math.cos(dLon);
+		double south = Math.toRadians(fromLat);
+		double north = Math.toRadians(toLat);
+		double distance = Math.min(distance(south, dLon), distance(north, dLon));
+		double peak = Math.atan2(sinLat, cosLat * cosDLon);
+		if (south < peak && peak < north) {
+			distance = Math.min(distance, distance(peak, dLon));
+		}
+		return distance;
+	}
+
+	private double distance(double toLat, double dLon) {
+		double a = Math.sin((toLat - radLat) / 2);
+		double b = Math.sin(dLon / 2);
+		double h = a * a + cosLat * Math.cos(toLat) * b * b;
+		return 2 * Math.asin(Math.min(1, Math.sqrt(h)));
+	}
+}
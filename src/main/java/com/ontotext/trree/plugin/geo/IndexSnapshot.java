@@ -0,0 +1,623 @@
+package com.ontotext.trree.plugin.geo;
+
+import com.infomatiq.jsi.Rectangle;
+import com.infomatiq.jsi.rtree.RTree;
+import com.infomatiq.jsi.rtree.RTreeWithCoords;
+import org.eclipse.collections.api.block.procedure.primitive.LongLongProcedure;
+import org.eclipse.collections.api.iterator.LongIterator;
+import org.eclipse.collections.impl.list.mutable.primitive.IntArrayList;
+import org.eclipse.collections.impl.map.mutable.primitive.LongLongHashMap;
+
+import java.util.Arrays;
+
+/**
+ * An immutable version of the geospatial index. It consists of a tree and the point table it was built
+ * from, which are never modified once they are part of a snapshot, and the changes made since, kept aside
+ * as a stack of small immutable layers mapping entities to their new points. Every change derives a new
+ * snapshot by pushing a layer on top of those of the old one, merging it with the layers below that are not
+ * much larger, so that a snapshot shares most of its changes with the one it is derived from and readers may
+ * keep using the snapshot they started with for as long as they like, without any locking. Once the changes
+ * grow large, they are folded into a new tree.
+ */
+final class IndexSnapshot {
+	// marks an entity removed from the index in a map of changes
+	static final long NO_POINT = PointTable.pack(Float.NaN, Float.NaN);
+
+	private static final Layer[] NO_LAYERS = new Layer[0];
+
+	private final RTreeWithCoords tree;
+	private final PointTable points;
+	// the changes on top of the tree, the newest first; a layer overrides the ones below it
+	private final Layer[] layers;
+	private final int changeCount;
+	private final int size;
+	private final long fingerprint;
+
+	private IndexSnapshot(RTreeWithCoords tree, PointTable points, Layer[] layers, int changeCount, int size,
+			long fingerprint) {
+		this.tree = tree;
+		this.points = points;
+		this.layers = layers;
+		this.changeCount = changeCount;
+		this.size = size;
+		this.fingerprint = fingerprint;
+	}
+
+	IndexSnapshot(RTreeWithCoords tree, PointTable points) {
+		this(tree, points, NO_LAYERS, 0, points.size(), points.getFingerprint());
+	}
+
+	/**
+	 * @return a snapshot with the given changes (entity -> point or NO_POINT) applied on top of this one
+	 */
+	IndexSnapshot withChanges(LongLongHashMap more) {
+		LongLongHashMap delta = new LongLongHashMap(more.size());
+		int count = changeCount;
+		int newSize = size;
+		long fp = fingerprint;
+		LongIterator entities = more.keySet().longIterator();
+		while (entities.hasNext()) {
+			long entity = entities.next();
+			long point = more.get(entity);
+			long current = pointOf(entity);
+			if (current == point) {
+				continue;
+			}
+			long original = points.contains(entity) ? points.get(entity) : NO_POINT;
+			if (current != NO_POINT) {
+				fp ^= PointTable.fingerprintOf(entity, current);
+				newSize--;
+			}
+			if (point != NO_POINT) {
+				fp ^= PointTable.fingerprintOf(entity, point);
+				newSize++;
+			}
+			if (current == original) {
+				count++;
+			} else if (point == original) {
+				count--;
+			}
+			delta.put(entity, point);
+		}
+		if (delta.isEmpty()) {
+			return this;
+		}
+		return new IndexSnapshot(tree, points, push(new Layer(delta)), count, newSize, fp);
+	}
+
+	/**
+	 * Puts a layer on top of the others, first merging it with those below that are at most twice its size,
+	 * so that the layers grow geometrically towards the bottom and every change is merged only a logarithmic
+	 * number of times.
+	 */
+	private Layer[] push(Layer top) {
+		int merged = 0;
+		while (merged < layers.length && layers[merged].size() <= 2 * top.size()) {
+			boolean bottom = merged + 1 == layers.length;
+			top = top.over(layers[merged], bottom ? points : null);
+			merged++;
+		}
+		Layer[] result = new Layer[layers.length - merged + 1];
+		result[0] = top;
+		System.arraycopy(layers, merged, result, 1, layers.length - merged);
+		return result;
+	}
+
+	/**
+	 * @return whether the entity was changed since the tree was built, possibly back to its point in the tree
+	 */
+	private boolean isChanged(long entity) {
+		return isChangedAbove(entity, layers.length);
+	}
+
+	/**
+	 * @return whether the entity was changed in one of the layers above the given one
+	 */
+	private boolean isChangedAbove(long entity, int layer) {
+		for (int i = 0; i < layer; i++) {
+			if (layers[i].changes.containsKey(entity)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Builds a snapshot without changes holding the same points as this one, by bulk loading all points
+	 * into the given empty tree.
+	 */
+	IndexSnapshot fold(RTreeWithCoords empty, RTree.Packing packing) {
+		PointTable folded = new PointTable(size());
+		points.forEach((entity, point) -> {
+			if (!isChanged(entity)) {
+				folded.put(entity, point);
+			}
+		});
+		forEachChange((entity, point) -> {
+			if (point != NO_POINT) {
+				folded.put(entity, point);
+			}
+		});
+
+		empty.startBulkLoad(packing);
+		Rectangle r = new Rectangle();
+		folded.forEach((entity, point) -> {
+			r.minX = r.maxX = PointTable.latitudeOf(point);
+			r.minY = r.maxY = PointTable.longitudeOf(point);
+			empty.add(r, entity);
+		});
+		empty.finishBulkLoad();
+		return new IndexSnapshot(empty, folded);
+	}
+
+	/**
+	 * Moves the changes made since an older snapshot was folded onto the result of the fold.
+	 *
+	 * @param folded
+	 *            the result of folding the older snapshot
+	 * @param from
+	 *            the older snapshot, which this one is derived from
+	 */
+	IndexSnapshot rebase(IndexSnapshot folded, IndexSnapshot from) {
+		LongLongHashMap newer = new LongLongHashMap();
+		forEachChange((entity, point) -> {
+			if (from.pointOf(entity) != point) {
+				newer.put(entity, point);
+			}
+		});
+		// entities changed in the older snapshot and changed back to the tree since
+		from.forEachChange((entity, point) -> {
+			if (!isChanged(entity)) {
+				newer.put(entity, points.contains(entity) ? points.get(entity) : NO_POINT);
+			}
+		});
+		return folded.withChanges(newer);
+	}
+
+	/**
+	 * @return the changes (entity -> point or NO_POINT) that turn the given points into those of this
+	 *         snapshot
+	 */
+	LongLongHashMap changesFrom(PointTable other) {
+		LongLongHashMap result = new LongLongHashMap();
+		other.forEach((entity, point) -> {
+			long current = pointOf(entity);
+			if (current != point) {
+				result.put(entity, current);
+			}
+		});
+		points.forEach((entity, point) -> {
+			if (!other.contains(entity) && !isChanged(entity)) {
+				result.put(entity, point);
+			}
+		});
+		forEachChange((entity, point) -> {
+			if (point != NO_POINT && !other.contains(entity)) {
+				result.put(entity, point);
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Calls the procedure with the latest change of every changed entity.
+	 */
+	private void forEachChange(LongLongProcedure procedure) {
+		for (int i = 0; i < layers.length; i++) {
+			LongIterator entities = layers[i].changes.keySet().longIterator();
+			while (entities.hasNext()) {
+				long entity = entities.next();
+				if (!isChangedAbove(entity, i)) {
+					procedure.value(entity, layers[i].changes.get(entity));
+				}
+			}
+		}
+	}
+
+	RTreeWithCoords getTree() {
+		return tree;
+	}
+
+	PointTable getPoints() {
+		return points;
+	}
+
+	/**
+	 * @return the number of entities changed since the tree was built
+	 */
+	int getChangeCount() {
+		return changeCount;
+	}
+
+	long getFingerprint() {
+		return fingerprint;
+	}
+
+	int size() {
+		return size;
+	}
+
+	/**
+	 * @return the point of the entity or NO_POINT if it is not indexed
+	 */
+	long pointOf(long entity) {
+		for (Layer layer : layers) {
+			if (layer.changes.containsKey(entity)) {
+				return layer.changes.get(entity);
+			}
+		}
+		return points.contains(entity) ? points.get(entity) : NO_POINT;
+	}
+
+	Cursor cursor(Rectangle r) {
+		return new Cursor(r, null);
+	}
+
+	/**
+	 * @see RTreeWithCoords#cursor(Rectangle, RTreeWithCoords.Region)
+	 */
+	Cursor cursor(Rectangle r, RTreeWithCoords.Region region) {
+		return new Cursor(r, region);
+	}
+
+	/**
+	 * Finds the entities nearest by the metric, among those of the tree that were not changed and the changed
+	 * ones.
+	 *
+	 * @see RTreeWithCoords#nearest(RTreeWithCoords.Metric, int, double, java.util.function.LongPredicate,
+	 *      long[], double[])
+	 */
+	int nearest(RTreeWithCoords.Metric metric, int count, double furthestDistance, long[] entities,
+			double[] distances) {
+		if (count <= 0) {
+			return 0;
+		}
+		int found = tree.nearest(metric, count, furthestDistance, this::isChanged, entities, distances);
+		for (int l = 0; l < layers.length; l++) {
+			Layer layer = layers[l];
+			for (int i = 0; i < layer.ids.length; i++) {
+				double distance = metric.distance(layer.lats[i], layer.longs[i]);
+				if (distance > furthestDistance || (found == count && distance >= distances[found - 1])
+						|| isChangedAbove(layer.ids[i], l)) {
+					continue;
+				}
+				// keep the nearest ones in order, dropping the farthest once there are enough
+				int at = found < count ? found++ : found - 1;
+				while (at > 0 && distances[at - 1] > distance) {
+					entities[at] = entities[at - 1];
+					distances[at] = distances[at - 1];
+					at--;
+				}
+				entities[at] = layer.ids[i];
+				distances[at] = distance;
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * @see RTreeWithCoords#nearestCursor(RTreeWithCoords.Metric)
+	 */
+	NearestCursor nearestCursor(RTreeWithCoords.Metric metric) {
+		return new NearestCursor(metric);
+	}
+
+	/**
+	 * Browses the entities by distance, merging those of the tree that were not changed with the changed ones,
+	 * which are sorted by their distances up front.
+	 */
+	final class NearestCursor {
+		private final RTreeWithCoords.NearestCursor treeCursor;
+		private final long[] changedIds;
+		private final double[] changedDistances;
+		private final IntArrayList changedOrder;
+		private int change = 0;
+		// whether the tree cursor is on an entity not returned yet
+		private boolean treeAhead;
+		private long id;
+		private double distance;
+
+		private NearestCursor(RTreeWithCoords.Metric metric) {
+			treeCursor = tree.nearestCursor(metric);
+			int total = 0;
+			for (Layer layer : layers) {
+				total += layer.ids.length;
+			}
+			changedIds = new long[total];
+			changedDistances = new double[total];
+			changedOrder = new IntArrayList(total);
+			for (int l = 0; l < layers.length; l++) {
+				Layer layer = layers[l];
+				for (int i = 0; i < layer.ids.length; i++) {
+					if (!isChangedAbove(layer.ids[i], l)) {
+						int at = changedOrder.size();
+						changedIds[at] = layer.ids[i];
+						changedDistances[at] = metric.distance(layer.lats[i], layer.longs[i]);
+						changedOrder.add(at);
+					}
+				}
+			}
+			changedOrder.sortThis((a, b) -> Double.compare(changedDistances[a], changedDistances[b]));
+			treeAhead = nextInTree();
+		}
+
+		private boolean nextInTree() {
+			while (treeCursor.next()) {
+				if (!isChanged(treeCursor.getId())) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		boolean next() {
+			boolean changedAhead = change < changedOrder.size();
+			if (treeAhead && (!changedAhead
+					|| treeCursor.getDistance() <= changedDistances[changedOrder.get(change)])) {
+				id = treeCursor.getId();
+				distance = treeCursor.getDistance();
+				treeAhead = nextInTree();
+				return true;
+			}
+			if (changedAhead) {
+				int i = changedOrder.get(change++);
+				id = changedIds[i];
+				distance = changedDistances[i];
+				return true;
+			}
+			return false;
+		}
+
+		long getId() {
+			return id;
+		}
+
+		double getDistance() {
+			return distance;
+		}
+	}
+
+	/**
+	 * Finds the points in a rectangle, first those in the tree that were not changed, then the changed ones
+	 * within the latitudes of the rectangle, layer by layer. Only points of the tree can be known to be in the region without
+	 * testing them.
+	 */
+	final class Cursor {
+		private Rectangle rectangle;
+		private final RTreeWithCoords.Cursor treeCursor;
+		// the layer whose changes are scanned, and the range of them within the latitudes of the rectangle
+		private int layer;
+		private int change;
+		private int changesEnd;
+		private long id;
+		private float lat;
+		private float lon;
+		private boolean contained;
+		private boolean inTree;
+
+		private Cursor(Rectangle r, RTreeWithCoords.Region region) {
+			rectangle = r;
+			treeCursor = tree.cursor(r, region);
+			findChanges();
+		}
+
+		private void findChanges() {
+			layer = -1;
+			change = changesEnd = 0;
+		}
+
+		/**
+		 * @see RTreeWithCoords.Cursor#reset(Rectangle, RTreeWithCoords.Region)
+		 */
+		void reset(Rectangle r, RTreeWithCoords.Region region) {
+			rectangle = r;
+			treeCursor.reset(r, region);
+			findChanges();
+		}
+
+		boolean next() {
+			while (treeCursor.next()) {
+				if (!isChanged(treeCursor.getId())) {
+					id = treeCursor.getId();
+					lat = treeCursor.getMinX();
+					lon = treeCursor.getMinY();
+					contained = treeCursor.isContained();
+					inTree = true;
+					return true;
+				}
+			}
+			while (layer < layers.length) {
+				if (++change >= changesEnd) {
+					if (++layer < layers.length) {
+						change = layers[layer].searchLatitude(rectangle.minX, false) - 1;
+						changesEnd = layers[layer].searchLatitude(rectangle.maxX, true);
+					}
+					continue;
+				}
+				Layer current = layers[layer];
+				if (Utils.contains(rectangle.minX, rectangle.minY, rectangle.maxX, rectangle.maxY,
+						current.lats[change], current.longs[change]) && !isChangedAbove(current.ids[change], layer)) {
+					id = current.ids[change];
+					lat = current.lats[change];
+					lon = current.longs[change];
+					contained = false;
+					inTree = false;
+					return true;
+				}
+			}
+			return false;
+		}
+
+		long getId() {
+			return id;
+		}
+
+		float getLatitude() {
+			return lat;
+		}
+
+		float getLongitude() {
+			return lon;
+		}
+
+		/**
+		 * @return true if the current point is known to be in the region, or the rectangle when there is no
+		 *         region
+		 */
+		boolean isContained() {
+			return contained;
+		}
+
+		/**
+		 * @return whether the unit vector of the current point is known, which it is only for points of a tree
+		 *         keeping them
+		 */
+		boolean hasUnitVector() {
+			return inTree && treeCursor.hasUnitVector();
+		}
+
+		float getUnitX() {
+			return treeCursor.getUnitX();
+		}
+
+		float getUnitY() {
+			return treeCursor.getUnitY();
+		}
+
+		float getUnitZ() {
+			return treeCursor.getUnitZ();
+		}
+	}
+
+	/**
+	 * A set of changes (entity -> point or NO_POINT), with their new points sorted by latitude so that
+	 * queries scan only those in their band.
+	 */
+	private static final class Layer {
+		private final LongLongHashMap changes;
+		private final long[] ids;
+		private final float[] lats;
+		private final float[] longs;
+
+		private Layer(LongLongHashMap changes, long[] ids, float[] lats, float[] longs) {
+			this.changes = changes;
+			this.ids = ids;
+			this.lats = lats;
+			this.longs = longs;
+		}
+
+		/**
+		 * @param changes
+		 *            the changes of the layer, owned by it from now on
+		 */
+		Layer(LongLongHashMap changes) {
+			this.changes = changes;
+			int added = 0;
+			long[] unsortedIds = new long[changes.size()];
+			float[] unsortedLats = new float[changes.size()];
+			float[] unsortedLongs = new float[changes.size()];
+			LongIterator entities = changes.keySet().longIterator();
+			while (entities.hasNext()) {
+				long entity = entities.next();
+				long point = changes.get(entity);
+				if (point != NO_POINT) {
+					unsortedIds[added] = entity;
+					unsortedLats[added] = PointTable.latitudeOf(point);
+					unsortedLongs[added] = PointTable.longitudeOf(point);
+					added++;
+				}
+			}
+			IntArrayList order = new IntArrayList(added);
+			for (int i = 0; i < added; i++) {
+				order.add(i);
+			}
+			order.sortThis((a, b) -> Float.compare(unsortedLats[a], unsortedLats[b]));
+			ids = new long[added];
+			lats = new float[added];
+			longs = new float[added];
+			for (int i = 0; i < added; i++) {
+				int from = order.get(i);
+				ids[i] = unsortedIds[from];
+				lats[i] = unsortedLats[from];
+				longs[i] = unsortedLongs[from];
+			}
+		}
+
+		int size() {
+			return changes.size();
+		}
+
+		/**
+		 * Merges this layer with the older one below it, in time linear in their sizes.
+		 *
+		 * @param tree
+		 *            the points of the tree if nothing is left below the older layer, so that the changes back
+		 *            to the tree can be dropped, otherwise null
+		 */
+		Layer over(Layer older, PointTable tree) {
+			LongLongHashMap merged = new LongLongHashMap(changes.size() + older.changes.size());
+			LongIterator entities = older.changes.keySet().longIterator();
+			while (entities.hasNext()) {
+				long entity = entities.next();
+				if (!changes.containsKey(entity)) {
+					putChange(merged, entity, older.changes.get(entity), tree);
+				}
+			}
+			entities = changes.keySet().longIterator();
+			while (entities.hasNext()) {
+				long entity = entities.next();
+				putChange(merged, entity, changes.get(entity), tree);
+			}
+
+			// merge the new points of both by latitude, leaving out those overridden or dropped
+			int length = 0;
+			long[] mergedIds = new long[ids.length + older.ids.length];
+			float[] mergedLats = new float[mergedIds.length];
+			float[] mergedLongs = new float[mergedIds.length];
+			int i = 0;
+			int j = 0;
+			while (i < ids.length || j < older.ids.length) {
+				if (j == older.ids.length || (i < ids.length && lats[i] <= older.lats[j])) {
+					if (merged.containsKey(ids[i])) {
+						mergedIds[length] = ids[i];
+						mergedLats[length] = lats[i];
+						mergedLongs[length++] = longs[i];
+					}
+					i++;
+				} else {
+					if (!changes.containsKey(older.ids[j]) && merged.containsKey(older.ids[j])) {
+						mergedIds[length] = older.ids[j];
+						mergedLats[length] = older.lats[j];
+						mergedLongs[length++] = older.longs[j];
+					}
+					j++;
+				}
+			}
+			return new Layer(merged, Arrays.copyOf(mergedIds, length), Arrays.copyOf(mergedLats, length),
+					Arrays.copyOf(mergedLongs, length));
+		}
+
+		private static void putChange(LongLongHashMap merged, long entity, long point, PointTable tree) {
+			if (tree == null || point != (tree.contains(entity) ? tree.get(entity) : NO_POINT)) {
+				merged.put(entity, point);
+			}
+		}
+
+		/**
+		 * @return the position of the first new point with a latitude not below lat, or above it if strict
+		 */
+		int searchLatitude(float lat, boolean strict) {
+			int low = 0;
+			int high = lats.length;
+			while (low < high) {
+				int middle = (low + high) >>> 1;
+				if (lats[middle] < lat || (strict && lats[middle] == lat)) {
+					low = middle + 1;
+				} else {
+					high = middle;
+				}
+			}
+			return low;
+		}
+	}
+}
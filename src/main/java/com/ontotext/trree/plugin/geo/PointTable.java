@@ -0,0 +1,172 @@
+package com.ontotext.trree.plugin.geo;
+
+import org.eclipse.collections.api.block.procedure.primitive.LongLongProcedure;
+import org.eclipse.collections.api.iterator.LongIterator;
+import org.eclipse.collections.impl.map.mutable.primitive.LongLongHashMap;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * The coordinates of the indexed entities: a primitive map from entity id to its (lat, lon) pair packed
+ * into a long, so finding where an entity is takes a single hash probe and no literal parsing. Also keeps
+ * the fingerprint of the index, which is derived from the same entries.
+ * <p>
+ * The table is stored in a file of its own next to the index:
+ * <pre>
+ *   int marker, int version, long count, long fingerprint, (long entity, long point)[count]
+ * </pre>
+ * in little-endian byte order.
+ */
+final class PointTable {
+	private static final int FILE_MARKER = 0x47454F50; // "GEOP"
+	private static final int FILE_VERSION = 1;
+	private static final int HEADER_SIZE = 24;
+	private static final int ENTRY_SIZE = 16;
+	private static final int BUFFER_SIZE = 64 << 10;
+
+	private final LongLongHashMap points;
+	private long fingerprint = 0;
+
+	PointTable() {
+		points = new LongLongHashMap();
+	}
+
+	PointTable(int capacity) {
+		points = new LongLongHashMap(capacity);
+	}
+
+	static long pack(float lat, float lon) {
+		return ((long) Float.floatToIntBits(lat) << 32) | (Float.floatToIntBits(lon) & 0xFFFFFFFFL);
+	}
+
+	static float latitudeOf(long point) {
+		return Float.intBitsToFloat((int) (point >>> 32));
+	}
+
+	static float longitudeOf(long point) {
+		return Float.intBitsToFloat((int) point);
+	}
+
+	int size() {
+		return points.size();
+	}
+
+	boolean contains(long entity) {
+		return points.containsKey(entity);
+	}
+
+	/**
+	 * @return the packed point of the entity, only meaningful if the table contains the entity
+	 */
+	long get(long entity) {
+		return points.get(entity);
+	}
+
+	/**
+	 * Sets the point of an entity, replacing the previous one.
+	 */
+	void put(long entity, long point) {
+		if (points.containsKey(entity)) {
+			fingerprint ^= fingerprintOf(entity, points.get(entity));
+		}
+		points.put(entity, point);
+		fingerprint ^= fingerprintOf(entity, point);
+	}
+
+	void remove(long entity) {
+		if (points.containsKey(entity)) {
+			fingerprint ^= fingerprintOf(entity, points.removeKeyIfAbsent(entity, 0));
+		}
+	}
+
+	long getFingerprint() {
+		return fingerprint;
+	}
+
+	void forEach(LongLongProcedure procedure) {
+		points.forEachKeyValue(procedure);
+	}
+
+	static long fingerprintOf(long entity, long point) {
+		return Double.doubleToLongBits(latitudeOf(point)) ^ Double.doubleToLongBits(longitudeOf(point)) ^ entity;
+	}
+
+	/**
+	 * Writes the table to the current position of the channel.
+	 */
+	void save(FileChannel channel) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.putInt(FILE_MARKER);
+		buffer.putInt(FILE_VERSION);
+		buffer.putLong(points.size());
+		buffer.putLong(fingerprint);
+		LongIterator entities = points.keySet().longIterator();
+		while (entities.hasNext()) {
+			if (buffer.remaining() < ENTRY_SIZE) {
+				writeFully(channel, buffer);
+			}
+			long entity = entities.next();
+			buffer.putLong(entity);
+			buffer.putLong(points.get(entity));
+		}
+		writeFully(channel, buffer);
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	/**
+	 * Reads a table written by {@link #save(FileChannel)} from the current position of the channel.
+	 */
+	static PointTable load(FileChannel channel) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.limit(HEADER_SIZE);
+		readFully(channel, buffer);
+		if (buffer.getInt() != FILE_MARKER) {
+			throw new IOException("Not a geospatial point table");
+		}
+		int version = buffer.getInt();
+		if (version != FILE_VERSION) {
+			throw new IOException("Unsupported geospatial point table version " + version);
+		}
+		long count = buffer.getLong();
+		long fingerprint = buffer.getLong();
+		if (count < 0 || count > Integer.MAX_VALUE || channel.size() - channel.position() < count * ENTRY_SIZE) {
+			throw new IOException("Truncated geospatial point table: expected " + count + " entries");
+		}
+
+		PointTable table = new PointTable((int) count);
+		long left = count;
+		while (left > 0) {
+			int entries = (int) Math.min(left, BUFFER_SIZE / ENTRY_SIZE);
+			buffer.clear();
+			buffer.limit(entries * ENTRY_SIZE);
+			readFully(channel, buffer);
+			for (int i = 0; i < entries; i++) {
+				table.put(buffer.getLong(), buffer.getLong());
+			}
+			left -= entries;
+		}
+		if (table.fingerprint != fingerprint) {
+			throw new IOException("Corrupt geospatial point table: fingerprint mismatch");
+		}
+		return table;
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) < 0) {
+				throw new IOException("Unexpected end of geospatial point table");
+			}
+		}
+		buffer.flip();
+	}
+}
@@ -66,6 +66,58 @@ public class Polygon {
 		return (crossings % 2 != 0);
 	}
 
+	/**
+	 * Checks whether a rectangle lies wholly inside the polygon: none of the edges of the polygon may touch
+	 * it, and then one of its corners decides for all of its points. Only rings of edges have an inside.
+	 */
+	public boolean contains(float minLat, float minLon, float maxLat, float maxLon) {
+		if (!isClosed() || minLat < minlat || maxLat > maxlat || minLon < minlon || maxLon > maxlon) {
+			return false;
+		}
+		for (int i = 0; i < sz - 1; i++) {
+			if (touches(pointsLat[i], pointsLon[i], pointsLat[i + 1], pointsLon[i + 1], minLat, minLon, maxLat,
+					maxLon)) {
+				return false;
+			}
+		}
+		// the edge closing the ring, if it is not given
+		if (touches(pointsLat[sz - 1], pointsLon[sz - 1], pointsLat[0], pointsLon[0], minLat, minLon, maxLat,
+				maxLon)) {
+			return false;
+		}
+		return contains(minLat, minLon);
+	}
+
+	/**
+	 * Clips the segment to the rectangle (Liang-Barsky).
+	 *
+	 * @return true if any part of the segment is in the rectangle, including its border
+	 */
+	static boolean touches(float lat1, float lon1, float lat2, float lon2, float minLat, float minLon,
+			float maxLat, float maxLon) {
+		double dLat = lat2 - lat1;
+		double dLon = lon2 - lon1;
+		double[] p = { -dLat, dLat, -dLon, dLon };
+		double[] q = { lat1 - minLat, maxLat - lat1, lon1 - minLon, maxLon - lon1 };
+		double from = 0, to = 1;
+		for (int k = 0; k < 4; k++) {
+			if (p[k] == 0) {
+				if (q[k] < 0) {
+					// parallel to this side and outside of it
+					return false;
+				}
+			} else {
+				double t = q[k] / p[k];
+				if (p[k] < 0) {
+					from = Math.max(from, t);
+				} else {
+					to = Math.min(to, t);
+				}
+			}
+		}
+		return from <= to;
+	}
+
 	public float getMinLat() {
 		return minlat;
 	}
@@ -85,4 +137,25 @@ public class Polygon {
 	public boolean isReady() {
 		return bReady;
 	}
+
+	/**
+	 * @return whether the edges form a ring. The crossing rule never crosses an edge along a meridian, so the
+	 *         edges also form one when the last point is on the meridian of the first and the edge between
+	 *         them is left out.
+	 */
+	boolean isClosed() {
+		return sz > 0 && pointsLon[0] == pointsLon[sz - 1];
+	}
+
+	int size() {
+		return sz;
+	}
+
+	float getLat(int i) {
+		return pointsLat[i];
+	}
+
+	float getLon(int i) {
+		return pointsLon[i];
+	}
 }
@@ -0,0 +1,316 @@
+package com.ontotext.trree.plugin.geo;
+
+import com.ontotext.trree.sdk.StatementIterator;
+import com.ontotext.trree.sdk.Statements;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * The statements with a given predicate, one subject at a time in ascending order, so that the statements
+ * of two predicates can be merge-joined on their subjects instead of looking up one predicate for every
+ * subject of the other.
+ * <p>
+ * A streamed column passes the statements on as the scan returns them and keeps none of them, which works
+ * as long as they come in subject order, as they usually do. A loaded column reads all statements into
+ * memory and sorts them by subject and then by the order they were read in, so the first statement of a
+ * subject stays the first.
+ */
+final class PredicateColumn {
+	private static final int INITIAL_CAPACITY = 1024;
+	// ranges shorter than this are sorted by insertion
+	private static final int INSERTION_SORT_THRESHOLD = 16;
+	// ranges longer than this are partitioned in parallel
+	static final int PARALLEL_SORT_THRESHOLD = 1 << 16;
+
+	/**
+	 * Receives the subjects found in both columns of a join.
+	 */
+	interface JoinProcedure {
+		/**
+		 * @param first
+		 *            the first object of the subject in the first column
+		 * @param second
+		 *            the first object of the subject in the second column
+		 * @param several
+		 *            whether either column has more than one statement with the subject
+		 */
+		void joined(long subject, long first, long second, boolean several);
+	}
+
+	// the scan of a streamed column, null for a loaded one
+	private final StatementIterator iter;
+	// the statements of a loaded column, with the positions they were read in while they are sorted
+	private long[] subjects;
+	private long[] objects;
+	private int[] positions;
+	private int size = 0;
+	private int read = 0;
+
+	// the first statement after the current subject, if there is one
+	private boolean ahead = false;
+	private long aheadSubject;
+	private long aheadObject;
+
+	private long subject;
+	private long object;
+	private boolean several;
+	private boolean outOfOrder = false;
+
+	private PredicateColumn(StatementIterator iter) {
+		this.iter = iter;
+	}
+
+	/**
+	 * Streams the statements with the given predicate, in any context. The column has to be closed.
+	 */
+	static PredicateColumn stream(Statements statements, long predicate) {
+		return stream(statements.get(0, predicate, 0, 0));
+	}
+
+	static PredicateColumn stream(StatementIterator iter) {
+		PredicateColumn column = new PredicateColumn(iter);
+		column.ahead = column.readAhead();
+		return column;
+	}
+
+	/**
+	 * Reads the statements with the given predicate, in any context, into memory and sorts them.
+	 */
+	static PredicateColumn load(Statements statements, long predicate) {
+		return load(statements.get(0, predicate, 0, 0));
+	}
+
+	static PredicateColumn load(StatementIterator iter) {
+		PredicateColumn column = new PredicateColumn(null);
+		column.subjects = new long[INITIAL_CAPACITY];
+		column.objects = new long[INITIAL_CAPACITY];
+		boolean sorted = true;
+		try {
+			while (iter.next()) {
+				if (column.size > 0 && iter.subject < column.subjects[column.size - 1]) {
+					sorted = false;
+				}
+				column.add(iter.subject, iter.object);
+			}
+		} finally {
+			iter.close();
+		}
+		if (!sorted) {
+			column.positions = new int[column.size];
+			for (int i = 0; i < column.size; i++) {
+				column.positions[i] = i;
+			}
+			ForkJoinPool.commonPool().invoke(column.new SortTask(0, column.size - 1));
+			column.positions = null;
+		}
+		column.ahead = column.readAhead();
+		return column;
+	}
+
+	private void add(long subject, long object) {
+		if (size == subjects.length) {
+			subjects = Arrays.copyOf(subjects, size * 2);
+			objects = Arrays.copyOf(objects, size * 2);
+		}
+		subjects[size] = subject;
+		objects[size] = object;
+		size++;
+	}
+
+	private boolean readAhead() {
+		if (iter != null) {
+			if (!iter.next()) {
+				return false;
+			}
+			aheadSubject = iter.subject;
+			aheadObject = iter.object;
+			return true;
+		}
+		if (read == size) {
+			return false;
+		}
+		aheadSubject = subjects[read];
+		aheadObject = objects[read];
+		read++;
+		return true;
+	}
+
+	/**
+	 * Moves to the next subject.
+	 *
+	 * @return false at the end of the column, and after the last subject in order of a streamed column
+	 *         whose statements turn out not to be in subject order
+	 */
+	boolean next() {
+		if (!ahead) {
+			return false;
+		}
+		subject = aheadSubject;
+		object = aheadObject;
+		several = false;
+		while ((ahead = readAhead()) && aheadSubject == subject) {
+			several = true;
+		}
+		if (ahead && aheadSubject < subject) {
+			outOfOrder = true;
+			ahead = false;
+		}
+		return true;
+	}
+
+	long subject() {
+		return subject;
+	}
+
+	/**
+	 * @return the first object of the current subject
+	 */
+	long object() {
+		return object;
+	}
+
+	/**
+	 * @return whether the current subject has more than one statement
+	 */
+	boolean hasSeveral() {
+		return several;
+	}
+
+	/**
+	 * @return whether the statements were found not to be in subject order, which only a streamed column
+	 *         can find
+	 */
+	boolean isOutOfOrder() {
+		return outOfOrder;
+	}
+
+	void close() {
+		if (iter != null) {
+			iter.close();
+		}
+	}
+
+	/**
+	 * Merge-joins two columns on their subjects. Reads both columns to their ends, so that any statement
+	 * out of order is found.
+	 *
+	 * @return false if either column is not in subject order, in which case the procedure has seen only part
+	 *         of the join
+	 */
+	static boolean join(PredicateColumn first, PredicateColumn second, JoinProcedure procedure) {
+		boolean firstAhead = first.next();
+		boolean secondAhead = second.next();
+		while (firstAhead && secondAhead) {
+			if (first.subject < second.subject) {
+				firstAhead = first.next();
+			} else if (first.subject > second.subject) {
+				secondAhead = second.next();
+			} else {
+				procedure.joined(first.subject, first.object, second.object, first.several || second.several);
+				firstAhead = first.next();
+				secondAhead = second.next();
+			}
+		}
+		// a subject left in one column may still come out of order in the other
+		while (firstAhead && !second.outOfOrder) {
+			firstAhead = first.next();
+		}
+		while (secondAhead && !first.outOfOrder) {
+			secondAhead = second.next();
+		}
+		return !first.outOfOrder && !second.outOfOrder;
+	}
+
+	/**
+	 * Sorts the entries from..to (inclusive) by subject and position with a quicksort over the arrays. The
+	 * parts of large ranges are sorted as separate fork-join tasks.
+	 */
+	private class SortTask extends RecursiveAction {
+		private final int from;
+		private final int to;
+
+		SortTask(int from, int to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from < PARALLEL_SORT_THRESHOLD) {
+				sort(from, to);
+				return;
+			}
+			int split = partition(from, to);
+			invokeAll(new SortTask(from, split - 1), new SortTask(split, to));
+		}
+	}
+
+	/**
+	 * Sorts the entries from..to (inclusive) by subject and position, recursing into the smaller part only.
+	 */
+	private void sort(int from, int to) {
+		while (to - from >= INSERTION_SORT_THRESHOLD) {
+			int split = partition(from, to);
+			if (split - from < to - split) {
+				sort(from, split - 1);
+				from = split;
+			} else {
+				sort(split, to);
+				to = split - 1;
+			}
+		}
+		for (int i = from + 1; i <= to; i++) {
+			for (int j = i; j > from && before(j, subjects[j - 1], positions[j - 1]); j--) {
+				swap(j, j - 1);
+			}
+		}
+	}
+
+	/**
+	 * Partitions the entries from..to (inclusive, at least 3) around the median of the first, middle and last
+	 * entry. No two entries are equal, as their positions differ.
+	 *
+	 * @return the position of the first entry of the upper part; all entries before it come before those
+	 *         from it on
+	 */
+	private int partition(int from, int to) {
+		int middle = (from + to) >>> 1;
+		if (before(middle, subjects[from], positions[from])) swap(middle, from);
+		if (before(to, subjects[from], positions[from])) swap(to, from);
+		if (before(to, subjects[middle], positions[middle])) swap(to, middle);
+		long pivotSubject = subjects[middle];
+		int pivotPosition = positions[middle];
+
+		int i = from, j = to;
+		while (i <= j) {
+			while (before(i, pivotSubject, pivotPosition)) i++;
+			while (after(j, pivotSubject, pivotPosition)) j--;
+			if (i <= j) {
+				swap(i++, j--);
+			}
+		}
+		return i;
+	}
+
+	private boolean before(int i, long subject, int position) {
+		return subjects[i] < subject || (subjects[i] == subject && positions[i] < position);
+	}
+
+	private boolean after(int i, long subject, int position) {
+		return subjects[i] > subject || (subjects[i] == subject && positions[i] > position);
+	}
+
+	private void swap(int i, int j) {
+		long subject = subjects[i];
+		subjects[i] = subjects[j];
+		subjects[j] = subject;
+		long object = objects[i];
+		objects[i] = objects[j];
+		objects[j] = object;
+		int position = positions[i];
+		positions[i] = positions[j];
+		positions[j] = position;
+	}
+}
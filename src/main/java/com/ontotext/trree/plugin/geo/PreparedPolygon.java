@@ -0,0 +1,347 @@
+package com.ontotext.trree.plugin.geo;
+
+import com.infomatiq.jsi.Rectangle;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A polygon prepared for many point-in-polygon tests, built once per query. Its bounding box is divided
+ * into a uniform grid. Every cell that no edge comes near is marked as inside or outside, so the points
+ * falling into it are decided by a single lookup. The remaining boundary cells, and the columns of the grid,
+ * list the edges passing through them: a point in a boundary cell is tested with the ray crossing rule of
+ * {@link Polygon#contains(float, float)} against the edges of its column only, which gives the same answer
+ * as testing it against all edges.
+ * <p>
+ * The grid also gives a covering of the polygon with a few rectangles to search the index with, which
+ * leaves out the parts of the bounding box outside the polygon.
+ */
+final class PreparedPolygon {
+	private static final byte OUTSIDE = 0;
+	private static final byte INSIDE = 1;
+	private static final byte BOUNDARY = 2;
+
+	private static final int MIN_GRID_SIZE = 16;
+	private static final int MAX_GRID_SIZE = 512;
+	// the most rectangles a side of the covering is cut into
+	private static final int MAX_COVERING_SIZE = 16;
+	// edges this close to a cell, relative to its size, make it a boundary cell, against rounding errors
+	private static final float CELL_MARGIN = 1e-3f;
+
+	private final Polygon polygon;
+	private final float minLat, minLon, maxLat, maxLon;
+	private final int rows, columns;
+	private final float cellHeight, cellWidth;
+
+	// the edges, from (lat1, lon1) to (lat2, lon2), with the slope of each computed as the polygon does
+	private final float[] lat1, lon1, lat2, lon2;
+	private final double[] slope;
+
+	// the edges whose longitude range meets each column, column c listing columnEdges[columnStart[c]..columnStart[c + 1])
+	private final int[] columnStart;
+	private final int[] columnEdges;
+
+	// the kind of each cell, row by row, and the edges near each boundary cell
+	private final byte[] cells;
+	private final int[] cellStart;
+	private final int[] cellEdges;
+	// the crossing rule only divides the plane into an inside and an outside if the edges form a ring
+	private final boolean closed;
+
+	PreparedPolygon(Polygon polygon) {
+		this.polygon = polygon;
+		minLat = polygon.getMinLat();
+		minLon = polygon.getMinLong();
+		maxLat = polygon.getMaxLat();
+		maxLon = polygon.getMaxLong();
+
+		closed = polygon.isClosed();
+		int points = polygon.size();
+		// a ring left open along a meridian gets the edge closing it, which no ray crosses but points may be near
+		int edges = Math.max(points - 1, 0) + (closed ? 1 : 0);
+		lat1 = new float[edges];
+		lon1 = new float[edges];
+		lat2 = new float[edges];
+		lon2 = new float[edges];
+		slope = new double[edges];
+		for (int e = 0; e < edges; e++) {
+			int next = e + 1 < points ? e + 1 : 0;
+			lat1[e] = polygon.getLat(e);
+			lon1[e] = polygon.getLon(e);
+			lat2[e] = polygon.getLat(next);
+			lon2[e] = polygon.getLon(next);
+			slope[e] = (lat2[e] - lat1[e]) / (lon2[e] - lon1[e]);
+		}
+
+		int size = Math.max(MIN_GRID_SIZE, Math.min(MAX_GRID_SIZE, 2 * (int) Math.ceil(Math.sqrt(edges))));
+		rows = maxLat > minLat ? size : 1;
+		columns = maxLon > minLon ? size : 1;
+		cellHeight = (maxLat - minLat) / rows;
+		cellWidth = (maxLon - minLon) / columns;
+
+		// the columns each edge meets, counted first and filled in a second pass
+		columnStart = new int[columns + 1];
+		for (int e = 0; e < edges; e++) {
+			int from = column(Math.min(lon1[e], lon2[e]));
+			int to = column(Math.max(lon1[e], lon2[e]));
+			for (int c = from; c <= to; c++) {
+				columnStart[c + 1]++;
+			}
+		}
+		for (int c = 0; c < columns; c++) {
+			columnStart[c + 1] += columnStart[c];
+		}
+		columnEdges = new int[columnStart[columns]];
+		int[] fill = Arrays.copyOf(columnStart, columns);
+		for (int e = 0; e < edges; e++) {
+			int from = column(Math.min(lon1[e], lon2[e]));
+			int to = column(Math.max(lon1[e], lon2[e]));
+			for (int c = from; c <= to; c++) {
+				columnEdges[fill[c]++] = e;
+			}
+		}
+
+		// the edges near each cell, again counted first
+		cells = new byte[rows * columns];
+		cellStart = new int[rows * columns + 1];
+		int[] found = null;
+		for (int pass = 0; pass < 2; pass++) {
+			int[] next = pass == 0 ? null : Arrays.copyOf(cellStart, rows * columns);
+			found = pass == 0 ? null : new int[cellStart[rows * columns]];
+			for (int e = 0; e < edges; e++) {
+				int fromRow = row(Math.min(lat1[e], lat2[e]));
+				int toRow = row(Math.max(lat1[e], lat2[e]));
+				int fromColumn = column(Math.min(lon1[e], lon2[e]));
+				int toColumn = column(Math.max(lon1[e], lon2[e]));
+				for (int r = Math.max(fromRow - 1, 0); r <= Math.min(toRow + 1, rows - 1); r++) {
+					for (int c = Math.max(fromColumn - 1, 0); c <= Math.min(toColumn + 1, columns - 1); c++) {
+						if (nearCell(e, r, c)) {
+							int cell = r * columns + c;
+							if (pass == 0) {
+								cellStart[cell + 1]++;
+							} else {
+								found[next[cell]++] = e;
+							}
+						}
+					}
+				}
+			}
+			if (pass == 0) {
+				for (int cell = 0; cell < rows * columns; cell++) {
+					cellStart[cell + 1] += cellStart[cell];
+				}
+			}
+		}
+		cellEdges = found;
+
+		classifyCells();
+	}
+
+	private boolean nearCell(int e, int r, int c) {
+		float marginLat = Math.max(cellHeight, Math.ulp(maxLat)) * CELL_MARGIN;
+		float marginLon = Math.max(cellWidth, Math.ulp(maxLon)) * CELL_MARGIN;
+		return Polygon.touches(lat1[e], lon1[e], lat2[e], lon2[e], minLat + r * cellHeight - marginLat,
+				minLon + c * cellWidth - marginLon, minLat + (r + 1) * cellHeight + marginLat,
+				minLon + (c + 1) * cellWidth + marginLon);
+	}
+
+	/**
+	 * Decides the cells without edges by the crossings above their centres, found column by column.
+	 */
+	private void classifyCells() {
+		double[] crossings = new double[columnEdges.length];
+		for (int c = 0; c < columns; c++) {
+			float lon = minLon + (c + 0.5f) * cellWidth;
+			int count = 0;
+			for (int k = columnStart[c]; k < columnStart[c + 1]; k++) {
+				int e = columnEdges[k];
+				if (crossesMeridian(e, lon)) {
+					crossings[count++] = crossing(e, lon);
+				}
+			}
+			Arrays.sort(crossings, 0, count);
+			// the parity changes below the ends of an open chain of edges, so test all points in their columns
+			boolean nearChainEnd = !closed && polygon.size() > 0
+					&& (nearColumn(polygon.getLon(0), c) || nearColumn(polygon.getLon(polygon.size() - 1), c));
+			int above = count;
+			for (int r = 0; r < rows; r++) {
+				int cell = r * columns + c;
+				if (nearChainEnd || cellStart[cell + 1] > cellStart[cell]) {
+					cells[cell] = BOUNDARY;
+					continue;
+				}
+				float lat = minLat + (r + 0.5f) * cellHeight;
+				// the crossings not above the centre of this row are not above the following rows either
+				while (above > 0 && !(lat < crossings[count - above])) {
+					above--;
+				}
+				cells[cell] = above % 2 != 0 ? INSIDE : OUTSIDE;
+			}
+		}
+	}
+
+	private boolean nearColumn(float lon, int c) {
+		float margin = Math.max(cellWidth, Math.ulp(maxLon)) * CELL_MARGIN;
+		return column(lon - margin) <= c && c <= column(lon + margin);
+	}
+
+	private int row(float lat) {
+		return Math.max(0, Math.min(rows - 1, (int) ((lat - minLat) / cellHeight)));
+	}
+
+	private int column(float lon) {
+		return Math.max(0, Math.min(columns - 1, (int) ((lon - minLon) / cellWidth)));
+	}
+
+	private boolean crossesMeridian(int e, float lon) {
+		return (lon1[e] <= lon && lon < lon2[e]) || (lon2[e] <= lon && lon < lon1[e]);
+	}
+
+	private double crossing(int e, float lon) {
+		return slope[e] * (lon - lon1[e]) + lat1[e];
+	}
+
+	/**
+	 * The same as {@link Polygon#contains(float, float)}.
+	 */
+	boolean contains(float lat, float lon) {
+		if (lat < minLat || lat > maxLat || lon < minLon || lon > maxLon) {
+			return false;
+		}
+		int c = column(lon);
+		byte kind = cells[row(lat) * columns + c];
+		if (kind != BOUNDARY) {
+			return kind == INSIDE;
+		}
+		int crossings = 0;
+		for (int k = columnStart[c]; k < columnStart[c + 1]; k++) {
+			int e = columnEdges[k];
+			if (crossesMeridian(e, lon) && lat < crossing(e, lon)) {
+				crossings++;
+			}
+		}
+		return crossings % 2 != 0;
+	}
+
+	/**
+	 * The same as {@link Polygon#contains(float, float, float, float)}, but looking only at the edges near the
+	 * rectangle.
+	 */
+	boolean contains(float rectMinLat, float rectMinLon, float rectMaxLat, float rectMaxLon) {
+		if (!closed || rectMinLat < minLat || rectMaxLat > maxLat || rectMinLon < minLon || rectMaxLon > maxLon) {
+			return false;
+		}
+		boolean nearEdges = false;
+		for (int r = row(rectMinLat); r <= row(rectMaxLat); r++) {
+			for (int c = column(rectMinLon); c <= column(rectMaxLon); c++) {
+				int cell = r * columns + c;
+				if (cells[cell] == OUTSIDE) {
+					return false;
+				}
+				nearEdges |= cells[cell] == BOUNDARY;
+				for (int k = cellStart[cell]; k < cellStart[cell + 1]; k++) {
+					int e = cellEdges[k];
+					if (Polygon.touches(lat1[e], lon1[e], lat2[e], lon2[e], rectMinLat, rectMinLon, rectMaxLat,
+							rectMaxLon)) {
+						return false;
+					}
+				}
+			}
+		}
+		// no edge meets the rectangle, so all of it is on the same side
+		return !nearEdges || contains(rectMinLat, rectMinLon);
+	}
+
+	/**
+	 * Rectangles that together hold all points of the polygon and do not overlap, and which of them lie
+	 * wholly inside it.
+	 */
+	static final class Covering {
+		final Rectangle[] rectangles;
+		final boolean[] inside;
+
+		private Covering(Rectangle[] rectangles, boolean[] inside) {
+			this.rectangles = rectangles;
+			this.inside = inside;
+		}
+	}
+
+	/**
+	 * Covers the polygon with the cells of a coarser grid that are not outside of it. The cells of a row are
+	 * joined while they are of the same kind, and the rows with the same runs of cells are joined in turn.
+	 */
+	Covering cover() {
+		int rowsPerBand = (rows + MAX_COVERING_SIZE - 1) / MAX_COVERING_SIZE;
+		int columnsPerSpan = (columns + MAX_COVERING_SIZE - 1) / MAX_COVERING_SIZE;
+		int bands = (rows + rowsPerBand - 1) / rowsPerBand;
+		int spans = (columns + columnsPerSpan - 1) / columnsPerSpan;
+		byte[] coarse = new byte[bands * spans];
+		for (int b = 0; b < bands; b++) {
+			for (int s = 0; s < spans; s++) {
+				coarse[b * spans + s] = coarseKind(b * rowsPerBand, Math.min((b + 1) * rowsPerBand, rows),
+						s * columnsPerSpan, Math.min((s + 1) * columnsPerSpan, columns));
+			}
+		}
+
+		List<Rectangle> rectangles = new ArrayList<>();
+		List<Boolean> inside = new ArrayList<>();
+		int from = 0;
+		while (from < bands) {
+			// the following bands with the same cells as this one
+			int to = from + 1;
+			while (to < bands && Arrays.equals(Arrays.copyOfRange(coarse, from * spans, (from + 1) * spans),
+					Arrays.copyOfRange(coarse, to * spans, (to + 1) * spans))) {
+				to++;
+			}
+			float south = latitudeAt(from * rowsPerBand, true);
+			float north = latitudeAt(Math.min(to * rowsPerBand, rows), false);
+			int s = 0;
+			while (s < spans) {
+				byte kind = coarse[from * spans + s];
+				int end = s + 1;
+				while (end < spans && coarse[from * spans + end] == kind) {
+					end++;
+				}
+				if (kind != OUTSIDE) {
+					rectangles.add(new Rectangle(south, longitudeAt(s * columnsPerSpan, true), north,
+							longitudeAt(Math.min(end * columnsPerSpan, columns), false)));
+					inside.add(kind == INSIDE);
+				}
+				s = end;
+			}
+			from = to;
+		}
+		boolean[] wholly = new boolean[inside.size()];
+		for (int i = 0; i < wholly.length; i++) {
+			wholly[i] = inside.get(i);
+		}
+		return new Covering(rectangles.toArray(new Rectangle[rectangles.size()]), wholly);
+	}
+
+	private byte coarseKind(int fromRow, int toRow, int fromColumn, int toColumn) {
+		byte kind = cells[fromRow * columns + fromColumn];
+		for (int r = fromRow; r < toRow && kind != BOUNDARY; r++) {
+			for (int c = fromColumn; c < toColumn; c++) {
+				if (cells[r * columns + c] != kind) {
+					return BOUNDARY;
+				}
+			}
+		}
+		return kind;
+	}
+
+	/**
+	 * @return the latitude of the southern border of a row, or of the northern border of the row below, which
+	 *         the row starts right above
+	 */
+	private float latitudeAt(int r, boolean start) {
+		float lat = r == 0 ? minLat : r == rows ? maxLat : minLat + r * cellHeight;
+		return start && r > 0 ? Math.nextUp(lat) : lat;
+	}
+
+	private float longitudeAt(int c, boolean start) {
+		float lon = c == 0 ? minLon : c == columns ? maxLon : minLon + c * cellWidth;
+		return start && c > 0 ? Math.nextUp(lon) : lon;
+	}
+}
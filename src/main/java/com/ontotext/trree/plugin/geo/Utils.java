@@ -142,4 +142,40 @@ public class Utils {
 		}
 		return true;
 	}
+
+	/**
+	 * Checks whether a point lies within a 'rectangle' the same way as
+	 * {@link #intersects(double, double, double, double, double, double, double, double)} does for a
+	 * rectangle of zero size, but with half the comparisons.
+	 *
+	 * @return true if the point is in the 'rectangle'
+	 */
+	public static boolean contains(double south, double west, double north, double east, double lat, double lon) {
+		if (lat < south || north < lat) {
+			return false;
+		}
+		if (east < west) {
+			// the rectangle spans +/-180 meridian
+			return (west <= lon && lon <= 180) || (-180 <= lon && lon <= east);
+		}
+		return west <= lon && lon <= east;
+	}
+
+	/**
+	 * Checks whether a rectangle that does not span the +/-180 meridian lies wholly within a 'rectangle',
+	 * which may span it.
+	 *
+	 * @return true if every point of the rectangle is in the 'rectangle'
+	 */
+	public static boolean containsRectangle(double south, double west, double north, double east,
+			double minLat, double minLon, double maxLat, double maxLon) {
+		if (minLat < south || north < maxLat) {
+			return false;
+		}
+		if (east < west) {
+			// the 'rectangle' spans +/-180 meridian
+			return (west <= minLon && maxLon <= 180) || (-180 <= minLon && maxLon <= east);
+		}
+		return west <= minLon && maxLon <= east;
+	}
 }
@@ -0,0 +1,106 @@
+package com.infomatiq.jsi.rtree;
+
+import com.infomatiq.jsi.Rectangle;
+import gnu.trove.TLongHashSet;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static com.infomatiq.jsi.rtree.TestRTreeWithCoords.addRandomPoints;
+import static com.infomatiq.jsi.rtree.TestRTreeWithCoords.assertSameResults;
+import static com.infomatiq.jsi.rtree.TestRTreeWithCoords.createTree;
+import static com.infomatiq.jsi.rtree.TestRTreeWithCoords.intersecting;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestRTreeBulkLoad {
+	private static final int POINTS = 20000;
+
+	@Test
+	public void bulkLoadMatchesIncrementalInsert() {
+		assertPackingMatchesIncrementalInsert(RTree.Packing.SORT_TILE_RECURSIVE);
+	}
+
+	@Test
+	public void hilbertBulkLoadMatchesIncrementalInsert() {
+		assertPackingMatchesIncrementalInsert(RTree.Packing.HILBERT);
+	}
+
+	@Test
+	public void hilbertValueIsABijectionOnTheGrid() {
+		assertEquals(0, BulkLoader.hilbertValue(0, 0));
+		TLongHashSet seen = new TLongHashSet();
+		for (int x = 0; x < 64; x++) {
+			for (int y = 0; y < 64; y++) {
+				assertTrue(seen.add(BulkLoader.hilbertValue(x, y)));
+			}
+		}
+	}
+
+	private void assertPackingMatchesIncrementalInsert(RTree.Packing packing) {
+		RTreeWithCoords incremental = createTree();
+		addRandomPoints(incremental, 42, POINTS);
+
+		RTreeWithCoords packed = createTree();
+		packed.startBulkLoad(packing);
+		addRandomPoints(packed, 42, POINTS);
+		packed.finishBulkLoad();
+
+		assertTrue(packed.checkConsistency());
+		assertEquals(POINTS, packed.size());
+
+		assertSameResults(incremental, packed);
+		assertEquals(POINTS, intersecting(packed, new Rectangle(-90, -180, 90, 180)).size());
+	}
+
+	@Test
+	public void bulkLoadFillsNodes() {
+		RTreeWithCoords packed = createTree();
+		packed.startBulkLoad();
+		addRandomPoints(packed, 1, POINTS);
+		packed.finishBulkLoad();
+
+		int leaves = 0;
+		for (long id = 0; id <= packed.getHighestUsedNodeId(); id++) {
+			Node n = packed.getNode(id);
+			if (n != null && n.isLeaf()) {
+				assertTrue(n.entryCount >= packed.minNodeEntries);
+				leaves++;
+			}
+		}
+		assertEquals(POINTS / packed.maxNodeEntries, leaves);
+	}
+
+	@Test
+	public void bulkLoadSmallAndEmptyTrees() {
+		for (int count = 0; count < 25; count++) {
+			RTreeWithCoords packed = createTree();
+			packed.startBulkLoad();
+			addRandomPoints(packed, count, count);
+			packed.finishBulkLoad();
+
+			assertTrue(packed.checkConsistency());
+			assertEquals(count, packed.size());
+			assertEquals(count, intersecting(packed, new Rectangle(-90, -180, 90, 180)).size());
+		}
+	}
+
+	@Test
+	public void bulkLoadedTreeAcceptsUpdates() {
+		RTreeWithCoords packed = createTree();
+		packed.startBulkLoad();
+		addRandomPoints(packed, 3, 1000);
+		packed.finishBulkLoad();
+
+		Random random = new Random(3);
+		Rectangle r = new Rectangle();
+		for (int i = 0; i < 500; i++) {
+			r.minX = r.maxX = random.nextFloat() * 180 - 90;
+			r.minY = r.maxY = random.nextFloat() * 360 - 180;
+			assertTrue(packed.delete(r, i + 1));
+		}
+		addRandomPoints(packed, 4, 200);
+		assertTrue(packed.checkConsistency());
+		assertEquals(700, packed.size());
+	}
+}
@@ -0,0 +1,156 @@
+package com.infomatiq.jsi.rtree;
+
+import com.infomatiq.jsi.Rectangle;
+import gnu.trove.TFloatArrayList;
+import gnu.trove.TLongArrayList;
+import gnu.trove.TLongHashSet;
+import gnu.trove.TLongStack;
+import org.junit.Test;
+
+import java.util.Properties;
+import java.util.Random;
+
+import static com.infomatiq.jsi.rtree.TestRTreeWithCoords.intersecting;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestRTreeRStar {
+	private static final int POINTS = 20000;
+	private static final int QUERIES = 500;
+
+	static RTreeWithCoords createTree(String insertion) {
+		RTreeWithCoords tree = new RTreeWithCoords();
+		Properties prop = new Properties();
+		prop.put("MaxNodeEntries", "10");
+		prop.put("MinNodeEntries", "4");
+		prop.put("Insertion", insertion);
+		tree.init(prop);
+		return tree;
+	}
+
+	/**
+	 * Adds points gathered around a few cities, in the order of their ids, which is how the incremental
+	 * inserts of real data tend to look.
+	 */
+	static void addClusteredPoints(RTreeWithCoords tree, long seed, int count) {
+		Random random = new Random(seed);
+		float[] centreLats = new float[50];
+		float[] centreLongs = new float[centreLats.length];
+		for (int c = 0; c < centreLats.length; c++) {
+			centreLats[c] = random.nextFloat() * 140 - 70;
+			centreLongs[c] = random.nextFloat() * 340 - 170;
+		}
+		Rectangle r = new Rectangle();
+		for (int i = 0; i < count; i++) {
+			int c = random.nextInt(centreLats.length);
+			r.minX = r.maxX = centreLats[c] + (float) random.nextGaussian() * 2;
+			r.minY = r.maxY = centreLongs[c] + (float) random.nextGaussian() * 2;
+			tree.add(r, i + 1);
+		}
+	}
+
+	static Rectangle randomQuery(Random random) {
+		float lat = random.nextFloat() * 140 - 70;
+		float lon = random.nextFloat() * 340 - 170;
+		float size = random.nextFloat() * 5;
+		return new Rectangle(lat, lon, lat + size, lon + size);
+	}
+
+	/**
+	 * @return the number of nodes a search for the rectangle reads
+	 */
+	static int countVisitedNodes(RTree tree, Rectangle r) {
+		int visited = 0;
+		TLongStack nodeIds = new TLongStack();
+		nodeIds.push(tree.getRootNodeId());
+		while (nodeIds.size() > 0) {
+			Node n = tree.getNode(nodeIds.pop());
+			visited++;
+			if (n.isLeaf()) {
+				continue;
+			}
+			for (int i = 0; i < n.entryCount; i++) {
+				if (Rectangle.intersects(r.minX, r.minY, r.maxX, r.maxY, n.entriesMinX[i], n.entriesMinY[i],
+						n.entriesMaxX[i], n.entriesMaxY[i])) {
+					nodeIds.push(n.ids[i]);
+				}
+			}
+		}
+		return visited;
+	}
+
+	@Test
+	public void rStarTreeAnswersLikeGuttmanTree() {
+		RTreeWithCoords guttman = createTree("Guttman");
+		RTreeWithCoords rStar = createTree("RStar");
+		addClusteredPoints(guttman, 1, POINTS);
+		addClusteredPoints(rStar, 1, POINTS);
+		assertTrue(rStar.checkConsistency());
+		assertEquals(guttman.size(), rStar.size());
+
+		Random random = new Random(3);
+		for (int q = 0; q < QUERIES; q++) {
+			Rectangle r = randomQuery(random);
+			assertEquals(intersecting(guttman, r), intersecting(rStar, r));
+		}
+	}
+
+	@Test
+	public void rStarTreeStaysConsistentWhileDeleting() {
+		RTreeWithCoords rStar = createTree("RStar");
+		addClusteredPoints(rStar, 2, POINTS);
+
+		// delete every other point, which condenses many nodes and reinserts their entries
+		Rectangle all = new Rectangle(-90, -180, 90, 180);
+		TLongArrayList ids = new TLongArrayList();
+		TFloatArrayList lats = new TFloatArrayList();
+		TFloatArrayList longs = new TFloatArrayList();
+		RTreeWithCoords.Cursor cursor = rStar.cursor(all);
+		while (cursor.next()) {
+			if (cursor.getId() % 2 == 0) {
+				ids.add(cursor.getId());
+				lats.add(cursor.getMinX());
+				longs.add(cursor.getMinY());
+			}
+		}
+		Rectangle r = new Rectangle();
+		for (int i = 0; i < ids.size(); i++) {
+			r.minX = r.maxX = lats.get(i);
+			r.minY = r.maxY = longs.get(i);
+			assertTrue(rStar.delete(r, ids.get(i)));
+		}
+		assertTrue(rStar.checkConsistency());
+		assertEquals(POINTS - ids.size(), rStar.size());
+		TLongHashSet left = intersecting(rStar, all);
+		assertEquals(POINTS - ids.size(), left.size());
+		for (long id : left.toArray()) {
+			assertTrue(id % 2 == 1);
+		}
+	}
+
+	@Test
+	public void rStarTreeReadsFewerNodes() {
+		RTreeWithCoords guttman = createTree("Guttman");
+		RTreeWithCoords rStar = createTree("RStar");
+		addClusteredPoints(guttman, 1, POINTS);
+		addClusteredPoints(rStar, 1, POINTS);
+
+		long guttmanVisits = 0;
+		long rStarVisits = 0;
+		Random random = new Random(5);
+		for (int q = 0; q < QUERIES; q++) {
+			Rectangle r = randomQuery(random);
+			guttmanVisits += countVisitedNodes(guttman, r);
+			rStarVisits += countVisitedNodes(rStar, r);
+		}
+		assertTrue("R* visited " + rStarVisits + " nodes, Guttman " + guttmanVisits, rStarVisits < guttmanVisits);
+	}
+
+	@Test
+	public void invalidInsertionFallsBackToGuttman() {
+		RTreeWithCoords tree = createTree("NoSuchHeuristic");
+		addClusteredPoints(tree, 4, 1000);
+		assertTrue(tree.checkConsistency());
+		assertEquals(1000, tree.size());
+	}
+}
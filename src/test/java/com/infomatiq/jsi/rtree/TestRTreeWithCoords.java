@@ -0,0 +1,722 @@
+package com.infomatiq.jsi.rtree;
+
+import com.infomatiq.jsi.Point;
+import com.infomatiq.jsi.Rectangle;
+import com.ontotext.trree.plugin.geo.Utils;
+import gnu.trove.TLongArrayList;
+import gnu.trove.TLongHashSet;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestRTreeWithCoords {
+	@Rule
+	public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+	static RTreeWithCoords createTree() {
+		return createTree("Heap");
+	}
+
+	static RTreeWithCoords createTree(String nodeStorage) {
+		return createTree(nodeStorage, false);
+	}
+
+	static RTreeWithCoords createTree(String nodeStorage, boolean unitVectors) {
+		RTreeWithCoords tree = new RTreeWithCoords();
+		Properties prop = new Properties();
+		prop.put("MaxNodeEntries", "10");
+		prop.put("MinNodeEntries", "5");
+		prop.put("NodeStorage", nodeStorage);
+		prop.put("UnitVectors", Boolean.toString(unitVectors));
+		tree.init(prop);
+		return tree;
+	}
+
+	static void addRandomPoints(RTreeWithCoords tree, long seed, int count) {
+		Random random = new Random(seed);
+		Rectangle r = new Rectangle();
+		for (int i = 0; i < count; i++) {
+			r.minX = r.maxX = random.nextFloat() * 180 - 90;
+			r.minY = r.maxY = random.nextFloat() * 360 - 180;
+			tree.add(r, i + 1);
+		}
+	}
+
+	static TLongHashSet intersecting(RTreeWithCoords tree, Rectangle r) {
+		final TLongHashSet result = new TLongHashSet();
+		tree.intersects(r, id -> {
+			assertTrue("duplicate id " + id, result.add(id));
+			return true;
+		});
+		return result;
+	}
+
+	static void assertSameResults(RTreeWithCoords expected, RTreeWithCoords actual) {
+		Random random = new Random(7);
+		for (int q = 0; q < 100; q++) {
+			float lat = random.nextFloat() * 170 - 85;
+			float lon = random.nextFloat() * 350 - 175;
+			Rectangle query = new Rectangle(lat, lon, lat + random.nextFloat() * 5, lon + random.nextFloat() * 5);
+			assertEquals(intersecting(expected, query), intersecting(actual, query));
+		}
+		Rectangle world = new Rectangle(-90, -180, 90, 180);
+		assertEquals(intersecting(expected, world), intersecting(actual, world));
+	}
+
+	@Test
+	public void intersectsFindsThePointsInTheRectangle() {
+		RTreeWithCoords tree = createTree();
+		addRandomPoints(tree, 5, 2000);
+		Random random = new Random(5);
+		float[] lats = new float[2000];
+		float[] lons = new float[2000];
+		for (int i = 0; i < 2000; i++) {
+			lats[i] = random.nextFloat() * 180 - 90;
+			lons[i] = random.nextFloat() * 360 - 180;
+		}
+
+		Random queries = new Random(6);
+		for (int q = 0; q < 50; q++) {
+			float lat = queries.nextFloat() * 170 - 85;
+			float lon = queries.nextFloat() * 350 - 175;
+			Rectangle query = new Rectangle(lat, lon, lat + queries.nextFloat() * 20, lon + queries.nextFloat() * 20);
+			TLongHashSet expected = new TLongHashSet();
+			for (int i = 0; i < 2000; i++) {
+				if (lats[i] >= query.minX && lats[i] <= query.maxX && lons[i] >= query.minY && lons[i] <= query.maxY) {
+					expected.add(i + 1);
+				}
+			}
+			assertEquals(expected, intersecting(tree, query));
+		}
+	}
+
+	private RTreeWithCoords saveAndLoad(RTreeWithCoords tree) throws IOException {
+		File file = tmpFolder.newFile();
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+			tree.save(channel);
+		}
+		RTreeWithCoords loaded = createTree();
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			loaded.load(channel);
+		}
+		return loaded;
+	}
+
+	@Test
+	public void loadedTreeAnswersLikeTheSavedOne() throws IOException {
+		RTreeWithCoords tree = createTree();
+		addRandomPoints(tree, 11, 5000);
+		// leave some deleted nodes behind
+		Random random = new Random(11);
+		Rectangle r = new Rectangle();
+		for (int i = 0; i < 1000; i++) {
+			r.minX = r.maxX = random.nextFloat() * 180 - 90;
+			r.minY = r.maxY = random.nextFloat() * 360 - 180;
+			assertTrue(tree.delete(r, i + 1));
+		}
+
+		RTreeWithCoords loaded = saveAndLoad(tree);
+		assertEquals(4000, loaded.size());
+		assertSameResults(tree, loaded);
+	}
+
+	@Test
+	public void loadedEmptyTree() throws IOException {
+		RTreeWithCoords loaded = saveAndLoad(createTree());
+		assertEquals(0, loaded.size());
+		assertEquals(0, intersecting(loaded, new Rectangle(-90, -180, 90, 180)).size());
+	}
+
+	@Test
+	public void loadRejectsOtherFiles() throws IOException {
+		File file = tmpFolder.newFile();
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			createTree().load(channel);
+			fail("loading an empty file should fail");
+		} catch (IOException expected) {
+			// expected
+		}
+	}
+
+	@Test
+	public void offHeapBulkLoadAnswersLikeHeapTree() throws IOException {
+		RTreeWithCoords heap = createTree();
+		addRandomPoints(heap, 5, 20000);
+
+		RTreeWithCoords offHeap = createTree("OffHeap");
+		offHeap.startBulkLoad();
+		addRandomPoints(offHeap, 5, 20000);
+		offHeap.finishBulkLoad();
+
+		assertTrue(offHeap.checkConsistency());
+		assertEquals(20000, offHeap.size());
+		assertSameResults(heap, offHeap);
+
+		RTreeWithCoords loaded = saveAndLoad(offHeap);
+		assertEquals(20000, loaded.size());
+		assertSameResults(heap, loaded);
+	}
+
+	@Test
+	public void treeMovedOffHeapAnswersLikeBefore() throws IOException {
+		RTreeWithCoords heap = createTree();
+		addRandomPoints(heap, 9, 5000);
+
+		RTreeWithCoords offHeap = createTree("OffHeap");
+		addRandomPoints(offHeap, 9, 5000);
+		offHeap.moveOffHeap();
+
+		assertTrue(offHeap.checkConsistency());
+		assertSameResults(heap, offHeap);
+		assertSameResults(heap, saveAndLoad(offHeap));
+	}
+
+	@Test
+	public void treesOutsideTheHeapCanBeModified() throws IOException {
+		RTreeWithCoords heap = createTree();
+		addRandomPoints(heap, 3, 5000);
+
+		RTreeWithCoords offHeap = createTree("OffHeap");
+		offHeap.startBulkLoad();
+		addRandomPoints(offHeap, 3, 5000);
+		offHeap.finishBulkLoad();
+
+		RTreeWithCoords loaded = saveAndLoad(heap);
+		for (RTreeWithCoords tree : new RTreeWithCoords[] { heap, offHeap, loaded }) {
+			Random random = new Random(3);
+			Rectangle r = new Rectangle();
+			for (int i = 0; i < 2000; i++) {
+				r.minX = r.maxX = random.nextFloat() * 180 - 90;
+				r.minY = r.maxY = random.nextFloat() * 360 - 180;
+				assertTrue(tree.delete(r, i + 1));
+			}
+			// the deleted ids come back at other places
+			addRandomPoints(tree, 4, 2000);
+			assertTrue(tree.checkConsistency());
+		}
+		assertEquals(5000, loaded.size());
+		assertSameResults(heap, offHeap);
+		assertSameResults(heap, loaded);
+		assertSameResults(heap, saveAndLoad(loaded));
+	}
+
+	@Test
+	public void emptyOffHeapBulkLoad() throws IOException {
+		RTreeWithCoords offHeap = createTree("OffHeap");
+		offHeap.startBulkLoad();
+		offHeap.finishBulkLoad();
+		assertEquals(0, offHeap.size());
+		assertEquals(0, intersecting(offHeap, new Rectangle(-90, -180, 90, 180)).size());
+		assertEquals(0, saveAndLoad(offHeap).size());
+	}
+
+	@Test
+	public void pointLeavesGiveWayToRectangles() throws IOException {
+		RTreeWithCoords points = createTree();
+		addRandomPoints(points, 21, 3000);
+		assertTrue(points.hasPointLeaves());
+		// node 0 is the first root, which stays a leaf
+		assertTrue(points.getNode(0).holdsPoints());
+
+		RTreeWithCoords rectangles = saveAndLoad(points);
+		assertTrue(rectangles.hasPointLeaves());
+		rectangles.add(new Rectangle(1, 2, 3, 4), 5000);
+		assertTrue(!rectangles.hasPointLeaves());
+		assertTrue(rectangles.checkConsistency());
+		assertTrue(intersecting(rectangles, new Rectangle(2.5f, 3.5f, 2.5f, 3.5f)).contains(5000));
+
+		RTreeWithCoords loaded = saveAndLoad(rectangles);
+		assertTrue(!loaded.hasPointLeaves());
+		assertEquals(3001, loaded.size());
+		assertSameResults(rectangles, loaded);
+		assertTrue(intersecting(loaded, new Rectangle(2.5f, 3.5f, 2.5f, 3.5f)).contains(5000));
+	}
+
+	static TLongHashSet cursorResults(RTreeWithCoords tree, Rectangle r) {
+		TLongHashSet result = new TLongHashSet();
+		RTreeWithCoords.Cursor cursor = tree.cursor(r);
+		while (cursor.next()) {
+			assertTrue(r.intersects(new Rectangle(cursor.getMinX(), cursor.getMinY(), cursor.getMaxX(),
+					cursor.getMaxY())));
+			assertTrue("duplicate id " + cursor.getId(), result.add(cursor.getId()));
+		}
+		assertTrue(!cursor.next());
+		return result;
+	}
+
+	@Test
+	public void cursorFindsTheIntersectingEntries() throws IOException {
+		RTreeWithCoords heap = createTree();
+		addRandomPoints(heap, 13, 5000);
+		heap.add(new Rectangle(1, 2, 3, 4), 5001);
+
+		RTreeWithCoords offHeap = createTree("OffHeap");
+		offHeap.startBulkLoad();
+		addRandomPoints(offHeap, 13, 5000);
+		offHeap.finishBulkLoad();
+
+		RTreeWithCoords empty = createTree();
+		for (RTreeWithCoords tree : new RTreeWithCoords[] { heap, offHeap, saveAndLoad(heap), empty,
+				saveAndLoad(empty) }) {
+			Random random = new Random(13);
+			for (int q = 0; q < 100; q++) {
+				float lat = random.nextFloat() * 170 - 85;
+				float lon = random.nextFloat() * 350 - 175;
+				Rectangle query = new Rectangle(lat, lon, lat + random.nextFloat() * 5, lon + random.nextFloat() * 5);
+				assertEquals(intersecting(tree, query), cursorResults(tree, query));
+			}
+			Rectangle world = new Rectangle(-90, -180, 90, 180);
+			assertEquals(tree.size(), cursorResults(tree, world).size());
+		}
+		assertTrue(cursorResults(heap, new Rectangle(2.5f, 3.5f, 2.5f, 3.5f)).contains(5001));
+	}
+
+	@Test
+	public void cursorKnowsTheSubtreesInsideTheRegion() throws IOException {
+		RTreeWithCoords tree = createTree();
+		addRandomPoints(tree, 17, 20000);
+		// a disc of radius 40 around 0, 0 in plain coordinates
+		RTreeWithCoords.Region disc = (minX, minY, maxX, maxY) -> Math.max(minX * minX, maxX * maxX)
+				+ Math.max(minY * minY, maxY * maxY) < 1600;
+		Rectangle bounds = new Rectangle(-40, -40, 40, 40);
+		for (RTreeWithCoords t : new RTreeWithCoords[] { tree, saveAndLoad(tree) }) {
+			TLongHashSet found = new TLongHashSet();
+			int inDisc = 0;
+			int contained = 0;
+			RTreeWithCoords.Cursor cursor = t.cursor(bounds, disc);
+			while (cursor.next()) {
+				found.add(cursor.getId());
+				boolean inside = disc.contains(cursor.getMinX(), cursor.getMinY(), cursor.getMinX(), cursor.getMinY());
+				if (inside) {
+					inDisc++;
+				}
+				if (cursor.isContained()) {
+					assertTrue(inside);
+					contained++;
+				}
+			}
+			// the region does not change what is found, only how much of it is known to be inside
+			assertEquals(cursorResults(t, bounds), found);
+			assertTrue(contained + " of " + inDisc, contained > inDisc / 3);
+		}
+	}
+
+	@Test
+	public void intersectsSkipsTheTestsInsideTheRectangle() {
+		RTreeWithCoords tree = createTree();
+		addRandomPoints(tree, 19, 20000);
+		tree.add(new Rectangle(10, 10, 11, 11), 20001);
+		Random random = new Random(19);
+		for (int q = 0; q < 20; q++) {
+			float lat = random.nextFloat() * 100 - 90;
+			float lon = random.nextFloat() * 200 - 180;
+			Rectangle query = new Rectangle(lat, lon, lat + 80, lon + 160);
+			assertEquals(cursorResults(tree, query), intersecting(tree, query));
+		}
+		Rectangle world = new Rectangle(-90, -180, 90, 180);
+		assertEquals(tree.size(), intersecting(tree, world).size());
+	}
+
+	@Test
+	public void unitVectorsFollowThePoints() throws IOException {
+		RTreeWithCoords heap = createTree("Heap", true);
+		addRandomPoints(heap, 23, 5000);
+		// deleting moves entries around in the leaves
+		RTreeWithCoords.Cursor cursor = heap.cursor(new Rectangle(0, 0, 30, 30));
+		TLongHashSet deleted = new TLongHashSet();
+		while (cursor.next()) {
+			deleted.add(cursor.getId());
+		}
+		Random random = new Random(23);
+		Rectangle r = new Rectangle();
+		for (int i = 0; i < 5000; i++) {
+			r.minX = r.maxX = random.nextFloat() * 180 - 90;
+			r.minY = r.maxY = random.nextFloat() * 360 - 180;
+			if (deleted.contains(i + 1)) {
+				assertTrue(heap.delete(r, i + 1));
+			}
+		}
+		assertTrue(heap.hasUnitVectors());
+
+		RTreeWithCoords offHeap = createTree("OffHeap", true);
+		offHeap.startBulkLoad();
+		addRandomPoints(offHeap, 23, 5000);
+		offHeap.finishBulkLoad();
+
+		RTreeWithCoords modified = saveAndLoad(offHeap);
+		modified.add(new Rectangle(1, 2, 1, 2), 5001);
+
+		RTreeWithCoords[] trees = { heap, saveAndLoad(heap), offHeap, modified };
+		for (int t = 0; t < trees.length; t++) {
+			RTreeWithCoords tree = trees[t];
+			int count = 0;
+			cursor = tree.cursor(new Rectangle(-90, -180, 90, 180));
+			while (cursor.next()) {
+				assertTrue("tree " + t, cursor.hasUnitVector());
+				double lat = Math.toRadians(cursor.getMinX());
+				double lon = Math.toRadians(cursor.getMinY());
+				assertEquals(Math.cos(lat) * Math.cos(lon), cursor.getUnitX(), 1e-6);
+				assertEquals(Math.cos(lat) * Math.sin(lon), cursor.getUnitY(), 1e-6);
+				assertEquals(Math.sin(lat), cursor.getUnitZ(), 1e-6);
+				count++;
+			}
+			assertEquals(tree.size(), count);
+		}
+
+		// without the property the vectors are neither kept nor saved
+		RTreeWithCoords plain = createTree();
+		addRandomPoints(plain, 23, 100);
+		assertTrue(!plain.hasUnitVectors());
+		assertTrue(!saveAndLoad(plain).hasUnitVectors());
+		cursor = plain.cursor(new Rectangle(-90, -180, 90, 180));
+		assertTrue(cursor.next() && !cursor.hasUnitVector());
+	}
+
+	/**
+	 * The plane distance of the coordinates, with the least distance of a rectangle the distance of its
+	 * nearest point.
+	 */
+	private static RTreeWithCoords.Metric planeDistanceFrom(final float x, final float y) {
+		return new RTreeWithCoords.Metric() {
+			@Override
+			public double distance(float px, float py) {
+				return Math.hypot(px - x, py - y);
+			}
+
+			@Override
+			public double minDistance(float minX, float minY, float maxX, float maxY) {
+				return Math.hypot(Math.max(0, Math.max(minX - x, x - maxX)), Math.max(0, Math.max(minY - y, y - maxY)));
+			}
+		};
+	}
+
+	private static void assertNearest(RTreeWithCoords tree, long seed, int points) {
+		Random random = new Random(seed);
+		Random search = new Random(13);
+		for (int q = 0; q < 50; q++) {
+			float x = search.nextFloat() * 180 - 90;
+			float y = search.nextFloat() * 360 - 180;
+			int count = 1 + search.nextInt(q % 2 == 0 ? 10 : 200);
+			double furthest = q % 3 == 0 ? 20 : Double.POSITIVE_INFINITY;
+			RTreeWithCoords.Metric metric = planeDistanceFrom(x, y);
+
+			// the distances of all points but the excluded ones, the same points addRandomPoints adds
+			random.setSeed(seed);
+			double[] all = new double[points];
+			int within = 0;
+			for (int i = 0; i < points; i++) {
+				double distance = metric.distance(random.nextFloat() * 180 - 90, random.nextFloat() * 360 - 180);
+				if (i % 7 != 0 && distance <= furthest) {
+					all[within++] = distance;
+				}
+			}
+			Arrays.sort(all, 0, within);
+
+			long[] ids = new long[count];
+			double[] distances = new double[count];
+			int found = tree.nearest(metric, count, furthest, id -> (id - 1) % 7 == 0, ids, distances);
+			assertEquals(Math.min(count, within), found);
+			for (int i = 0; i < found; i++) {
+				assertEquals(all[i], distances[i], 0);
+				assertTrue((ids[i] - 1) % 7 != 0);
+			}
+		}
+	}
+
+	@Test
+	public void nearestFindsTheClosestEntriesFirst() throws IOException {
+		RTreeWithCoords tree = createTree();
+		addRandomPoints(tree, 17, 5000);
+		assertNearest(tree, 17, 5000);
+		assertNearest(saveAndLoad(tree), 17, 5000);
+		assertEquals(0, createTree().nearest(planeDistanceFrom(0, 0), 5, Double.POSITIVE_INFINITY, null,
+				new long[5], new double[5]));
+	}
+
+	@Test
+	public void nearestCursorBrowsesAllEntriesByDistance() throws IOException {
+		RTreeWithCoords tree = createTree();
+		addRandomPoints(tree, 19, 3000);
+		for (RTreeWithCoords browsed : new RTreeWithCoords[] { tree, saveAndLoad(tree) }) {
+			RTreeWithCoords.Metric metric = planeDistanceFrom(10, 20);
+			long[] ids = new long[100];
+			double[] distances = new double[100];
+			assertEquals(100, browsed.nearest(metric, 100, Double.POSITIVE_INFINITY, null, ids, distances));
+
+			RTreeWithCoords.NearestCursor cursor = browsed.nearestCursor(metric);
+			TLongHashSet seen = new TLongHashSet();
+			double last = 0;
+			while (cursor.next()) {
+				assertTrue(seen.add(cursor.getId()));
+				assertTrue(cursor.getDistance() >= last);
+				if (seen.size() <= 100) {
+					assertEquals(distances[seen.size() - 1], cursor.getDistance(), 0);
+				}
+				last = cursor.getDistance();
+			}
+			assertEquals(3000, seen.size());
+		}
+		assertFalse(createTree().nearestCursor(planeDistanceFrom(0, 0)).next());
+	}
+
+	private static TLongArrayList nearestN(RTree tree, Point p, int count) {
+		TLongArrayList found = new TLongArrayList();
+		tree.nearestN(p, id -> {
+			found.add(id);
+			return true;
+		}, count, Float.MAX_VALUE);
+		return found;
+	}
+
+	@Test
+	public void searchesRunConcurrently() throws Exception {
+		RTreeWithCoords tree = createTree();
+		addRandomPoints(tree, 23, 10000);
+		Point[] points = new Point[200];
+		TLongArrayList[] expected = new TLongArrayList[points.length];
+		Random random = new Random(29);
+		for (int q = 0; q < points.length; q++) {
+			points[q] = new Point(random.nextFloat() * 180 - 90, random.nextFloat() * 360 - 180);
+			expected[q] = nearestN(tree, points[q], 1 + q % 20);
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			Future<?>[] futures = new Future<?>[8];
+			for (int t = 0; t < futures.length; t++) {
+				futures[t] = executor.submit(() -> {
+					for (int round = 0; round < 20; round++) {
+						for (int q = 0; q < points.length; q++) {
+							assertEquals(expected[q], nearestN(tree, points[q], 1 + q % 20));
+						}
+					}
+				});
+			}
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		} finally {
+			executor.shutdown();
+			executor.awaitTermination(1, TimeUnit.MINUTES);
+		}
+	}
+
+	@Test
+	public void searchesRunFromTheCallbackOfAnother() {
+		RTreeWithCoords tree = createTree();
+		addRandomPoints(tree, 31, 2000);
+		Point p = new Point(10, 20);
+		TLongArrayList expected = nearestN(tree, p, 10);
+		TLongArrayList outer = new TLongArrayList();
+		tree.nearestN(new Point(-10, -20), id -> {
+			outer.add(id);
+			assertEquals(expected, nearestN(tree, p, 10));
+			return true;
+		}, 10, Float.MAX_VALUE);
+		assertEquals(nearestN(tree, new Point(-10, -20), 10), outer);
+	}
+
+	@Test
+	public void pointVisitorSeesTheCoordinatesOfTheEntries() throws IOException {
+		RTreeWithCoords tree = createTree();
+		addRandomPoints(tree, 37, 5000);
+		for (RTreeWithCoords searched : new RTreeWithCoords[] { tree, saveAndLoad(tree) }) {
+			Random random = new Random(41);
+			for (int q = 0; q < 50; q++) {
+				float lat = random.nextFloat() * 170 - 85;
+				float lon = random.nextFloat() * 350 - 175;
+				Rectangle query = new Rectangle(lat, lon, lat + random.nextFloat() * 10, lon + random.nextFloat() * 10);
+				TLongHashSet visited = new TLongHashSet();
+				searched.intersects(query, (id, x, y) -> {
+					assertTrue(Utils.contains(query.minX, query.minY, query.maxX, query.maxY, x, y));
+					assertTrue(visited.add(id));
+					return true;
+				});
+				assertEquals(intersecting(searched, query), visited);
+			}
+		}
+	}
+
+	@Test
+	public void resetCursorAnswersLikeANewOne() throws IOException {
+		RTreeWithCoords tree = createTree();
+		addRandomPoints(tree, 43, 5000);
+		for (RTreeWithCoords searched : new RTreeWithCoords[] { tree, saveAndLoad(tree) }) {
+			Random random = new Random(47);
+			RTreeWithCoords.Cursor cursor = searched.cursor(new Rectangle(0, 0, 1, 1));
+			for (int q = 0; q < 50; q++) {
+				float lat = random.nextFloat() * 170 - 85;
+				float lon = random.nextFloat() * 350 - 175;
+				Rectangle query = new Rectangle(lat, lon, lat + random.nextFloat() * 10, lon + random.nextFloat() * 10);
+				// leave the previous search half done
+				cursor.next();
+				cursor.reset(query, null);
+				TLongHashSet found = new TLongHashSet();
+				while (cursor.next()) {
+					assertTrue(found.add(cursor.getId()));
+				}
+				assertEquals(cursorResults(searched, query), found);
+			}
+		}
+	}
+
+	@Test
+	public void rectangleTreeSearchesMatchAScanOfTheEntries() {
+		RTree tree = new RTree();
+		Properties prop = new Properties();
+		prop.put("MaxNodeEntries", "10");
+		prop.put("MinNodeEntries", "5");
+		tree.init(prop);
+		Random random = new Random(53);
+		Rectangle[] entries = new Rectangle[5000];
+		for (int i = 0; i < entries.length; i++) {
+			float lat = random.nextFloat() * 170 - 85;
+			float lon = random.nextFloat() * 350 - 175;
+			entries[i] = new Rectangle(lat, lon, lat + random.nextFloat(), lon + random.nextFloat());
+			tree.add(entries[i], i);
+		}
+		for (int q = 0; q < 50; q++) {
+			float lat = random.nextFloat() * 170 - 85;
+			float lon = random.nextFloat() * 350 - 175;
+			Rectangle query = new Rectangle(lat, lon, lat + random.nextFloat() * 10, lon + random.nextFloat() * 10);
+			TLongHashSet expected = new TLongHashSet();
+			for (int i = 0; i < entries.length; i++) {
+				if (entries[i].intersects(query)) {
+					expected.add(i);
+				}
+			}
+			TLongHashSet found = new TLongHashSet();
+			tree.intersects(query, id -> {
+				assertTrue(found.add(id));
+				return true;
+			});
+			assertEquals(expected, found);
+
+			Point p = new Point(lat, lon);
+			float nearest = Float.MAX_VALUE;
+			for (Rectangle entry : entries) {
+				nearest = Math.min(nearest, entry.distance(p));
+			}
+			TLongArrayList nearestIds = new TLongArrayList();
+			tree.nearest(p, id -> {
+				nearestIds.add(id);
+				return true;
+			}, Float.MAX_VALUE);
+			assertTrue(nearestIds.size() > 0);
+			for (int i = 0; i < nearestIds.size(); i++) {
+				assertEquals(nearest, entries[(int) nearestIds.get(i)].distance(p), 0);
+			}
+		}
+	}
+
+	// the recursive walk of intersects before it kept the path from the root on explicit stacks
+	private static void recursiveIntersects(RTree tree, Node n, Rectangle r, TLongArrayList found) {
+		for (int i = 0; i < n.entryCount; i++) {
+			if (Rectangle.intersects(r.minX, r.minY, r.maxX, r.maxY, n.entriesMinX[i], n.entriesMinY[i],
+					n.entriesMaxX[i], n.entriesMaxY[i])) {
+				if (n.isLeaf()) {
+					found.add(n.ids[i]);
+				} else {
+					recursiveIntersects(tree, tree.getNode(n.ids[i]), r, found);
+				}
+			}
+		}
+	}
+
+	// the recursive walk of nearest before it kept the path from the root on explicit stacks
+	private static float recursiveNearest(RTree tree, Node n, Point p, float furthestDistanceSq,
+			TLongArrayList nearestIds) {
+		for (int i = 0; i < n.entryCount; i++) {
+			float distanceSq = Rectangle.distanceSq(n.entriesMinX[i], n.entriesMinY[i], n.entriesMaxX[i],
+					n.entriesMaxY[i], p.x, p.y);
+			if (n.isLeaf()) {
+				if (distanceSq < furthestDistanceSq) {
+					furthestDistanceSq = distanceSq;
+					nearestIds.clear();
+				}
+				if (distanceSq <= furthestDistanceSq) {
+					nearestIds.add(n.ids[i]);
+				}
+			} else if (distanceSq <= furthestDistanceSq) {
+				furthestDistanceSq = recursiveNearest(tree, tree.getNode(n.ids[i]), p, furthestDistanceSq, nearestIds);
+			}
+		}
+		return furthestDistanceSq;
+	}
+
+	@Test
+	public void deepTreeSearchesMatchTheRecursiveWalk() {
+		// a plain tree and trees with point leaves on and off the heap
+		for (String nodeStorage : new String[] { null, "Heap", "OffHeap" }) {
+			RTree tree = nodeStorage == null ? new RTree() : new RTreeWithCoords();
+			Properties prop = new Properties();
+			prop.put("MaxNodeEntries", "4");
+			prop.put("MinNodeEntries", "2");
+			if (nodeStorage != null) {
+				prop.put("NodeStorage", nodeStorage);
+			}
+			tree.init(prop);
+			Random points = new Random(59);
+			Rectangle r = new Rectangle();
+			for (int i = 0; i < 20000; i++) {
+				r.minX = r.maxX = points.nextFloat() * 180 - 90;
+				r.minY = r.maxY = points.nextFloat() * 360 - 180;
+				tree.add(r, i + 1);
+			}
+			assertTrue(tree.getTreeHeight() >= 8);
+
+			Random random = new Random(61);
+			for (int q = 0; q < 50; q++) {
+				float lat = random.nextFloat() * 170 - 85;
+				float lon = random.nextFloat() * 350 - 175;
+				Rectangle query = q == 0 ? new Rectangle(-90, -180, 90, 180)
+						: new Rectangle(lat, lon, lat + random.nextFloat() * 30, lon + random.nextFloat() * 30);
+				TLongArrayList expected = new TLongArrayList();
+				recursiveIntersects(tree, tree.getNode(tree.getRootNodeId()), query, expected);
+				TLongArrayList found = new TLongArrayList();
+				tree.intersects(query, id -> {
+					found.add(id);
+					return true;
+				});
+				assertEquals(expected, found);
+
+				// a search stopped by the procedure has seen the same entries as the recursive one
+				int stopAfter = 1 + random.nextInt(20);
+				TLongArrayList stopped = new TLongArrayList();
+				tree.intersects(query, id -> {
+					stopped.add(id);
+					return stopped.size() < stopAfter;
+				});
+				assertEquals(expected.subList(0, Math.min(stopAfter, expected.size())), stopped);
+
+				Point p = new Point(lat, lon);
+				float furthest = q % 2 == 0 ? 5 : Float.MAX_VALUE;
+				TLongArrayList nearestIds = new TLongArrayList();
+				recursiveNearest(tree, tree.getNode(tree.getRootNodeId()), p, furthest * furthest, nearestIds);
+				TLongArrayList nearest = new TLongArrayList();
+				tree.nearest(p, id -> {
+					nearest.add(id);
+					return true;
+				}, furthest);
+				assertEquals(nearestIds, nearest);
+			}
+		}
+	}
+}
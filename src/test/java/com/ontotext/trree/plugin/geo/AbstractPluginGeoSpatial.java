@@ -16,6 +16,7 @@ import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
 import org.junit.runners.Parameterized.Parameters;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
@@ -575,4 +576,265 @@ public abstract class AbstractPluginGeoSpatial extends SingleRepositoryFunctiona
 		}
 	}
 
+	private int countNearby(RepositoryConnection connection, float lat, float lon, String distance) {
+		String query = " PREFIX geo: <http://www.w3.org/2003/01/geo/wgs84_pos#>\n"
+				+ " SELECT ?link WHERE { ?link <http://www.ontotext.com/owlim/geo#nearby>(\"" + lat + "\" \"" + lon
+				+ "\" \"" + distance + "\") }";
+		TupleQueryResult result = connection.prepareTupleQuery(QueryLanguage.SPARQL, query).evaluate();
+		try {
+			int count = 0;
+			while (result.hasNext()) {
+				result.next();
+				count++;
+			}
+			return count;
+		} finally {
+			result.close();
+		}
+	}
+
+	// the space-separated arguments as the quoted literals of a geo function call
+	private static String argumentList(String arguments) {
+		StringBuilder list = new StringBuilder();
+		for (String argument : arguments.split(" ")) {
+			list.append(" \"").append(argument).append('"');
+		}
+		return list.toString();
+	}
+
+	private boolean matchesBound(RepositoryConnection connection, String predicate, String arguments, String entry) {
+		String query = " SELECT ?link WHERE { ?link <http://www.ontotext.com/owlim/geo#" + predicate + ">("
+				+ argumentList(arguments) + ") }";
+		TupleQuery q = connection.prepareTupleQuery(QueryLanguage.SPARQL, query);
+		q.setBinding("link", vf.createIRI("http://test.org#" + entry));
+		TupleQueryResult result = q.evaluate();
+		try {
+			return result.hasNext();
+		} finally {
+			result.close();
+		}
+	}
+
+	@Test
+	public void testBoundSubjectIsTestedAgainstTheRegion() throws RepositoryException {
+		RepositoryConnection connection = getRepository().getConnection();
+		try {
+			// entry 2 + 10 * i + j is i km north and j km east of (-5, 50)
+			String nearby = "-5.0 50.0 1.5";
+			assertTrue(matchesBound(connection, "nearby", nearby, "13"));
+			assertFalse(matchesBound(connection, "nearby", nearby, "4"));
+			assertFalse(matchesBound(connection, "nearby", nearby, "unindexed"));
+
+			float edge = kmToDegrees(1.5f);
+			String rectangle = "-5.001 49.999 " + (-5f + edge) + " " + (50f + edge);
+			assertTrue(matchesBound(connection, "within", rectangle, "13"));
+			assertFalse(matchesBound(connection, "within", rectangle, "4"));
+			assertFalse(matchesBound(connection, "within", rectangle, "unindexed"));
+
+			float side = kmToDegrees(2.5f);
+			String triangle = "-5.001 49.999 -5.001 " + (50f + side) + " " + (-5f + side) + " 49.999";
+			assertTrue(matchesBound(connection, "within", triangle, "13"));
+			assertFalse(matchesBound(connection, "within", triangle, "24"));
+			assertFalse(matchesBound(connection, "within", triangle, "unindexed"));
+		} finally {
+			connection.close();
+		}
+	}
+
+	private boolean matchesBoundInGraph(RepositoryConnection connection, String polygon, IRI entry, IRI graph) {
+		String query = " SELECT ?link WHERE { GRAPH <" + graph + "> { ?link <http://www.ontotext.com/owlim/geo#within>("
+				+ argumentList(polygon) + ") } }";
+		TupleQuery q = connection.prepareTupleQuery(QueryLanguage.SPARQL, query);
+		q.setBinding("link", entry);
+		TupleQueryResult result = q.evaluate();
+		try {
+			return result.hasNext();
+		} finally {
+			result.close();
+		}
+	}
+
+	@Test
+	public void testBoundSubjectInAPolygonTakesTheCoordinatesOfTheGraph() throws RepositoryException {
+		RepositoryConnection connection = getRepository().getConnection();
+		try {
+			IRI entry = vf.createIRI("http://test.org#inGraph");
+			IRI graph = vf.createIRI("http://test.org/graph");
+			IRI other = vf.createIRI("http://test.org/other");
+			connection.begin();
+			connection.add(entry, propLat, vf.createLiteral("40.5"), graph);
+			connection.add(entry, propLon, vf.createLiteral("40.5"), graph);
+			connection.add(entry, gn_name, vf.createLiteral("inGraph"), other);
+			connection.commit();
+
+			String triangle = "40 40 40 42 42 40";
+			assertTrue(matchesBoundInGraph(connection, triangle, entry, graph));
+			// the entity is indexed, but it has no coordinates in the other graph
+			assertFalse(matchesBoundInGraph(connection, triangle, entry, other));
+		} finally {
+			connection.close();
+		}
+	}
+
+	private List<String> findNearest(RepositoryConnection connection, String arguments, String limit) {
+		String query = " SELECT ?link WHERE { ?link <http://www.ontotext.com/owlim/geo#nearest>("
+				+ argumentList(arguments) + ") }"
+				+ (limit != null ? " LIMIT " + limit : "");
+		TupleQueryResult result = connection.prepareTupleQuery(QueryLanguage.SPARQL, query).evaluate();
+		try {
+			List<String> found = new ArrayList<>();
+			while (result.hasNext()) {
+				found.add(result.next().getValue("link").stringValue().substring("http://test.org#".length()));
+			}
+			return found;
+		} finally {
+			result.close();
+		}
+	}
+
+	@Test
+	public void testNearest() throws RepositoryException {
+		RepositoryConnection connection = getRepository().getConnection();
+		try {
+			// entry 3 is 0.996 km east of entry 2 at (-5, 50), entry 12 is 1 km north and entry 13 is 1.41 km away
+			assertEquals(Arrays.asList("2", "3", "12"), findNearest(connection, "-5.0 50.0 3", null));
+			assertEquals(Arrays.asList("2", "3", "12", "13"), findNearest(connection, "-5.0 50.0 4", null));
+			assertEquals(Arrays.asList("2", "3", "12"), findNearest(connection, "-5.0 50.0 4 1.2", null));
+			assertEquals(100, findNearest(connection, "-5.0 50.0 1000", null).size());
+
+			assertTrue(matchesBound(connection, "nearest", "-5.0 50.0 4", "13"));
+			assertFalse(matchesBound(connection, "nearest", "-5.0 50.0 3", "13"));
+			assertFalse(matchesBound(connection, "nearest", "-5.0 50.0 4 1.2", "13"));
+			assertFalse(matchesBound(connection, "nearest", "-5.0 50.0 4", "unindexed"));
+		} finally {
+			connection.close();
+		}
+	}
+
+	@Test
+	public void testNearestBrowsesByDistance() throws RepositoryException {
+		RepositoryConnection connection = getRepository().getConnection();
+		try {
+			assertEquals(Arrays.asList("2", "3", "12"), findNearest(connection, "-5.0 50.0", "3"));
+			List<String> all = findNearest(connection, "-5.0 50.0", null);
+			assertEquals(100, all.size());
+			assertEquals(Arrays.asList("2", "3", "12", "13"), all.subList(0, 4));
+			assertEquals("101", all.get(99));
+
+			assertTrue(matchesBound(connection, "nearest", "-5.0 50.0", "101"));
+			assertFalse(matchesBound(connection, "nearest", "-5.0 50.0", "unindexed"));
+		} finally {
+			connection.close();
+		}
+	}
+
+	@Test
+	public void testIndexFollowsCoordinateChanges() throws RepositoryException {
+		RepositoryConnection connection = getRepository().getConnection();
+		try {
+			float lat = 10f;
+			float lon = 10f;
+			assertEquals(0, countNearby(connection, lat, lon, "1"));
+
+			// a new point is visible without rebuilding the index
+			connection.begin();
+			addEntry(connection, "new", "new", lat, lon, gn_Airport);
+			connection.commit();
+			assertEquals(1, countNearby(connection, lat, lon, "1"));
+
+			// moving it removes the old entry
+			IRI entry = vf.createIRI("http://test.org#new");
+			connection.begin();
+			connection.remove(entry, propLon, null);
+			connection.add(entry, propLon, vf.createLiteral("" + (lon + 1)));
+			connection.commit();
+			assertEquals(0, countNearby(connection, lat, lon, "1"));
+			assertEquals(1, countNearby(connection, lat, lon + 1, "1"));
+
+			// and so does removing one of its coordinates
+			connection.begin();
+			connection.remove(entry, propLat, null);
+			connection.commit();
+			assertEquals(0, countNearby(connection, lat, lon + 1, "1"));
+
+			// changes are kept across restarts
+			connection.begin();
+			connection.add(entry, propLat, vf.createLiteral("" + lat));
+			connection.commit();
+			connection.close();
+			getRepository().shutDown();
+			getRepository().init();
+			connection = getRepository().getConnection();
+			assertEquals(1, countNearby(connection, lat, lon + 1, "1"));
+		} finally {
+			connection.close();
+		}
+	}
+
+	@Test
+	public void testTransactionSeesItsOwnPoints() throws RepositoryException {
+		RepositoryConnection connection = getRepository().getConnection();
+		RepositoryConnection other = getRepository().getConnection();
+		try {
+			float lat = -20f;
+			float lon = -20f;
+			connection.begin();
+			addEntry(connection, "uncommitted", "uncommitted", lat, lon, gn_Airport);
+			// visible to the transaction only, until it commits
+			assertEquals(1, countNearby(connection, lat, lon, "1"));
+			assertEquals(0, countNearby(other, lat, lon, "1"));
+			connection.commit();
+			assertEquals(1, countNearby(other, lat, lon, "1"));
+
+			connection.begin();
+			connection.remove(vf.createIRI("http://test.org#uncommitted"), propLat, null);
+			assertEquals(0, countNearby(connection, lat, lon, "1"));
+			assertEquals(1, countNearby(other, lat, lon, "1"));
+			connection.rollback();
+			assertEquals(1, countNearby(connection, lat, lon, "1"));
+		} finally {
+			other.close();
+			connection.close();
+		}
+	}
+
+	@Test
+	public void testOpenResultsDoNotBlockUpdates() throws Exception {
+		RepositoryConnection connection = getRepository().getConnection();
+		RepositoryConnection writer = getRepository().getConnection();
+		try {
+			String query = " SELECT ?link WHERE { ?link <http://www.ontotext.com/owlim/geo#nearby>(-5.0 50.0 \"5\") }";
+			TupleQueryResult result = connection.prepareTupleQuery(QueryLanguage.SPARQL, query).evaluate();
+			assertTrue(result.hasNext());
+			result.next();
+
+			// a change is committed and seen while the result is still being read
+			writer.begin();
+			addEntry(writer, "whileReading", "whileReading", 30f, 30f, gn_Airport);
+			writer.commit();
+			assertEquals(1, countNearby(writer, 30f, 30f, "1"));
+
+			// and the result may be closed from another thread
+			Thread closer = new Thread(result::close);
+			closer.start();
+			closer.join();
+		} finally {
+			writer.close();
+			connection.close();
+		}
+	}
+
+	@Test
+	public void testUpdateSearchingTheIndexCanRebuildIt() throws RepositoryException {
+		RepositoryConnection connection = getRepository().getConnection();
+		try {
+			connection.begin();
+			connection.prepareUpdate(QueryLanguage.SPARQL, "INSERT { _:b1 <http://www.ontotext.com/owlim/geo#createIndex> _:b2 }"
+					+ " WHERE { ?link <http://www.ontotext.com/owlim/geo#nearby>(-5.0 50.0 \"1\") }").execute();
+			connection.commit();
+			assertEquals(3, countNearby(connection, -5.0f, 50.0f, "1"));
+		} finally {
+			connection.close();
+		}
+	}
 }
@@ -0,0 +1,90 @@
+package com.ontotext.trree.plugin.geo;
+
+import com.infomatiq.jsi.Rectangle;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestCapCovering {
+
+	private static int coveringCount(Rectangle[] covering, float lat, float lon) {
+		int count = 0;
+		for (Rectangle r : covering) {
+			if (Utils.contains(r.minX, r.minY, r.maxX, r.maxY, lat, lon)) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	private static void assertCovers(float lat, float lon, float distancekm, Random random) {
+		Rectangle[] covering = CapCovering.cover(lat, lon, distancekm);
+		double radDist = Utils.distanceKmToAngular(distancekm);
+		float latSpan = (float) Math.toDegrees(radDist) + 1;
+		for (int p = 0; p < 2000; p++) {
+			float pLat = Math.max(-90, Math.min(90, lat + (random.nextFloat() * 2 - 1) * latSpan));
+			float pLon = random.nextFloat() * 360 - 180;
+			int count = coveringCount(covering, pLat, pLon);
+			assertTrue("point found twice", count <= 1);
+			if (Utils.angularDistance(lat, lon, pLat, pLon) < radDist) {
+				assertEquals("point " + pLat + " " + pLon + " of cap " + lat + " " + lon + " " + distancekm, 1, count);
+			}
+		}
+	}
+
+	@Test
+	public void coversTheCap() {
+		Random random = new Random(29);
+		for (int q = 0; q < 500; q++) {
+			float lat = random.nextFloat() * 180 - 90;
+			float lon = random.nextFloat() * 360 - 180;
+			float distancekm = random.nextFloat() * (q % 2 == 0 ? 100 : 3000);
+			assertCovers(lat, lon, distancekm, random);
+		}
+	}
+
+	@Test
+	public void coversCapsAtThePolesAndTheAntimeridian() {
+		Random random = new Random(31);
+		assertCovers(90, 0, 500, random);
+		assertCovers(-90, 45, 500, random);
+		assertCovers(85, 179, 1000, random);
+		assertCovers(0, -179.9f, 100, random);
+		assertCovers(0, 180, 100, random);
+		assertCovers(40, 10, 0, random);
+		assertCovers(40, 10, 30000, random);
+	}
+
+	private static double area(Rectangle[] covering) {
+		double area = 0;
+		for (Rectangle r : covering) {
+			area += r.area();
+		}
+		return area;
+	}
+
+	@Test
+	public void capsReachingThePoleAreCoveredTightly() {
+		// a single box around these spans all longitudes from the southern edge of the cap up to the pole
+		for (float[] cap : new float[][] { { 80, 2000 }, { 87, 600 }, { -85, 1000 } }) {
+			float lat = cap[0];
+			float distancekm = cap[1];
+			double latSpan = Math.toDegrees(Utils.distanceKmToAngular(distancekm));
+			double bandArea = (90 - Math.abs(lat) + latSpan) * 360;
+
+			Rectangle[] covering = CapCovering.cover(lat, 10, distancekm);
+			assertTrue(covering.length > 1);
+			assertTrue("covering area " + area(covering) + " band " + bandArea, area(covering) < bandArea * 0.8);
+		}
+	}
+
+	@Test
+	public void smallCapsAreCoveredByOneBox() {
+		for (float lat : new float[] { 0, 45, 70 }) {
+			assertEquals(1, CapCovering.cover(lat, 0, 100).length);
+		}
+	}
+}
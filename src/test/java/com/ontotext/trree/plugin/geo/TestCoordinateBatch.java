@@ -0,0 +1,110 @@
+package com.ontotext.trree.plugin.geo;
+
+import com.infomatiq.jsi.Rectangle;
+import com.infomatiq.jsi.rtree.RTreeWithCoords;
+import com.ontotext.trree.sdk.Entities;
+import gnu.trove.TLongArrayList;
+import org.eclipse.rdf4j.model.Value;
+import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestCoordinateBatch {
+	private static final SimpleValueFactory VF = SimpleValueFactory.getInstance();
+
+	/**
+	 * A tree that keeps the order its entries were added in.
+	 */
+	private static final class RecordingTree extends RTreeWithCoords {
+		final TLongArrayList added = new TLongArrayList();
+
+		RecordingTree() {
+			Properties prop = new Properties();
+			prop.put("MaxNodeEntries", "10");
+			prop.put("MinNodeEntries", "5");
+			init(prop);
+		}
+
+		@Override
+		public void add(Rectangle r, long id) {
+			added.add(id);
+			super.add(r, id);
+		}
+	}
+
+	/**
+	 * @return entities that know only the values of the given ids
+	 */
+	private static Entities entitiesOf(Map<Long, Value> values) {
+		return (Entities) Proxy.newProxyInstance(Entities.class.getClassLoader(), new Class<?>[] { Entities.class },
+				(proxy, method, args) -> {
+					if (method.getName().equals("get") && args.length == 1) {
+						return values.get(args[0]);
+					}
+					throw new UnsupportedOperationException(method.getName());
+				});
+	}
+
+	@Test
+	public void onlyNumericLiteralsAreAdded() {
+		Map<Long, Value> values = new HashMap<>();
+		values.put(1L, VF.createLiteral("10.5"));
+		values.put(2L, VF.createLiteral("-20.25"));
+		values.put(3L, VF.createLiteral("north"));
+		values.put(4L, VF.createIRI("http://example.com/place"));
+		values.put(5L, VF.createLiteral("1e1"));
+
+		CoordinateBatch batch = new CoordinateBatch(5);
+		batch.add(100, 1, 2);
+		batch.add(101, 3, 2);
+		batch.add(102, 4, 1);
+		batch.add(103, 5, 1);
+		batch.add(104, 1, 6);
+		assertTrue(batch.isFull());
+		batch.resolve(entitiesOf(values));
+		batch.parse();
+
+		RecordingTree tree = new RecordingTree();
+		PointTable points = new PointTable();
+		assertEquals(2, batch.addTo(tree, points));
+		assertEquals(2, points.size());
+		assertEquals(PointTable.pack(10.5f, -20.25f), points.get(100));
+		assertEquals(PointTable.pack(10f, 10.5f), points.get(103));
+		assertEquals(2, tree.size());
+
+		batch.clear();
+		assertEquals(0, batch.size());
+		assertFalse(batch.isFull());
+	}
+
+	@Test
+	public void pipelineAddsTheEntitiesInOrder() {
+		Map<Long, Value> values = new HashMap<>();
+		for (long id = 1; id <= 100; id++) {
+			values.put(id, VF.createLiteral(Float.toString(id * 0.5f)));
+		}
+		RecordingTree tree = new RecordingTree();
+		PointTable points = new PointTable();
+		// several swaps of the two batches, with a part filled batch left at the end
+		CoordinatePipeline pipeline = new CoordinatePipeline(tree, points, entitiesOf(values), 3);
+		for (long subject = 1; subject <= 50; subject++) {
+			pipeline.add(1000 + subject, subject, 101 - subject);
+		}
+		assertEquals(50, pipeline.finish());
+
+		assertEquals(50, tree.added.size());
+		for (int i = 0; i < 50; i++) {
+			long subject = i + 1;
+			assertEquals(1000 + subject, tree.added.get(i));
+			assertEquals(PointTable.pack(subject * 0.5f, (101 - subject) * 0.5f), points.get(1000 + subject));
+		}
+	}
+}
@@ -0,0 +1,52 @@
+package com.ontotext.trree.plugin.geo;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestGeodesicMetric {
+
+	@Test
+	public void rectanglesAreNoFartherThanTheirPoints() {
+		Random random = new Random(5);
+		for (int q = 0; q < 20000; q++) {
+			GeodesicMetric metric = new GeodesicMetric(random.nextFloat() * 180 - 90, random.nextFloat() * 360 - 180);
+			float minLat = random.nextFloat() * 180 - 90;
+			float minLon = random.nextFloat() * 360 - 180;
+			float maxLat = Math.min(90, minLat + random.nextFloat() * (q % 2 == 0 ? 2 : 60));
+			float maxLon = Math.min(180, minLon + random.nextFloat() * (q % 2 == 0 ? 2 : 120));
+			double least = metric.minDistance(minLat, minLon, maxLat, maxLon);
+			double nearest = Double.POSITIVE_INFINITY;
+			for (int p = 0; p < 50; p++) {
+				float lat = minLat + random.nextFloat() * (maxLat - minLat);
+				float lon = minLon + random.nextFloat() * (maxLon - minLon);
+				nearest = Math.min(nearest, metric.distance(lat, lon));
+			}
+			for (float lat : new float[] { minLat, maxLat }) {
+				for (float lon : new float[] { minLon, maxLon }) {
+					nearest = Math.min(nearest, metric.distance(lat, lon));
+				}
+			}
+			assertTrue(least + " > " + nearest, least <= nearest);
+		}
+	}
+
+	@Test
+	public void rectanglesAreAsNearAsTheirNearestPoint() {
+		GeodesicMetric metric = new GeodesicMetric(50, 10);
+		// the nearest point is on the meridian of the point
+		assertEquals(Math.toRadians(5), metric.minDistance(55, 0, 60, 20), 1e-5);
+		// inside
+		assertEquals(0, metric.minDistance(40, 0, 60, 20), 0);
+		// the nearest point lies on a side, north of the nearest corner, as great circles bend to the pole
+		double side = metric.minDistance(40, 20, 50, 30);
+		assertTrue(side < metric.distance(50, 20));
+		assertEquals(metric.distance(50.4f, 20), side, 1e-3);
+		// across the antimeridian
+		GeodesicMetric east = new GeodesicMetric(0, 179);
+		assertEquals(Math.toRadians(2), east.minDistance(-1, -179, 1, -170), 1e-5);
+	}
+}
@@ -0,0 +1,346 @@
+package com.ontotext.trree.plugin.geo;
+
+import com.infomatiq.jsi.Rectangle;
+import com.infomatiq.jsi.rtree.RTree;
+import com.infomatiq.jsi.rtree.RTreeWithCoords;
+import gnu.trove.TLongHashSet;
+import org.eclipse.collections.impl.map.mutable.primitive.LongLongHashMap;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestIndexSnapshot {
+
+	private static RTreeWithCoords createTree() {
+		RTreeWithCoords tree = new RTreeWithCoords();
+		Properties prop = new Properties();
+		prop.put("MaxNodeEntries", "10");
+		prop.put("MinNodeEntries", "5");
+		tree.init(prop);
+		return tree;
+	}
+
+	private static long randomPoint(Random random) {
+		return PointTable.pack(random.nextFloat() * 180 - 90, random.nextFloat() * 360 - 180);
+	}
+
+	private static IndexSnapshot build(PointTable points) {
+		return new IndexSnapshot(createTree(), new PointTable()).withChanges(changesOf(points))
+				.fold(createTree(), RTree.Packing.SORT_TILE_RECURSIVE);
+	}
+
+	private static LongLongHashMap changesOf(PointTable points) {
+		LongLongHashMap changes = new LongLongHashMap();
+		points.forEach(changes::put);
+		return changes;
+	}
+
+	private static TLongHashSet found(IndexSnapshot snapshot, Rectangle r) {
+		TLongHashSet result = new TLongHashSet();
+		IndexSnapshot.Cursor cursor = snapshot.cursor(r);
+		while (cursor.next()) {
+			assertTrue("duplicate id " + cursor.getId(), result.add(cursor.getId()));
+			assertEquals(snapshot.pointOf(cursor.getId()),
+					PointTable.pack(cursor.getLatitude(), cursor.getLongitude()));
+		}
+		return result;
+	}
+
+	private static TLongHashSet expected(PointTable points, final Rectangle r) {
+		final TLongHashSet result = new TLongHashSet();
+		points.forEach((entity, point) -> {
+			if (Utils.contains(r.minX, r.minY, r.maxX, r.maxY, PointTable.latitudeOf(point),
+					PointTable.longitudeOf(point))) {
+				result.add(entity);
+			}
+		});
+		return result;
+	}
+
+	private static void assertHolds(PointTable points, IndexSnapshot snapshot) {
+		assertEquals(points.size(), snapshot.size());
+		assertEquals(points.getFingerprint(), snapshot.getFingerprint());
+		Random random = new Random(5);
+		for (int q = 0; q < 50; q++) {
+			float lat = random.nextFloat() * 170 - 85;
+			float lon = random.nextFloat() * 350 - 175;
+			Rectangle query = new Rectangle(lat, lon, lat + random.nextFloat() * 20, lon + random.nextFloat() * 20);
+			assertEquals(expected(points, query), found(snapshot, query));
+		}
+	}
+
+	@Test
+	public void changesAreSeenOnlyByNewerSnapshots() {
+		Random random = new Random(3);
+		PointTable points = new PointTable();
+		for (int i = 1; i <= 3000; i++) {
+			points.put(i, randomPoint(random));
+		}
+		IndexSnapshot base = build(points);
+		assertEquals(0, base.getChangeCount());
+		assertHolds(points, base);
+
+		PointTable changed = new PointTable();
+		points.forEach(changed::put);
+		LongLongHashMap changes = new LongLongHashMap();
+		for (int i = 1; i <= 500; i++) {
+			// move, remove or add back an entity
+			long entity = random.nextInt(3500) + 1;
+			long point = random.nextInt(3) == 0 ? IndexSnapshot.NO_POINT : randomPoint(random);
+			changes.put(entity, point);
+			if (point == IndexSnapshot.NO_POINT) {
+				changed.remove(entity);
+			} else {
+				changed.put(entity, point);
+			}
+		}
+		IndexSnapshot next = base.withChanges(changes);
+		assertHolds(points, base);
+		assertHolds(changed, next);
+		assertEquals(IndexSnapshot.NO_POINT, next.pointOf(4000));
+
+		// restoring the original points leaves no changes
+		assertEquals(0, next.withChanges(changesOf(points)).withChanges(removalsOf(changed, points))
+				.getChangeCount());
+	}
+
+	@Test
+	public void cursorFindsChangedPointsInTheBandOfTheRectangle() {
+		IndexSnapshot base = build(new PointTable());
+		LongLongHashMap changes = new LongLongHashMap();
+		PointTable changed = new PointTable();
+		Random random = new Random(19);
+		for (int i = 1; i <= 2000; i++) {
+			// many points share a latitude, some of them on the edges of the rectangles
+			long point = PointTable.pack(random.nextInt(41) - 20, random.nextFloat() * 360 - 180);
+			changes.put(i, point);
+			changed.put(i, point);
+		}
+		IndexSnapshot snapshot = base.withChanges(changes);
+		Rectangle[] rectangles = { new Rectangle(-5, -180, 5, 180), new Rectangle(3, 170, 3, -170),
+				new Rectangle(-20, 0, -20, 90), new Rectangle(20, -90, 30, 90), new Rectangle(-30, -180, -21, 180) };
+		for (Rectangle r : rectangles) {
+			assertEquals(expected(changed, r), found(snapshot, r));
+		}
+		IndexSnapshot.Cursor cursor = snapshot.cursor(rectangles[0]);
+		for (Rectangle r : rectangles) {
+			cursor.reset(r, null);
+			TLongHashSet result = new TLongHashSet();
+			while (cursor.next()) {
+				assertTrue(result.add(cursor.getId()));
+			}
+			assertEquals(expected(changed, r), result);
+		}
+	}
+
+	private static LongLongHashMap removalsOf(PointTable from, PointTable kept) {
+		LongLongHashMap removals = new LongLongHashMap();
+		from.forEach((entity, point) -> {
+			if (!kept.contains(entity)) {
+				removals.put(entity, IndexSnapshot.NO_POINT);
+			}
+		});
+		return removals;
+	}
+
+	@Test
+	public void changesMadeDuringAFoldAreKept() {
+		Random random = new Random(7);
+		PointTable points = new PointTable();
+		for (int i = 1; i <= 2000; i++) {
+			points.put(i, randomPoint(random));
+		}
+		IndexSnapshot base = build(points);
+
+		LongLongHashMap first = new LongLongHashMap();
+		for (int i = 1; i <= 300; i++) {
+			long point = randomPoint(random);
+			first.put(i, point);
+			points.put(i, point);
+		}
+		first.put(2001, PointTable.pack(1, 1));
+		points.put(2001, PointTable.pack(1, 1));
+		IndexSnapshot from = base.withChanges(first);
+		IndexSnapshot folded = from.fold(createTree(), RTree.Packing.HILBERT);
+		assertEquals(0, folded.getChangeCount());
+		assertHolds(points, folded);
+
+		// meanwhile some entities change again, are removed or go back to their original point
+		LongLongHashMap second = new LongLongHashMap();
+		for (int i = 200; i <= 400; i++) {
+			long point = randomPoint(random);
+			second.put(i, point);
+			points.put(i, point);
+		}
+		second.put(2001, IndexSnapshot.NO_POINT);
+		points.remove(2001);
+		second.put(1, base.pointOf(1));
+		points.put(1, base.pointOf(1));
+		IndexSnapshot latest = from.withChanges(second);
+		assertHolds(points, latest);
+
+		IndexSnapshot rebased = latest.rebase(folded, from);
+		assertHolds(points, rebased);
+		assertTrue(rebased.getChangeCount() <= second.size());
+	}
+
+	@Test
+	public void changesFromAnOlderBuildTurnItIntoTheSnapshot() {
+		Random random = new Random(13);
+		PointTable points = new PointTable();
+		for (int i = 1; i <= 2000; i++) {
+			points.put(i, randomPoint(random));
+		}
+		// a build from older statements, which lacks some of the changes of the snapshot
+		PointTable older = new PointTable();
+		points.forEach(older::put);
+		IndexSnapshot base = build(points);
+		LongLongHashMap changes = new LongLongHashMap();
+		for (int i = 1; i <= 300; i++) {
+			long entity = random.nextInt(2500) + 1;
+			long point = random.nextInt(3) == 0 ? IndexSnapshot.NO_POINT : randomPoint(random);
+			changes.put(entity, point);
+			if (point == IndexSnapshot.NO_POINT) {
+				points.remove(entity);
+			} else {
+				points.put(entity, point);
+			}
+		}
+		IndexSnapshot current = base.withChanges(changes);
+		older.put(3000, randomPoint(random));
+
+		IndexSnapshot rebuilt = build(older).withChanges(current.changesFrom(older));
+		assertHolds(points, rebuilt);
+		assertEquals(IndexSnapshot.NO_POINT, rebuilt.pointOf(3000));
+		assertEquals(0, current.changesFrom(points).size());
+	}
+
+	private static void assertNearest(PointTable points, IndexSnapshot snapshot) {
+		Random random = new Random(9);
+		for (int q = 0; q < 50; q++) {
+			float lat = random.nextFloat() * 180 - 90;
+			float lon = random.nextFloat() * 360 - 180;
+			int count = 1 + random.nextInt(30);
+			double furthest = q % 2 == 0 ? 0.2 : Double.POSITIVE_INFINITY;
+			GeodesicMetric metric = new GeodesicMetric(lat, lon);
+
+			double[] all = new double[points.size()];
+			int[] within = new int[1];
+			points.forEach((entity, point) -> {
+				double distance = metric.distance(PointTable.latitudeOf(point), PointTable.longitudeOf(point));
+				if (distance <= furthest) {
+					all[within[0]++] = distance;
+				}
+			});
+			Arrays.sort(all, 0, within[0]);
+
+			long[] entities = new long[count];
+			double[] distances = new double[count];
+			int found = snapshot.nearest(metric, count, furthest, entities, distances);
+			assertEquals(Math.min(count, within[0]), found);
+			for (int i = 0; i < found; i++) {
+				assertEquals(all[i], distances[i], 0);
+				long point = snapshot.pointOf(entities[i]);
+				assertEquals(distances[i], metric.distance(PointTable.latitudeOf(point), PointTable.longitudeOf(point)),
+						0);
+			}
+		}
+	}
+
+	private static void assertBrowses(PointTable points, IndexSnapshot snapshot) {
+		GeodesicMetric metric = new GeodesicMetric(40, -100);
+		double[] all = new double[points.size()];
+		int[] count = new int[1];
+		points.forEach((entity, point) -> all[count[0]++] = metric.distance(PointTable.latitudeOf(point),
+				PointTable.longitudeOf(point)));
+		Arrays.sort(all);
+
+		IndexSnapshot.NearestCursor cursor = snapshot.nearestCursor(metric);
+		TLongHashSet seen = new TLongHashSet();
+		while (cursor.next()) {
+			assertEquals(all[seen.size()], cursor.getDistance(), 0);
+			assertTrue(seen.add(cursor.getId()));
+			long point = snapshot.pointOf(cursor.getId());
+			assertEquals(cursor.getDistance(),
+					metric.distance(PointTable.latitudeOf(point), PointTable.longitudeOf(point)), 0);
+		}
+		assertEquals(points.size(), seen.size());
+	}
+
+	@Test
+	public void nearestSeesTheChanges() {
+		Random random = new Random(11);
+		PointTable points = new PointTable();
+		for (int i = 1; i <= 3000; i++) {
+			points.put(i, randomPoint(random));
+		}
+		IndexSnapshot base = build(points);
+		assertNearest(points, base);
+		assertBrowses(points, base);
+
+		PointTable changed = new PointTable();
+		points.forEach(changed::put);
+		LongLongHashMap changes = new LongLongHashMap();
+		for (int i = 1; i <= 500; i++) {
+			long entity = random.nextInt(3500) + 1;
+			long point = random.nextInt(3) == 0 ? IndexSnapshot.NO_POINT : randomPoint(random);
+			changes.put(entity, point);
+			if (point == IndexSnapshot.NO_POINT) {
+				changed.remove(entity);
+			} else {
+				changed.put(entity, point);
+			}
+		}
+		assertNearest(changed, base.withChanges(changes));
+		assertBrowses(changed, base.withChanges(changes));
+	}
+
+	@Test
+	public void manySmallCommitsKeepEveryVersion() {
+		Random random = new Random(23);
+		PointTable points = new PointTable();
+		for (int i = 1; i <= 2000; i++) {
+			points.put(i, randomPoint(random));
+		}
+		IndexSnapshot snapshot = build(points);
+		PointTable current = new PointTable();
+		points.forEach(current::put);
+		IndexSnapshot older = null;
+		PointTable olderPoints = null;
+		for (int commit = 1; commit <= 300; commit++) {
+			LongLongHashMap changes = new LongLongHashMap();
+			for (int i = random.nextInt(20); i >= 0; i--) {
+				// move, remove, add or restore an entity to its point in the tree
+				long entity = random.nextInt(2500) + 1;
+				int kind = random.nextInt(4);
+				long point = kind == 0 ? IndexSnapshot.NO_POINT
+						: kind == 1 && points.contains(entity) ? points.get(entity) : randomPoint(random);
+				changes.put(entity, point);
+				if (point == IndexSnapshot.NO_POINT) {
+					current.remove(entity);
+				} else {
+					current.put(entity, point);
+				}
+			}
+			snapshot = snapshot.withChanges(changes);
+			if (commit % 50 == 0) {
+				assertHolds(current, snapshot);
+				assertNearest(current, snapshot);
+				assertBrowses(current, snapshot);
+				assertEquals(snapshot.changesFrom(points).size(), snapshot.getChangeCount());
+				if (older != null) {
+					assertHolds(olderPoints, older);
+				}
+				older = snapshot;
+				olderPoints = new PointTable();
+				current.forEach(olderPoints::put);
+			}
+		}
+		assertHolds(current, snapshot.fold(createTree(), RTree.Packing.SORT_TILE_RECURSIVE));
+	}
+}
@@ -0,0 +1,83 @@
+package com.ontotext.trree.plugin.geo;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestPointTable {
+	@Rule
+	public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+	private PointTable saveAndLoad(PointTable table) throws IOException {
+		File file = tmpFolder.newFile();
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+			table.save(channel);
+		}
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			return PointTable.load(channel);
+		}
+	}
+
+	@Test
+	public void pointsArePacked() {
+		long point = PointTable.pack(42.6977f, -23.3219f);
+		assertEquals(42.6977f, PointTable.latitudeOf(point), 0);
+		assertEquals(-23.3219f, PointTable.longitudeOf(point), 0);
+	}
+
+	@Test
+	public void fingerprintFollowsTheEntries() {
+		PointTable table = new PointTable();
+		table.put(1, PointTable.pack(1, 2));
+		long fingerprint = table.getFingerprint();
+		table.put(2, PointTable.pack(3, 4));
+		table.put(1, PointTable.pack(5, 6));
+		table.put(1, PointTable.pack(1, 2));
+		table.remove(2);
+		table.remove(3);
+		assertEquals(fingerprint, table.getFingerprint());
+		assertEquals(1, table.size());
+		assertFalse(table.contains(2));
+		table.remove(1);
+		assertEquals(0, table.getFingerprint());
+	}
+
+	@Test
+	public void loadedTableHoldsTheSavedPoints() throws IOException {
+		PointTable table = new PointTable();
+		Random random = new Random(17);
+		for (int i = 1; i <= 10000; i++) {
+			table.put(i, PointTable.pack(random.nextFloat() * 180 - 90, random.nextFloat() * 360 - 180));
+		}
+		PointTable loaded = saveAndLoad(table);
+		assertEquals(table.size(), loaded.size());
+		assertEquals(table.getFingerprint(), loaded.getFingerprint());
+		for (int i = 1; i <= 10000; i++) {
+			assertTrue(loaded.contains(i));
+			assertEquals(table.get(i), loaded.get(i));
+		}
+		assertEquals(0, saveAndLoad(new PointTable()).size());
+	}
+
+	@Test
+	public void loadRejectsOtherFiles() throws IOException {
+		File file = tmpFolder.newFile();
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			PointTable.load(channel);
+			fail("loading an empty file should fail");
+		} catch (IOException expected) {
+			// expected
+		}
+	}
+}
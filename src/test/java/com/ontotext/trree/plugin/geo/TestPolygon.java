@@ -0,0 +1,172 @@
+package com.ontotext.trree.plugin.geo;
+
+import com.infomatiq.jsi.Rectangle;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestPolygon {
+
+	private static Polygon polygon(float... coordinates) {
+		Polygon polygon = new Polygon(coordinates.length / 2);
+		for (int i = 0; i < coordinates.length; i += 2) {
+			polygon.add(coordinates[i], coordinates[i + 1]);
+		}
+		return polygon;
+	}
+
+	@Test
+	public void containsRectanglesAwayFromItsEdges() {
+		// a square with a notch cut into its northern side
+		Polygon notched = polygon(0, 0, 0, 10, 10, 10, 10, 6, 5, 6, 5, 4, 10, 4, 10, 0);
+		assertTrue(notched.isReady());
+		assertTrue(notched.contains(1, 1, 3, 3));
+		assertTrue(notched.contains(6, 7, 9, 9));
+		assertTrue(notched.contains(1, 1, 4, 9));
+	}
+
+	@Test
+	public void doesNotContainRectanglesCrossingItsEdges() {
+		Polygon notched = polygon(0, 0, 0, 10, 10, 10, 10, 6, 5, 6, 5, 4, 10, 4, 10, 0);
+		// all corners inside, but the notch reaches into it
+		assertTrue(notched.contains(1, 1) && notched.contains(9, 1) && notched.contains(1, 9)
+				&& notched.contains(9, 9));
+		assertFalse(notched.contains(1, 1, 9, 9));
+		// in the notch
+		assertFalse(notched.contains(6, 4.5f, 9, 5.5f));
+		// across the border
+		assertFalse(notched.contains(-1, 1, 3, 3));
+		// outside
+		assertFalse(notched.contains(20, 20, 21, 21));
+	}
+
+	@Test
+	public void withinRectangleUtils() {
+		assertTrue(Utils.containsRectangle(0, 0, 10, 10, 1, 1, 2, 2));
+		assertTrue(Utils.containsRectangle(0, 0, 10, 10, 0, 0, 10, 10));
+		assertFalse(Utils.containsRectangle(0, 0, 10, 10, -1, 1, 2, 2));
+		assertFalse(Utils.containsRectangle(0, 0, 10, 10, 1, 1, 2, 11));
+		// spanning the +/-180 meridian
+		assertTrue(Utils.containsRectangle(0, 170, 10, -170, 1, 175, 2, 180));
+		assertTrue(Utils.containsRectangle(0, 170, 10, -170, 1, -180, 2, -175));
+		assertFalse(Utils.containsRectangle(0, 170, 10, -170, 1, 165, 2, 175));
+		assertFalse(Utils.containsRectangle(0, 170, 10, -170, 1, 0, 2, 5));
+	}
+
+	/**
+	 * A star around the given centre with random radii, closed unless told otherwise.
+	 */
+	private static Polygon star(Random random, int vertices, boolean closed) {
+		float[] coordinates = new float[(closed ? vertices + 1 : vertices) * 2];
+		for (int v = 0; v < vertices; v++) {
+			double angle = 2 * Math.PI * v / vertices;
+			double radius = 2 + random.nextDouble() * 8;
+			coordinates[2 * v] = 45 + (float) (radius * Math.sin(angle));
+			coordinates[2 * v + 1] = 10 + (float) (radius * Math.cos(angle));
+		}
+		if (closed) {
+			coordinates[2 * vertices] = coordinates[0];
+			coordinates[2 * vertices + 1] = coordinates[1];
+		}
+		return polygon(coordinates);
+	}
+
+	@Test
+	public void preparedPolygonAnswersLikeThePolygon() {
+		Random random = new Random(37);
+		for (int vertices : new int[] { 3, 4, 17, 200, 5000 }) {
+			for (boolean closed : new boolean[] { true, false }) {
+				Polygon polygon = star(random, vertices, closed);
+				PreparedPolygon prepared = new PreparedPolygon(polygon);
+				for (int p = 0; p < 20000; p++) {
+					float lat = 33 + random.nextFloat() * 24;
+					float lon = -2 + random.nextFloat() * 24;
+					assertEquals(polygon.contains(lat, lon), prepared.contains(lat, lon));
+				}
+				for (int v = 0; v < polygon.size(); v++) {
+					assertEquals(polygon.contains(polygon.getLat(v), polygon.getLon(v)),
+							prepared.contains(polygon.getLat(v), polygon.getLon(v)));
+				}
+				for (int q = 0; q < 2000; q++) {
+					float lat = 35 + random.nextFloat() * 20;
+					float lon = random.nextFloat() * 20;
+					float size = random.nextFloat() * (q % 2 == 0 ? 0.1f : 3);
+					assertEquals(polygon.contains(lat, lon, lat + size, lon + size),
+							prepared.contains(lat, lon, lat + size, lon + size));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void preparedPolygonOfNotchedSquare() {
+		Polygon notched = polygon(0, 0, 0, 10, 10, 10, 10, 6, 5, 6, 5, 4, 10, 4, 10, 0);
+		PreparedPolygon prepared = new PreparedPolygon(notched);
+		assertTrue(prepared.contains(1, 1));
+		assertFalse(prepared.contains(7, 5));
+		assertTrue(prepared.contains(1, 1, 3, 3));
+		assertFalse(prepared.contains(1, 1, 9, 9));
+		assertFalse(prepared.contains(6, 4.5f, 9, 5.5f));
+	}
+
+	@Test
+	public void coveringHoldsEveryPointOfThePolygonOnce() {
+		Random random = new Random(41);
+		for (int vertices : new int[] { 3, 17, 200, 5000 }) {
+			Polygon polygon = star(random, vertices, true);
+			PreparedPolygon.Covering covering = new PreparedPolygon(polygon).cover();
+			for (int p = 0; p < 20000; p++) {
+				float lat = 33 + random.nextFloat() * 24;
+				float lon = -2 + random.nextFloat() * 24;
+				int covered = 0;
+				for (int i = 0; i < covering.rectangles.length; i++) {
+					Rectangle r = covering.rectangles[i];
+					if (Utils.contains(r.minX, r.minY, r.maxX, r.maxY, lat, lon)) {
+						covered++;
+						if (covering.inside[i]) {
+							assertTrue(polygon.contains(lat, lon));
+						}
+					}
+				}
+				assertTrue(covered <= 1);
+				if (polygon.contains(lat, lon)) {
+					assertEquals(1, covered);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void coveringHugsADiagonalStrip() {
+		// a narrow strip from south-west to north-east, mostly away from its bounding box
+		Polygon strip = polygon(0, 0, 1, 0, 20, 19, 20, 20, 19, 20, 0, 1, 0, 0);
+		PreparedPolygon.Covering covering = new PreparedPolygon(strip).cover();
+		double area = 0;
+		boolean anyInside = false;
+		for (int i = 0; i < covering.rectangles.length; i++) {
+			Rectangle r = covering.rectangles[i];
+			area += (r.maxX - r.minX) * (r.maxY - r.minY);
+			anyInside |= covering.inside[i];
+		}
+		assertTrue("covering of " + area, area < 0.25 * 20 * 20);
+		assertFalse(anyInside);
+		// the edge points of the strip
+		assertTrue(Utils.contains(covering.rectangles[0].minX, covering.rectangles[0].minY,
+				covering.rectangles[0].maxX, covering.rectangles[0].maxY, 0, 0));
+	}
+
+	@Test
+	public void coveringOfALargePolygonHasInsideRectangles() {
+		Polygon polygon = star(new Random(43), 400, true);
+		PreparedPolygon.Covering covering = new PreparedPolygon(polygon).cover();
+		boolean anyInside = false;
+		for (boolean inside : covering.inside) {
+			anyInside |= inside;
+		}
+		assertTrue(anyInside);
+	}
+}
@@ -0,0 +1,164 @@
+package com.ontotext.trree.plugin.geo;
+
+import com.ontotext.trree.sdk.StatementIterator;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestPredicateColumn {
+
+	/**
+	 * Returns the given subjects and objects in order.
+	 */
+	static final class ArrayIterator extends StatementIterator {
+		private final long[] subjects;
+		private final long[] objects;
+		private int next = 0;
+		boolean closed = false;
+
+		ArrayIterator(long[] subjects, long[] objects) {
+			super(0, 0, 0, 0);
+			this.subjects = subjects;
+			this.objects = objects;
+		}
+
+		@Override
+		public boolean next() {
+			if (next == subjects.length) {
+				return false;
+			}
+			subject = subjects[next];
+			object = objects[next];
+			next++;
+			return true;
+		}
+
+		@Override
+		public void close() {
+			closed = true;
+		}
+	}
+
+	private static void assertNext(PredicateColumn column, long subject, long object, boolean several) {
+		assertTrue(column.next());
+		assertEquals(subject, column.subject());
+		assertEquals(object, column.object());
+		assertEquals(several, column.hasSeveral());
+	}
+
+	private static List<long[]> join(PredicateColumn first, PredicateColumn second, boolean ordered) {
+		List<long[]> joined = new ArrayList<>();
+		assertEquals(ordered, PredicateColumn.join(first, second,
+				(subject, a, b, several) -> joined.add(new long[] { subject, a, b, several ? 1 : 0 })));
+		return joined;
+	}
+
+	@Test
+	public void nextVisitsEachSubjectOnceWithItsFirstObject() {
+		ArrayIterator iter = new ArrayIterator(new long[] { 1, 1, 2, 5, 5, 5, 7 },
+				new long[] { 10, 11, 20, 50, 51, 52, 70 });
+		PredicateColumn column = PredicateColumn.stream(iter);
+		assertNext(column, 1, 10, true);
+		assertNext(column, 2, 20, false);
+		assertNext(column, 5, 50, true);
+		assertNext(column, 7, 70, false);
+		assertFalse(column.next());
+		assertFalse(column.isOutOfOrder());
+		column.close();
+		assertTrue(iter.closed);
+	}
+
+	@Test
+	public void streamStopsAtAStatementOutOfOrder() {
+		PredicateColumn column = PredicateColumn.stream(new ArrayIterator(new long[] { 1, 3, 2 },
+				new long[] { 10, 30, 20 }));
+		assertNext(column, 1, 10, false);
+		assertFalse(column.isOutOfOrder());
+		assertNext(column, 3, 30, false);
+		assertTrue(column.isOutOfOrder());
+		assertFalse(column.next());
+	}
+
+	@Test
+	public void loadSortsBySubjectKeepingTheReadOrder() {
+		ArrayIterator iter = new ArrayIterator(new long[] { 5, 1, 5, 3, 1 }, new long[] { 50, 10, 51, 30, 11 });
+		PredicateColumn column = PredicateColumn.load(iter);
+		assertTrue(iter.closed);
+		assertNext(column, 1, 10, true);
+		assertNext(column, 3, 30, false);
+		assertNext(column, 5, 50, true);
+		assertFalse(column.next());
+		assertFalse(column.isOutOfOrder());
+	}
+
+	@Test
+	public void loadSortsLargeShuffledColumnsInParallel() {
+		int size = 3 * PredicateColumn.PARALLEL_SORT_THRESHOLD;
+		Random random = new Random(17);
+		long[] subjects = new long[size];
+		long[] objects = new long[size];
+		for (int i = 0; i < size; i++) {
+			subjects[i] = random.nextInt(size / 4);
+			// the objects tell the order the statements were read in
+			objects[i] = i;
+		}
+		long[] first = new long[size / 4];
+		int[] count = new int[size / 4];
+		Arrays.fill(first, -1);
+		for (int i = 0; i < size; i++) {
+			int subject = (int) subjects[i];
+			if (first[subject] < 0) {
+				first[subject] = i;
+			}
+			count[subject]++;
+		}
+
+		PredicateColumn column = PredicateColumn.load(new ArrayIterator(subjects, objects));
+		long previous = -1;
+		int seen = 0;
+		while (column.next()) {
+			int subject = (int) column.subject();
+			assertTrue(subject > previous);
+			assertEquals(first[subject], column.object());
+			assertEquals(count[subject] > 1, column.hasSeveral());
+			previous = subject;
+			seen++;
+		}
+		assertEquals(Arrays.stream(count).filter(c -> c > 0).count(), seen);
+	}
+
+	@Test
+	public void joinPassesTheSubjectsOfBothColumns() {
+		PredicateColumn lats = PredicateColumn.stream(new ArrayIterator(new long[] { 1, 2, 2, 4, 6 },
+				new long[] { 10, 20, 21, 40, 60 }));
+		PredicateColumn longs = PredicateColumn.stream(new ArrayIterator(new long[] { 2, 3, 4, 4, 6, 8 },
+				new long[] { 200, 300, 400, 401, 600, 800 }));
+		List<long[]> joined = join(lats, longs, true);
+		assertEquals(3, joined.size());
+		assertTrue(Arrays.equals(new long[] { 2, 20, 200, 1 }, joined.get(0)));
+		assertTrue(Arrays.equals(new long[] { 4, 40, 400, 1 }, joined.get(1)));
+		assertTrue(Arrays.equals(new long[] { 6, 60, 600, 0 }, joined.get(2)));
+	}
+
+	@Test
+	public void joinFindsStatementsOutOfOrderAfterTheLastMatch() {
+		long[] latSubjects = { 1, 2, 3 };
+		long[] longSubjects = { 3, 1 };
+		join(PredicateColumn.stream(new ArrayIterator(latSubjects, latSubjects)),
+				PredicateColumn.stream(new ArrayIterator(longSubjects, longSubjects)), false);
+
+		// the loaded columns give the whole join
+		List<long[]> joined = join(PredicateColumn.load(new ArrayIterator(latSubjects, latSubjects)),
+				PredicateColumn.load(new ArrayIterator(longSubjects, longSubjects)), true);
+		assertEquals(2, joined.size());
+		assertEquals(1, joined.get(0)[0]);
+		assertEquals(3, joined.get(1)[0]);
+	}
+}